@@ -0,0 +1,18 @@
+#!/bin/sh
+#
+#  Runs the mdm.jar next to this script with the class data sharing archive
+#  (mdm.jsa) that `ant dist-cds` recorded for it, so the jvm maps in classes
+#  that were already parsed and verified instead of loading them from the jar.
+#  `mdm status` and friends start a good deal faster this way.
+#
+#  The archive is only good for the exact jvm that made it, and that jvm has to
+#  be java 11 or newer (15 or newer if mdm.jar and mdm.jsa have been moved since
+#  they were made; keep their timestamps when copying them, e.g. `cp -p`).  Any
+#  other jvm quietly ignores the archive, and mdm starts the usual way.
+#
+#  Set JAVA_HOME to pick the jvm.
+#
+
+here="$(cd "$(dirname "$0")" && pwd)"
+java="${JAVA_HOME:+$JAVA_HOME/bin/}java"
+exec "$java" -XX:+IgnoreUnrecognizedVMOptions -Xshare:auto -XX:SharedArchiveFile="$here/mdm.jsa" -jar "$here/mdm.jar" "$@"
@@ -0,0 +1,116 @@
+package net.polydawn.mdm.bench;
+
+import java.io.*;
+import java.util.*;
+import net.polydawn.mdm.*;
+import net.polydawn.mdm.commands.*;
+import net.polydawn.mdm.fixture.*;
+import net.polydawn.mdm.jgit.*;
+import net.polydawn.mdm.test.*;
+import net.sourceforge.argparse4j.inf.*;
+import org.eclipse.jgit.errors.ConfigInvalidException;
+import org.eclipse.jgit.lib.*;
+import us.exultant.ahs.iob.*;
+
+/**
+ * Builds the repos the benchmarks run against, out of the same fixtures the tests
+ * use, in a temporary directory (see {@link WithCwd#temp()}) that stays the working
+ * directory until {@link #close()}. Paths given to the methods here are resolved
+ * against that directory explicitly: newer JVMs don't let a change of working
+ * directory affect relative {@link File}s, so nothing here relies on it.
+ */
+public class BenchFixtures {
+	static {
+		// apply fixes for questionable jgit behavior
+		SystemReaderFilteringProxy.apply();
+	}
+
+	public BenchFixtures() {
+		wd = WithCwd.temp();
+		dir = new File(System.getProperty("user.dir"));
+	}
+
+	private final WithCwd wd;
+	private final File dir;
+
+	/** A path in the temporary directory. */
+	public File file(String path) {
+		return new File(dir, path);
+	}
+
+	/**
+	 * A releases repo with {@code versions} releases ("v1" through "vN"), each a
+	 * couple of small files.
+	 */
+	public Repository releasesRepo(String path, int versions) throws IOException, MdmException {
+		Repository repo = new ProjectAlphaReleases(file(path).getPath()).getRepo();
+		for (int i = 2; i <= versions; i++)
+			release(repo, "v"+i, 2, 1024);
+		return repo;
+	}
+
+	/**
+	 * Release {@code files} files of {@code size} random bytes each into a releases repo.
+	 */
+	public void release(Repository releases, String version, int files, int size) throws IOException, MdmException {
+		File input = new File(releases.getDirectory(), "staging/"+version).getCanonicalFile();
+		writeFiles(input, files, size);
+		MdmReleaseCommand cmd = new MdmReleaseCommand(null);
+		cmd.relRepoPath = releases.getWorkTree().getCanonicalPath();
+		cmd.version = version;
+		cmd.inputPath = input.getPath();
+		cmd.accumulateData = true;
+		cmd.validate();
+		assertJoy(cmd.call());
+		IOForge.delete(input);
+	}
+
+	/** Fill a directory with {@code files} files of {@code size} random bytes each. */
+	public static void writeFiles(File dir, int files, int size) throws IOException {
+		dir.mkdirs();
+		Random random = new Random(files * 31 + size);
+		byte[] content = new byte[size];
+		for (int i = 0; i < files; i++) {
+			random.nextBytes(content);
+			OutputStream out = new FileOutputStream(new File(dir, "file"+i));
+			try {
+				out.write(content);
+			} finally {
+				out.close();
+			}
+		}
+	}
+
+	/**
+	 * A project ({@link ProjectAlpha}) with {@code modules} dependencies, all on
+	 * version "v1" of the same releases repo, fetched and checked out.
+	 */
+	public Repository projectWithDependencies(String path, int modules) throws IOException, ConfigInvalidException, MdmException {
+		Repository releases = new ProjectAlphaReleases(file(path+"-releases").getPath()).getRepo();
+		Repository project = new ProjectAlpha(file(path).getPath()).getRepo();
+		WithCwd wd = new WithCwd(project.getWorkTree()); {
+			for (int i = 0; i < modules; i++) {
+				Map<String,Object> args = new HashMap<String,Object>();
+				args.put("url", releases.getWorkTree().toString());
+				args.put("name", "alpha"+i);
+				args.put("lib", "lib");
+				args.put("version", "v1");
+				MdmAddCommand cmd = new MdmAddCommand(project);
+				cmd.parse(new Namespace(args));
+				cmd.validate();
+				assertJoy(cmd.call());
+			}
+		} wd.close();
+		return project;
+	}
+
+	static void assertJoy(MdmExitMessage result) {
+		if (result != null && result.code != 0)
+			throw new FixtureSetupError("command exited with '"+result.happy+"' -- \""+result.getMessage()+"\".");
+	}
+
+	/** Leave the temporary directory, and remove it. */
+	public void close() {
+		wd.clear();
+	}
+}
@@ -0,0 +1,64 @@
+package net.polydawn.mdm.bench;
+
+import java.util.concurrent.*;
+import net.polydawn.mdm.*;
+import net.polydawn.mdm.jgit.*;
+import org.eclipse.jgit.lib.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Loading a project's modules, which every command starts with, and walking the
+ * working tree for git repos, which update does to sweep up unlinked ones.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ModuleSetBench {
+	@Param({ "1", "16" })
+	int modules;
+
+	private BenchFixtures fixtures;
+	private Repository project;
+
+	@Setup
+	public void setUp() throws Exception {
+		fixtures = new BenchFixtures();
+		project = fixtures.projectWithDependencies("project", modules);
+	}
+
+	@TearDown
+	public void tearDown() {
+		project.close();
+		fixtures.close();
+	}
+
+	@Benchmark
+	public int load() throws Exception {
+		return close(new MdmModuleSet(project));
+	}
+
+	@Benchmark
+	public int loadOneThread() throws Exception {
+		return close(new MdmModuleSet(project, 1));
+	}
+
+	@Benchmark
+	public int subrepoWalk() throws Exception {
+		int found = 0;
+		SubrepoWalk walk = new SubrepoWalk(project);
+		while (walk.next())
+			found++;
+		return found;
+	}
+
+	/** Loaded modules hold their repos open; close them so thousands of iterations don't pile up file handles. */
+	private static int close(MdmModuleSet set) {
+		for (MdmModule module : set.getAllModules().values())
+			if (module.getRepo() != null)
+				module.getRepo().close();
+		return set.getAllModules().size();
+	}
+}
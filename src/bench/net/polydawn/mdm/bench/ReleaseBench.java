@@ -0,0 +1,73 @@
+package net.polydawn.mdm.bench;
+
+import java.io.*;
+import java.util.concurrent.*;
+import net.polydawn.mdm.*;
+import net.polydawn.mdm.commands.*;
+import org.eclipse.jgit.lib.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Making a release, end to end: from a directory of artifacts to the release and
+ * accumulation commits, the version index, and any repacking. Each iteration starts
+ * from a fresh releases repo, so the repo only grows by the releases made within
+ * one iteration.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReleaseBench {
+	@Param({ "false", "true" })
+	boolean inMemory;
+
+	/** How many files are in each release; each is 16KiB of random bytes. */
+	@Param({ "16", "256" })
+	int files;
+
+	private BenchFixtures fixtures;
+	private File input;
+	private Repository releases;
+	private int iteration;
+	private int version;
+
+	@Setup
+	public void setUp() throws Exception {
+		fixtures = new BenchFixtures();
+		input = fixtures.file("artifacts");
+		BenchFixtures.writeFiles(input, files, 16 * 1024);
+	}
+
+	@Setup(Level.Iteration)
+	public void freshReleasesRepo() throws Exception {
+		iteration++;
+		releases = fixtures.releasesRepo("releases-"+iteration, 1);
+		version = 1;
+	}
+
+	@TearDown(Level.Iteration)
+	public void closeReleasesRepo() {
+		releases.close();
+	}
+
+	@TearDown
+	public void tearDown() {
+		fixtures.close();
+	}
+
+	@Benchmark
+	public MdmExitMessage release() throws Exception {
+		MdmReleaseCommand cmd = new MdmReleaseCommand(null);
+		cmd.relRepoPath = releases.getWorkTree().getPath();
+		cmd.version = "v"+(++version);
+		cmd.inputPath = input.getPath();
+		cmd.accumulateData = true;
+		cmd.inMemory = inMemory;
+		cmd.validate();
+		MdmExitMessage result = cmd.call();
+		BenchFixtures.assertJoy(result);
+		return result;
+	}
+}
@@ -0,0 +1,45 @@
+package net.polydawn.mdm.bench;
+
+import java.util.*;
+import java.util.concurrent.*;
+import net.polydawn.mdm.util.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Sorting version names, the way listing a releases repo's versions and picking
+ * the newest does.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class VersionComparatorBench {
+	@Param({ "16", "1024" })
+	int count;
+
+	private List<String> versions;
+
+	@Setup
+	public void setUp() {
+		// a mix of the shapes real releases repos have: dotted numbers, v prefixes, qualifiers, and maven-ish suffixes.
+		Random random = new Random(count);
+		versions = new ArrayList<String>(count);
+		for (int i = 0; i < count; i++) {
+			switch (random.nextInt(4)) {
+				case 0: versions.add("v"+random.nextInt(5)+"."+random.nextInt(20)); break;
+				case 1: versions.add(random.nextInt(5)+"."+random.nextInt(20)+"."+random.nextInt(100)); break;
+				case 2: versions.add("v"+random.nextInt(5)+"."+random.nextInt(20)+"-rc"+random.nextInt(4)); break;
+				default: versions.add(random.nextInt(5)+"."+random.nextInt(20)+"."+random.nextInt(10)+".201404171909-r.mvn"); break;
+			}
+		}
+	}
+
+	@Benchmark
+	public List<String> sort() {
+		List<String> sorted = new ArrayList<String>(versions);
+		Collections.sort(sorted, new VersionComparator());
+		return sorted;
+	}
+}
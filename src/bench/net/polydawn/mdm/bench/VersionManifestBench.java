@@ -0,0 +1,60 @@
+package net.polydawn.mdm.bench;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import net.polydawn.mdm.*;
+import net.polydawn.mdm.fixture.*;
+import org.eclipse.jgit.lib.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Listing the versions a releases repo on the local filesystem offers, through a
+ * file:// url: both the cached way {@link Plumbing#getVersionManifest} normally
+ * goes, and listing the repo's refs every time.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class VersionManifestBench {
+	@Param({ "1", "64" })
+	int versions;
+
+	private BenchFixtures fixtures;
+	private Repository project;
+	private String url;
+
+	@Setup
+	public void setUp() throws Exception {
+		fixtures = new BenchFixtures();
+		Repository releases = fixtures.releasesRepo("releases", versions);
+		url = "file://"+releases.getWorkTree().getCanonicalPath();
+		releases.close();
+		project = new ProjectAlpha(fixtures.file("project").getPath()).getRepo();
+		// keep the manifest cache in the scratch directory, not the user's home.
+		StoredConfig config = project.getConfig();
+		config.setString(MdmConfigConstants.User.SECTION, null, MdmConfigConstants.User.MANIFEST_CACHE.toString(), fixtures.file("manifests").getPath());
+		config.save();
+		if (Plumbing.getVersionManifest(project, url).size() != versions)
+			throw new IllegalStateException("releases repo doesn't offer the versions it was made with");
+	}
+
+	@TearDown
+	public void tearDown() {
+		project.close();
+		fixtures.close();
+	}
+
+	@Benchmark
+	public List<String> getVersionManifest() throws Exception {
+		return Plumbing.getVersionManifest(project, url);
+	}
+
+	@Benchmark
+	public List<String> listVersions() throws Exception {
+		return Plumbing.listVersions(project, url);
+	}
+}
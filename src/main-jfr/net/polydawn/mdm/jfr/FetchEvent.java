@@ -0,0 +1,52 @@
+/*
+ * Copyright 2012 - 2014 Eric Myhre <http://exultant.us>
+ *
+ * This file is part of mdm <https://github.com/heavenlyhash/mdm/>.
+ *
+ * mdm is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.polydawn.mdm.jfr;
+
+import java.util.*;
+import jdk.jfr.*;
+
+@Name("net.polydawn.mdm.Fetch")
+@Label("Fetch")
+@Description("Fetching a release from a remote, for one module or for a group of modules sharing the remote.")
+class FetchEvent extends MdmEvent {
+	@Label("Module")
+	String module;
+
+	@Label("Version")
+	String version;
+
+	@Label("Remote")
+	String remote;
+
+	@Label("Bytes")
+	@DataAmount
+	long bytes;
+
+	@Label("Objects")
+	long objects;
+
+	void set(Map<String,Object> args) {
+		module = string(args, "module");
+		version = string(args, "version");
+		remote = string(args, "remote");
+		bytes = number(args, "bytes");
+		objects = number(args, "objects");
+	}
+}
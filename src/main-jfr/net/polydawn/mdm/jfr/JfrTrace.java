@@ -0,0 +1,95 @@
+/*
+ * Copyright 2012 - 2014 Eric Myhre <http://exultant.us>
+ *
+ * This file is part of mdm <https://github.com/heavenlyhash/mdm/>.
+ *
+ * mdm is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package net.polydawn.mdm.jfr;
+
+import java.util.*;
+import jdk.jfr.*;
+import net.polydawn.mdm.util.*;
+
+/**
+ * Emits mdm's {@link Trace} spans as Flight Recorder events, so that recordings of
+ * a JVM using mdm show module loads, fetches, checkouts, and releases by name
+ * instead of as anonymous jgit stacks.
+ * <p>
+ * This lives in its own source tree, compiled only on a JDK that has JFR; the rest
+ * of mdm still builds for and runs on older JVMs. {@link Trace} looks for this
+ * class reflectively when it's first used -- but only if Flight Recorder was set up
+ * when the JVM started, or {@link Trace#JFR_PROPERTY} asks for it, since
+ * {@link #install()} loads much of JFR -- and {@link #install()} leaves it to listen
+ * for recordings starting and stopping: only while a recording is running is this
+ * hooked up to {@link Trace} at all, so the rest of the time spans cost what they
+ * do without it.
+ */
+public final class JfrTrace implements Trace.Listener, FlightRecorderListener {
+	private JfrTrace() {}
+
+	public static void install() {
+		JfrTrace listener = new JfrTrace();
+		FlightRecorder.addListener(listener);
+		// a recording started on the command line is already running, and nothing will tell us it changed.
+		if (FlightRecorder.isInitialized())
+			listener.update();
+	}
+
+	public void recordingStateChanged(Recording recording) {
+		update();
+	}
+
+	private void update() {
+		boolean running = false;
+		for (Recording recording : FlightRecorder.getFlightRecorder().getRecordings())
+			if (recording.getState() == RecordingState.RUNNING)
+				running = true;
+		Trace.setListener(running ? this : null);
+	}
+
+	public Object begin(String category, String name) {
+		MdmEvent event = create(category, name);
+		if (event == null || !event.isEnabled())
+			return null;
+		event.begin();
+		return event;
+	}
+
+	public void end(Object handle, Map<String,Object> args) {
+		MdmEvent event = (MdmEvent) handle;
+		event.end();
+		if (event.shouldCommit()) {
+			event.set(args);
+			event.commit();
+		}
+	}
+
+	/** The event for a kind of span; null for the spans that don't get one. */
+	private static MdmEvent create(String category, String name) {
+		if (category.equals("modules") && name.equals("load module"))
+			return new ModuleLoadEvent();
+		if (category.equals("fetch") && (name.equals("fetch") || name.equals("fetch group")))
+			return new FetchEvent();
+		if (category.equals("checkout"))
+			return new CheckoutEvent();
+		if (category.equals("release") && name.equals("ingest"))
+			return new ReleaseIngestEvent();
+		if (category.equals("release") && name.equals("commit"))
+			return new ReleaseCommitEvent();
+		return null;
+	}
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright 2012 - 2014 Eric Myhre <http://exultant.us>
+ *
+ * This file is part of mdm <https://github.com/heavenlyhash/mdm/>.
+ *
+ * mdm is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.polydawn.mdm.jfr;
+
+import java.util.*;
+import jdk.jfr.*;
+
+/**
+ * The fields and helpers every mdm event shares. Each event fills its own fields in
+ * from the args of the {@link net.polydawn.mdm.util.Trace.Span} it stands for.
+ */
+@Category("mdm")
+@StackTrace(false)
+abstract class MdmEvent extends Event {
+	abstract void set(Map<String,Object> args);
+
+	static String string(Map<String,Object> args, String key) {
+		Object value = args == null ? null : args.get(key);
+		return value == null ? null : value.toString();
+	}
+
+	static long number(Map<String,Object> args, String key) {
+		Object value = args == null ? null : args.get(key);
+		return value instanceof Number ? ((Number)value).longValue() : 0;
+	}
+}
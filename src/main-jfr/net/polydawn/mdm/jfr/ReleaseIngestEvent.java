@@ -0,0 +1,44 @@
+/*
+ * Copyright 2012 - 2014 Eric Myhre <http://exultant.us>
+ *
+ * This file is part of mdm <https://github.com/heavenlyhash/mdm/>.
+ *
+ * mdm is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.polydawn.mdm.jfr;
+
+import java.util.*;
+import jdk.jfr.*;
+
+@Name("net.polydawn.mdm.ReleaseIngest")
+@Label("Release Ingest")
+@Description("Taking the files for a new release into the releases repository.")
+class ReleaseIngestEvent extends MdmEvent {
+	@Label("Version")
+	String version;
+
+	@Label("Files")
+	long files;
+
+	@Label("Bytes")
+	@DataAmount
+	long bytes;
+
+	void set(Map<String,Object> args) {
+		version = string(args, "version");
+		files = number(args, "files");
+		bytes = number(args, "bytes");
+	}
+}
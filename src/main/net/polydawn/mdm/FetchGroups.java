@@ -0,0 +1,161 @@
+/*
+ * Copyright 2012 - 2014 Eric Myhre <http://exultant.us>
+ *
+ * This file is part of mdm <https://github.com/heavenlyhash/mdm/>.
+ *
+ * mdm is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.polydawn.mdm;
+
+import java.io.*;
+import java.util.*;
+import net.polydawn.mdm.jgit.*;
+import net.polydawn.mdm.util.*;
+import org.eclipse.jgit.api.*;
+import org.eclipse.jgit.api.errors.*;
+import org.eclipse.jgit.lib.*;
+import org.eclipse.jgit.transport.*;
+import us.exultant.ahs.iob.*;
+
+/**
+ * Groups the dependencies an update will fetch by the url they'll be fetched from
+ * (after insteadof rewrites), so that when several modules use the same releases
+ * repo (two paths pinning different versions of one library, say) the releases they
+ * want are all fetched in one negotiation, and each module then picks its own refs
+ * up locally.
+ * <p>
+ * The group's fetch lands in the shared object store if the module can use it (see
+ * {@link net.polydawn.mdm.jgit.SharedObjectStore}), and otherwise in a scratch repo
+ * under {@code .git/mdm/fetch} that {@link #close()} removes afterwards. Urls only
+ * one module wants aren't grouped; those modules fetch for themselves as usual.
+ */
+public class FetchGroups {
+	public FetchGroups(Repository repo, Collection<MdmModuleDependency> modules) {
+		this.scratchDir = new File(new File(repo.getDirectory(), "mdm"), "fetch");
+		Map<String,Group> byUrl = new HashMap<String,Group>();
+		for (MdmModuleDependency module : modules) {
+			if (module.getVersionName() == null || module.getVersionName().equals(module.getVersionActual()))
+				continue;
+			String url = Plumbing.getMdmRemoteUrl(module);
+			if (url == null)
+				continue;
+			URIish resolved = Plumbing.resolveUrl(repo.getConfig(), url);
+			if (resolved == null)
+				continue;
+			Group group = byUrl.get(resolved.toString());
+			if (group == null)
+				byUrl.put(resolved.toString(), group = new Group(resolved));
+			group.versions.add(module.getVersionName());
+			group.members++;
+		}
+		for (Map.Entry<String,Group> entry : byUrl.entrySet())
+			if (entry.getValue().members > 1)
+				groups.put(entry.getKey(), entry.getValue());
+	}
+
+	private final File scratchDir;
+	private final Map<String,Group> groups = new HashMap<String,Group>();
+
+	private static class Group {
+		Group(URIish url) {
+			this.url = url;
+		}
+
+		final URIish url;
+		final Set<String> versions = new TreeSet<String>();
+		int members;
+		/** Where this group's releases have been fetched into already. */
+		final Set<File> filled = new HashSet<File>();
+		/** If the fetch failed, why; every module in the group gets the same answer. */
+		GitAPIException failure;
+		Repository scratch;
+	}
+
+	/** Whether other modules want releases from the same url, so it's worth fetching them together. */
+	public boolean isGrouped(URIish url) {
+		return groups.containsKey(url.toString());
+	}
+
+	/**
+	 * Fetch every release any module in the url's group wants, in one go, and return
+	 * the repo they're in now; modules can fetch their own refs from there without
+	 * touching the network. Only the first caller for a group (per target) actually
+	 * fetches; the rest wait for it and reuse the result.
+	 *
+	 * @param into
+	 *                the shared object store's repo for the url, if the calling module
+	 *                borrows objects from it; or null to use a scratch repo.
+	 * @param progress
+	 *                watches the fetch, if this call is the one that does it.
+	 */
+	public Repository fetch(URIish url, Repository into, FetchProgress progress) throws GitAPIException, IOException {
+		Group group = groups.get(url.toString());
+		synchronized (group) {
+			if (group.failure != null)
+				throw group.failure;
+			if (into == null) {
+				if (group.scratch == null) {
+					File gitDir = new File(scratchDir, ObjectId.fromRaw(Constants.newMessageDigest().digest(Constants.encode(url.toString()))).name());
+					group.scratch = new RepositoryBuilder().setGitDir(gitDir).setBare().build();
+					if (!new File(gitDir, Constants.CONFIG).exists())
+						group.scratch.create(true);
+				}
+				into = group.scratch;
+			}
+			if (group.filled.add(into.getDirectory())) {
+				List<RefSpec> refSpecs = new ArrayList<RefSpec>();
+				for (String version : group.versions)
+					if (into.getRef("refs/heads/mdm/release/"+version) == null)
+						refSpecs.addAll(Plumbing.releaseRefSpecs(version));
+				if (!refSpecs.isEmpty()) {
+					Trace.Span span = Trace.begin("fetch", "fetch group")
+						.arg("remote", url.toString())
+						.arg("versions", refSpecs.size() / 2);
+					long packBytesBefore = Trace.isRecording() ? Plumbing.packBytes(into) : 0;
+					long packObjectsBefore = Trace.isRecording() ? Plumbing.packObjects(into) : 0;
+					FetchProgress.Fetch monitor = progress.begin(url.getHumanishName()+" ("+(refSpecs.size() / 2)+" versions)", into);
+					try {
+						new Git(into).fetch()
+							.setRemote(url.toString())
+							.setRefSpecs(refSpecs)
+							.setTagOpt(TagOpt.NO_TAGS)
+							.setTransportConfigCallback(SshUserInfoHelper.CALLBACK)
+							.setProgressMonitor(monitor)
+							.call();
+					} catch (GitAPIException e) {
+						group.failure = e;
+						throw e;
+					} finally {
+						monitor.done();
+						if (Trace.isRecording())
+							span.arg("bytes", Plumbing.packBytes(into) - packBytesBefore)
+								.arg("objects", Plumbing.packObjects(into) - packObjectsBefore);
+						span.end();
+					}
+				}
+			}
+			return into;
+		}
+	}
+
+	/** Remove the scratch repos. */
+	public void close() throws IOException {
+		for (Group group : groups.values())
+			if (group.scratch != null) {
+				group.scratch.close();
+				IOForge.delete(group.scratch.getDirectory());
+			}
+	}
+}
@@ -0,0 +1,323 @@
+/*
+ * Copyright 2012 - 2014 Eric Myhre <http://exultant.us>
+ *
+ * This file is part of mdm <https://github.com/heavenlyhash/mdm/>.
+ *
+ * mdm is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package net.polydawn.mdm;
+
+import java.io.*;
+import java.util.*;
+import org.eclipse.jgit.internal.*;
+import org.eclipse.jgit.lib.*;
+import static us.exultant.ahs.util.Strings.join;
+
+/**
+ * Adds up the progress jgit reports for every fetch an update runs, however many
+ * run at once, and every {@link #REFRESH_MILLIS} says how it's going: the objects
+ * and bytes received so far, how fast each is arriving, and (once every running
+ * fetch knows how many objects it's receiving) about how long is left. What each
+ * fetch is doing at the moment is shown too, so the long quiet stretch while a
+ * remote counts and compresses a big release doesn't look like a stall.
+ * <p>
+ * Each fetch gets its own monitor from {@link #begin(String, Repository)}. Jgit counts
+ * objects as they arrive, but not bytes, so bytes are measured from the packs
+ * growing in the repos being fetched into; fetches sharing a repo at the same time
+ * may count each other's bytes.
+ */
+public class FetchProgress {
+	public static enum Style {
+		/** One line, rewritten in place; for a terminal. */
+		LIVE,
+		/** A line of text each refresh, for logs. */
+		PLAIN,
+		/** A json object on a line of its own each refresh, for logs that machines read. */
+		JSON;
+	}
+
+	/** How often progress is reported. */
+	public static final long REFRESH_MILLIS = 1000;
+
+	/** Rates are averaged over this many refreshes, so one slow second doesn't swing the estimate around. */
+	static final int RATE_WINDOW = 3;
+
+	/** Reports nothing, and measures nothing. */
+	public static final FetchProgress NONE = new FetchProgress(null, null);
+
+	public FetchProgress(PrintStream out, Style style) {
+		this.out = out;
+		this.style = style;
+	}
+
+	private final PrintStream out;
+	private final Style style;
+	private final Set<Fetch> active = new LinkedHashSet<Fetch>();
+	private final LinkedList<long[]> samples = new LinkedList<long[]>();
+	private long started;
+	private int finishedFetches;
+	private long finishedObjects;
+	private long finishedBytes;
+	private Thread refresher;
+
+	/** Start reporting, until {@link #close()}. */
+	public synchronized void start() {
+		if (out == null || refresher != null)
+			return;
+		started = System.currentTimeMillis();
+		refresher = new Thread(new Runnable() {
+			public void run() {
+				try {
+					while (true) {
+						Thread.sleep(REFRESH_MILLIS);
+						report();
+					}
+				} catch (InterruptedException e) {}
+			}
+		}, "mdm fetch progress");
+		refresher.setDaemon(true);
+		refresher.start();
+	}
+
+	/** Stop reporting, and sum up what was fetched, if anything was. */
+	public void close() {
+		Thread t;
+		synchronized (this) {
+			t = refresher;
+			refresher = null;
+		}
+		if (t == null)
+			return;
+		t.interrupt();
+		try {
+			t.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		synchronized (this) {
+			if (style == Style.LIVE)
+				out.print("\033[2K\r");
+			else if (finishedFetches > 0)
+				out.println(format(System.currentTimeMillis(), finishedObjects, finishedBytes, null, null, true));
+		}
+	}
+
+	/**
+	 * Begin watching a fetch. Hand the returned monitor to jgit, and call
+	 * {@link Fetch#done()} when the fetch returns, however it returns.
+	 *
+	 * @param label
+	 *                what's being fetched, for people to read; the module's handle,
+	 *                usually.
+	 * @param into
+	 *                the repo the fetch writes its pack into.
+	 */
+	public Fetch begin(String label, Repository into) {
+		Fetch fetch = new Fetch(label, into);
+		if (out != null)
+			synchronized (this) {
+				active.add(fetch);
+			}
+		return fetch;
+	}
+
+	private synchronized void finish(Fetch fetch) {
+		if (!active.remove(fetch))
+			return;
+		finishedFetches++;
+		finishedObjects += fetch.objects;
+		finishedBytes += fetch.bytes();
+	}
+
+	private synchronized void report() {
+		long now = System.currentTimeMillis();
+		long objects = finishedObjects;
+		long bytes = finishedBytes;
+		long expected = finishedObjects;
+		boolean expectedKnown = true;
+		for (Fetch fetch : active) {
+			objects += fetch.objects;
+			bytes += fetch.bytes();
+			if (fetch.expected < 0)
+				expectedKnown = false;
+			else
+				expected += fetch.expected;
+		}
+		samples.addLast(new long[] { now, objects, bytes });
+		if (samples.size() > RATE_WINDOW)
+			samples.removeFirst();
+		if (active.isEmpty())
+			return;
+		out.print(format(now, objects, bytes, expectedKnown ? expected : null, samples.getFirst(), false) + (style == Style.LIVE ? "" : "\n"));
+	}
+
+	private String format(long now, long objects, long bytes, Long expected, long[] since, boolean finished) {
+		double seconds = since == null ? 0 : (now - since[0]) / 1000.0;
+		double objectRate = seconds > 0 ? (objects - since[1]) / seconds : 0;
+		double byteRate = seconds > 0 ? (bytes - since[2]) / seconds : 0;
+		Long eta = expected != null && objectRate > 0 ? (long) Math.ceil(Math.max(0, expected - objects) / objectRate) : null;
+		long elapsed = now - started;
+
+		StringBuilder b = new StringBuilder();
+		if (style == Style.JSON) {
+			b.append("{\"elapsed\":").append(String.format(Locale.ROOT, "%.1f", elapsed / 1000.0));
+			b.append(",\"fetching\":[");
+			boolean first = true;
+			for (Fetch fetch : active) {
+				b.append(first ? "" : ",").append("{\"label\":").append(quote(fetch.label));
+				String task = fetch.task;
+				if (task != null) {
+					b.append(",\"task\":").append(quote(task)).append(",\"taskDone\":").append(fetch.taskDone);
+					if (fetch.taskTotal != ProgressMonitor.UNKNOWN) b.append(",\"taskTotal\":").append(fetch.taskTotal);
+				}
+				b.append("}");
+				first = false;
+			}
+			b.append("],\"fetched\":").append(finishedFetches);
+			b.append(",\"objects\":").append(objects);
+			if (expected != null) b.append(",\"objectsTotal\":").append(expected);
+			b.append(",\"bytes\":").append(bytes);
+			if (!finished) {
+				b.append(",\"objectsPerSecond\":").append(Math.round(objectRate));
+				b.append(",\"bytesPerSecond\":").append(Math.round(byteRate));
+				b.append(",\"etaSeconds\":").append(eta == null ? "null" : eta.toString());
+			}
+			b.append(",\"finished\":").append(finished).append("}");
+			return b.toString();
+		}
+
+		if (style == Style.LIVE) b.append("\033[2K\r");
+		if (finished) {
+			b.append("fetched ").append(finishedFetches).append(finishedFetches == 1 ? " release" : " releases");
+		} else {
+			b.append("fetching ");
+			if (active.size() <= 3) {
+				List<String> described = new ArrayList<String>(active.size());
+				for (Fetch fetch : active)
+					described.add(fetch.describe());
+				b.append(join(described, ", "));
+			} else {
+				b.append(active.size()).append(" releases");
+			}
+		}
+		b.append(": ").append(objects);
+		if (expected != null && !finished) b.append(" of ").append(expected);
+		b.append(" objects, ").append(size(bytes));
+		if (finished) {
+			b.append(" in ").append(duration(Math.round(elapsed / 1000.0)));
+		} else {
+			b.append("; ").append(Math.round(objectRate)).append(" objects/s, ").append(size(Math.round(byteRate))).append("/s");
+			if (eta != null) b.append("; about ").append(duration(eta)).append(" left");
+		}
+		return b.toString();
+	}
+
+	/** The progress of a single fetch. */
+	public class Fetch implements ProgressMonitor {
+		private Fetch(String label, Repository into) {
+			this.label = label;
+			this.into = into;
+			this.bytesBefore = out == null ? 0 : Plumbing.packBytes(into);
+		}
+
+		private final String label;
+		private final Repository into;
+		private final long bytesBefore;
+		private volatile boolean receiving;
+		/** Objects received so far. */
+		private volatile long objects;
+		/** Objects this fetch will receive in all, or -1 if it's not far enough along to say. */
+		private volatile long expected = -1;
+		/** What jgit (or the remote) says it's doing now, and how far along it is. */
+		private volatile String task;
+		private volatile long taskDone;
+		private volatile int taskTotal;
+
+		public void start(int totalTasks) {}
+
+		public void beginTask(String title, int totalWork) {
+			taskDone = 0;
+			taskTotal = totalWork;
+			task = title;
+			receiving = title.equals(JGitText.get().receivingObjects);
+			if (receiving)
+				expected = totalWork == UNKNOWN ? -1 : totalWork;
+		}
+
+		public void update(int completed) {
+			taskDone += completed;
+			if (receiving)
+				objects += completed;
+		}
+
+		public void endTask() {
+			if (receiving && expected < 0)
+				expected = objects;
+			receiving = false;
+			task = null;
+		}
+
+		/** The label, and what the fetch is doing now. */
+		String describe() {
+			String task = this.task;
+			if (task == null)
+				return label;
+			if (taskTotal == UNKNOWN || taskTotal == 0)
+				return label+" ("+task+": "+taskDone+")";
+			return label+" ("+task+": "+Math.min(100, taskDone * 100 / taskTotal)+"%)";
+		}
+
+		public boolean isCancelled() {
+			return false;
+		}
+
+		/** The fetch is over; its totals go in with the finished ones. */
+		public void done() {
+			// a fetch that had nothing to send never says how many objects it would receive.
+			if (expected < 0)
+				expected = objects;
+			finish(this);
+		}
+
+		/** Bytes received so far: what's landed in packs since we started watching, and what's still arriving. */
+		long bytes() {
+			long total = Plumbing.packBytes(into) - bytesBefore;
+			File[] incoming = new File(into.getDirectory(), "objects").listFiles();
+			if (incoming != null)
+				for (File file : incoming)
+					if (file.getName().startsWith("incoming_") && file.getName().endsWith(".pack"))
+						total += file.length();
+			return Math.max(0, total);
+		}
+	}
+
+	static String size(long bytes) {
+		if (bytes < 1024) return bytes+" B";
+		if (bytes < 1024*1024) return String.format(Locale.ROOT, "%.1f KiB", bytes / 1024.0);
+		if (bytes < 1024L*1024*1024) return String.format(Locale.ROOT, "%.1f MiB", bytes / (1024.0*1024));
+		return String.format(Locale.ROOT, "%.2f GiB", bytes / (1024.0*1024*1024));
+	}
+
+	static String duration(long seconds) {
+		if (seconds < 60) return seconds+"s";
+		if (seconds < 3600) return (seconds / 60)+"m"+String.format(Locale.ROOT, "%02d", seconds % 60)+"s";
+		return (seconds / 3600)+"h"+String.format(Locale.ROOT, "%02d", seconds / 60 % 60)+"m";
+	}
+
+	private static String quote(String s) {
+		return "\""+s.replace("\\", "\\\\").replace("\"", "\\\"")+"\"";
+	}
+}
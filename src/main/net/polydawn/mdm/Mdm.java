@@ -20,10 +20,12 @@
 package net.polydawn.mdm;
 
 import java.io.*;
+import java.lang.management.*;
 import java.util.*;
 import net.polydawn.mdm.commands.*;
 import net.polydawn.mdm.errors.*;
 import net.polydawn.mdm.jgit.*;
+import net.polydawn.mdm.util.*;
 import net.sourceforge.argparse4j.inf.*;
 import net.sourceforge.argparse4j.internal.*;
 import org.eclipse.jgit.lib.*;
@@ -32,20 +34,69 @@ import us.exultant.ahs.iob.*;
 import us.exultant.ahs.util.*;
 
 public class Mdm {
-	static {
-		// apply fixes for questionable jgit behavior
+	private static boolean fixed = false;
+
+	/**
+	 * Apply fixes for questionable jgit behavior.  Done on the way into
+	 * {@link #run(String...)} rather than on class load, so a command handed off to
+	 * a daemon never loads jgit at all.  (Ssh prompts are set up per transport, by
+	 * {@link SshUserInfoHelper}, so jsch is only loaded if a remote is ssh.)
+	 */
+	private static synchronized void applyFixes() {
+		if (fixed) return;
 		SystemReaderFilteringProxy.apply();
-		SshUserInfoHelper.apply();
+		fixed = true;
 	}
 
 	public static void main(String[] args) {
+		if (timing) {
+			long jvm = System.currentTimeMillis() - ManagementFactory.getRuntimeMXBean().getStartTime();
+			startTiming();
+			timeline.append(String.format("  %-10s %5dms%n", "jvm", jvm));
+		}
+		Integer code = MdmDaemonClient.tryRun(args);
+		mark("daemon");
+		if (code != null) {
+			reportTiming();
+			System.exit(code);
+		}
 		real = true;
 		MdmExitMessage answer = _main(args);
 		answer.print(System.err);
 		answer.exit();
 	}
 
-	private static boolean real = false;
+	/** Set MDM_TIMING in the environment to have mdm report, on stderr, how long each phase of starting up and running a command took. */
+	private static final boolean timing = System.getenv("MDM_TIMING") != null;
+	private static StringBuilder timeline;
+	private static long lastMark;
+
+	private static void startTiming() {
+		timeline = new StringBuilder();
+		lastMark = System.nanoTime();
+	}
+
+	/** Note that the phase named has just finished, if timing. */
+	private static void mark(String phase) {
+		if (timeline == null) return;
+		long now = System.nanoTime();
+		timeline.append(String.format("  %-10s %5dms%n", phase, (now - lastMark) / 1000000));
+		lastMark = now;
+	}
+
+	private static void reportTiming() {
+		if (timeline == null) return;
+		System.err.print("mdm: timing:\n"+timeline);
+		timeline = null;
+	}
+
+	static boolean real = false;
+
+	/**
+	 * Repositories kept open between commands, by git dir.  Only set in a
+	 * {@link MdmDaemon}; otherwise null, and every command opens its own.
+	 */
+	static Map<File,Repository> warmRepos = null;
 
 	/**
 	 * Like the main method (does full args parsing, takes your cwd as serious
@@ -54,19 +105,12 @@ public class Mdm {
 	 * @throws Exception
 	 */
 	public static MdmExitMessage run(String... args) throws Exception {
-		// find the repo to operate on
-		Repository repo = null;
-		try {
-			FileRepositoryBuilder builder = new FileRepositoryBuilder();
-			builder.findGitDir();
-			if (builder.getGitDir() != null)
-				repo = builder.build();
-		} catch (IOException e) {
-			throw new RuntimeException(e);
-		}
+		if (timing && timeline == null) startTiming();
+		applyFixes();
+		mark("fixes");
 
-		// parse args
-		ArgumentParser parser = new MdmArgumentParser().parser;
+		// parse args.  only the subcommand asked for gets a parser built, when we can tell which that is.
+		ArgumentParser parser = new MdmArgumentParser(subcommandOf(args)).parser;
 		if (args.length == 0) {
 			parser.printHelp();
 			if (real) System.exit(1);
@@ -85,17 +129,71 @@ public class Mdm {
 			if (real) System.exit(1);
 			throw e;
 		}
+		mark("parse");
+
+		// find the repo to operate on
+		Repository repo = null;
+		try {
+			FileRepositoryBuilder builder = new FileRepositoryBuilder();
+			// start from user.dir explicitly: the daemon sets it to each client's working directory, and newer jvms don't look at it when resolving relative files.
+			builder.findGitDir(new File(System.getProperty("user.dir")));
+			if (builder.getGitDir() != null) {
+				if (warmRepos == null) {
+					repo = builder.build();
+				} else {
+					File gitDir = builder.getGitDir().getCanonicalFile();
+					repo = warmRepos.get(gitDir);
+					if (repo == null) {
+						repo = builder.build();
+						warmRepos.put(gitDir, repo);
+					}
+				}
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		mark("repo");
 
 		// fire command
-		MdmCommand cmd = getCommand(parsedArgs.getString("subcommand"), repo, parsedArgs);
-		cmd.parse(parsedArgs);
-		cmd.validate();
-		return cmd.call();
+		String traceFile = parsedArgs.getString("trace");
+		if (traceFile != null)
+			Trace.start(new File(traceFile).isAbsolute() ? new File(traceFile) : new File(System.getProperty("user.dir"), traceFile));
+		Trace.Span span = Trace.begin("command", "mdm "+parsedArgs.getString("subcommand"));
+		try {
+			MdmCommand cmd = getCommand(parsedArgs.getString("subcommand"), repo, parsedArgs);
+			cmd.parse(parsedArgs);
+			cmd.validate();
+			MdmExitMessage answer = cmd.call();
+			mark("command");
+			return answer;
+		} finally {
+			span.end();
+			if (traceFile != null)
+				try {
+					Trace.finish();
+				} catch (IOException e) {
+					System.err.println("mdm: could not write trace to "+traceFile+": "+e.getMessage());
+				}
+		}
+	}
+
+	/** The subcommand named in {@code args}, skipping over the options that come before it; or null if there isn't one. */
+	static String subcommandOf(String[] args) {
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("--trace"))
+				i++;
+			else if (!args[i].startsWith("-"))
+				return args[i];
+		}
+		return null;
 	}
 
-	private static MdmExitMessage _main(String[] args) {
+	static MdmExitMessage _main(String[] args) {
 		try {
 			return run(args);
+		} catch (ArgumentParserException e) {
+			// already reported by the parser.
+			return new MdmExitMessage(1);
 		} catch (MdmExitMessage e) {
 			return e;
 		} catch (MdmRuntimeException e) {
@@ -106,19 +204,25 @@ public class Mdm {
 			return dealUnexpected(e);
 		} catch (Exception e) {
 			return dealUnexpected(e);
+		} finally {
+			reportTiming();
 		}
 	}
 
-	public static MdmCommand getCommand(String name, final Repository repo, final Namespace args) {
-		return new HashMap<String,MdmCommand>() {{
-			put("status",           new MdmStatusCommand(repo, System.out));
-			put("update",           new MdmUpdateCommand(repo));
-			put("add",              new MdmAddCommand(repo));
-			put("alter",            new MdmAlterCommand(repo, args));
-			put("remove",           new MdmRemoveCommand(repo, args));
-			put("release",          new MdmReleaseCommand(repo));
-			put("release-init",     new MdmReleaseInitCommand(repo));
-		}}.get(name);
+	/**
+	 * Make the command named.  Only that command's class gets loaded; the rest
+	 * never have to be.
+	 */
+	public static MdmCommand getCommand(String name, Repository repo, Namespace args) {
+		if (name.equals("status"))       return new MdmStatusCommand(repo, System.out);
+		if (name.equals("update"))       return new MdmUpdateCommand(repo);
+		if (name.equals("add"))          return new MdmAddCommand(repo);
+		if (name.equals("alter"))        return new MdmAlterCommand(repo, args);
+		if (name.equals("remove"))       return new MdmRemoveCommand(repo, args);
+		if (name.equals("release"))      return new MdmReleaseCommand(repo);
+		if (name.equals("release-init")) return new MdmReleaseInitCommand(repo);
+		if (name.equals("daemon"))       return new MdmDaemonCommand(repo);
+		return null;
 	}
 
 	@SuppressWarnings("finally")
@@ -138,7 +242,8 @@ public class Mdm {
 	}
 
 	private static File saveStackDump(Throwable e) throws IOException {
-		File f = new File("mdm-error-"+UUID.randomUUID().toString()+".log");
+		// in user.dir explicitly, for the same reason as finding the repo: so a daemon puts it where its client is.
+		File f = new File(System.getProperty("user.dir"), "mdm-error-"+UUID.randomUUID().toString()+".log");
 		IOForge.saveFile(X.toString(e), f);
 		return f;
 	}
@@ -8,6 +8,16 @@ import net.sourceforge.argparse4j.inf.*;
 
 public class MdmArgumentParser {
 	public MdmArgumentParser() {
+		this(null);
+	}
+
+	/**
+	 * @param subcommand
+	 *                the subcommand about to be parsed (i.e. the first argument), if
+	 *                known; only that subcommand's parser is built. If null or not a
+	 *                subcommand, all of them are.
+	 */
+	public MdmArgumentParser(String subcommand) {
 		parser = ArgumentParsers.newArgumentParser("mdm").version(Package.getPackage("net.polydawn.mdm").getImplementationVersion());
 
 		parser.description(
@@ -55,19 +65,61 @@ public class MdmArgumentParser {
 			public void onAttach(Argument arg) {}
 		});
 
-		Subparsers subparsers = parser.addSubparsers().dest("subcommand").title("subcommands");
+		parser.addArgument("--trace")
+			.metavar("FILE")
+			.help("record how long each phase of the command takes (per dependency, with byte counts where there are any) and write it to FILE as a Chrome trace, which chrome://tracing or https://ui.perfetto.dev can show.");
 
+		Subparsers subparsers = parser.addSubparsers().dest("subcommand").title("subcommands");
 
 		//XXX: remove manual default value description texts and use `parser.defaultHelp(true);` instead.
 
+		// if we already know which subcommand is wanted, don't bother building the others.  the full list only matters for help and errors at the top level.
+		if (subcommand == null || !Arrays.asList(SUBCOMMANDS).contains(subcommand)) {
+			addStatus(subparsers);
+			addUpdate(subparsers);
+			addAdd(subparsers);
+			addAlter(subparsers);
+			addRemove(subparsers);
+			addRelease(subparsers);
+			addReleaseInit(subparsers);
+			addDaemon(subparsers);
+			return;
+		}
+		if (subcommand.equals("status"))
+			addStatus(subparsers);
+		else if (subcommand.equals("update"))
+			addUpdate(subparsers);
+		else if (subcommand.equals("add"))
+			addAdd(subparsers);
+		else if (subcommand.equals("alter"))
+			addAlter(subparsers);
+		else if (subcommand.equals("remove"))
+			addRemove(subparsers);
+		else if (subcommand.equals("release"))
+			addRelease(subparsers);
+		else if (subcommand.equals("release-init"))
+			addReleaseInit(subparsers);
+		else if (subcommand.equals("daemon"))
+			addDaemon(subparsers);
+	}
+
+	/** The subcommands, in the order they're listed in help. */
+	static final String[] SUBCOMMANDS = { "status", "update", "add", "alter", "remove", "release", "release-init", "daemon" };
+
+	private void addStatus(Subparsers subparsers) {
 		Subparser parser_status = subparsers
 			.addParser("status")
 			.help("list dependencies managed by mdm, and their current status.");
 		parser_status
 			.addArgument("--name")
 			.help("get the status of a particular dependency by name");
+		parser_status
+			.addArgument("--quick")
+			.action(storeTrue())
+			.help("look for uncommitted changes in dependencies using only file sizes and timestamps.  Much faster on big dependencies, but won't notice new files that haven't been added.");
+	}
 
-
+	private void addUpdate(Subparsers subparsers) {
 		Subparser parser_update = subparsers
 			.addParser("update")
 			.help("pull all dependencies up to date.  Run this after cloning a fresh repo, or pulling or checking out commits that change a dependency.");
@@ -79,8 +131,19 @@ public class MdmArgumentParser {
 			.addArgument("--reclaim")
 			.action(storeTrue())
 			.help("apply config flags to any submodules managed by mdm.  there is normally no reason to do this manually, as these flags are already created automatically by all other mdm commands, but may be useful for upgrading old workspaces.");
+		parser_update
+			.addArgument("-j", "--jobs")
+			.type(Integer.class)
+			.setDefault(1)
+			.help("number of dependencies to fetch and check out at the same time.  Raising this can speed up syncing a project with many dependencies on a slow network.  (default: 1)");
+		parser_update
+			.addArgument("--progress")
+			.choices("auto", "plain", "json", "none")
+			.setDefault("auto")
+			.help("how to report the progress of fetches, across all the dependencies being fetched: objects and bytes received, their rates, and the time left, once a second.  'plain' prints a line of text each time and 'json' a json object, for logs; 'auto' shows a live line on a terminal and nothing otherwise.  (default: auto)");
+	}
 
-
+	private void addAdd(Subparsers subparsers) {
 		Subparser parser_add = subparsers
 			.addParser("add")
 			.help("link a new dependency.");
@@ -97,8 +160,13 @@ public class MdmArgumentParser {
 		parser_add
 			.addArgument("--version")
 			.help("the version name of the dependency to set up.  If not provided, a mdm will obtain a list of available versions and prompt you to choose one interactively.");
+		parser_add
+			.addArgument("--offline")
+			.action(storeTrue())
+			.help("list the available versions only from what mdm remembers of the releases repository, without contacting it.  (The release itself still has to be fetched.)");
+	}
 
-
+	private void addAlter(Subparsers subparsers) {
 		Subparser parser_alter = subparsers
 			.addParser("alter")
 			.help("alter an existing dependency (i.e. switch to a new version).");
@@ -108,16 +176,22 @@ public class MdmArgumentParser {
 		parser_alter
 			.addArgument("--version")
 			.help("the version name of the dependency to set up.  If not provided, a mdm will obtain a list of available versions and prompt you to choose one interactively.");
+		parser_alter
+			.addArgument("--offline")
+			.action(storeTrue())
+			.help("list the available versions only from what mdm remembers of the releases repository, without contacting it.  (The release itself still has to be fetched.)");
+	}
 
-
+	private void addRemove(Subparsers subparsers) {
 		Subparser parser_remove = subparsers
 			.addParser("remove")
 			.help("remove an existing dependency.");
 		parser_remove
 			.addArgument("name")
 			.help("the name of the dependency module to operate on.");
+	}
 
-
+	private void addRelease(Subparsers subparsers) {
 		Subparser parser_release = subparsers
 			.addParser("release")
 			.help("generates a new release (adding commits to a releases repository; then, if this command was issued from inside a project's repository and the releases repository is a submodule in the canonical location, the new head commit of the master branch of the releases repo will be committed to the project repo along with a release tag).");
@@ -127,7 +201,7 @@ public class MdmArgumentParser {
 			.required(true);
 		parser_release
 			.addArgument("--files")
-			.help("specifies the artifact files to commit in the release.  If a directory, all non-hidden contents of the directory will be included.")
+			.help("specifies the artifact files to commit in the release.  If a directory, all non-hidden contents of the directory will be included.  If '-', a zip or tar (optionally gzipped) archive is read from stdin and its contents released, without ever being unpacked to disk; this implies --in-memory.")
 			.required(true);
 		parser_release
 			.addArgument("--repo")
@@ -137,8 +211,13 @@ public class MdmArgumentParser {
 			.addArgument("--skip-accumulation")
 			.action(Arguments.storeTrue())
 			.help("don't place the release data in the master branch.  The default behavior is to include all released files under a directory named '{version}/' in the master branch; enabling this flag skips this behavior, leaving less data on disk when the master branch is checked out (the commits linking releases to the master branch are otherwise unaffected).");
+		parser_release
+			.addArgument("--in-memory")
+			.action(Arguments.storeTrue())
+			.help("build the release commits directly in the releases repository's object database, instead of checking out branches and copying files around.  Much faster on releases repos with a long history, since the master branch's files never have to be written out.  The commits are the same as otherwise, except that gitignore rules aren't consulted: every file named is released.  (Has no effect in infix mode.)");
+	}
 
-
+	private void addReleaseInit(Subparsers subparsers) {
 		Subparser parser_releaseinit = subparsers
 			.addParser("release-init")
 			.help("set up a releases repository for a new project.  Future invocations of `mdm release` will generate commits into this repository.");
@@ -160,6 +239,21 @@ public class MdmArgumentParser {
 			.help("assign a remote url you'll push this repo to when making releases.  This will not be committed to the project; just set in the the release repo's local config (therefore, if not creating this release repo as submodule of an existing project, specifying --remote-url at the same time as this option is useless).");
 	}
 
+	private void addDaemon(Subparsers subparsers) {
+		Subparser parser_daemon = subparsers
+			.addParser("daemon")
+			.help("run in the background and answer `mdm status` and `mdm update` for other mdm invocations, so each one doesn't have to start up from scratch.  Those commands are handed to a running daemon automatically (unless the MDM_NO_DAEMON environment variable is set); they run with the daemon's environment, not the caller's.  Start it detached from any terminal, e.g. `mdm daemon </dev/null >/dev/null 2>&1 &`, so it can't stop to ask for passwords.");
+		parser_daemon
+			.addArgument("--stop")
+			.action(storeTrue())
+			.help("stop the running daemon.");
+		parser_daemon
+			.addArgument("--idle-timeout")
+			.type(Integer.class)
+			.setDefault(30)
+			.help("minutes to wait for a command before shutting down.  (default: 30)");
+	}
+
 	public final ArgumentParser parser;
 
 	public static class VersionExit extends RuntimeException {}
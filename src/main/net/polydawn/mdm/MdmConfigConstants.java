@@ -28,4 +28,31 @@ public interface MdmConfigConstants {
 		private final String value;
 		public String toString() { return value; }
 	}
+
+	/** Keys in the {@code [mdm "release"]} section of a releases repo's own config. */
+	public static enum Release implements MdmConfigConstants {
+		COMPRESSED_LEVEL ("compressedLevel"),
+		COMPRESSED_EXTENSION ("compressedExtension"),
+		REPACK ("repack");
+
+		public static final String SECTION = "mdm";
+		public static final String SUBSECTION = "release";
+
+		Release(String value) { this.value = value; }
+		private final String value;
+		public String toString() { return value; }
+	}
+
+	/** Keys in the {@code [mdm]} section that are read from the user's own git config as well as the repo's. */
+	public static enum User implements MdmConfigConstants {
+		OBJECT_STORE ("objectstore"),
+		MANIFEST_CACHE ("manifestcache"),
+		MANIFEST_TTL ("manifestttl");
+
+		public static final String SECTION = "mdm";
+
+		User(String value) { this.value = value; }
+		private final String value;
+		public String toString() { return value; }
+	}
 }
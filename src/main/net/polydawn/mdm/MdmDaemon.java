@@ -0,0 +1,342 @@
+/*
+ * Copyright 2012 - 2014 Eric Myhre <http://exultant.us>
+ *
+ * This file is part of mdm <https://github.com/heavenlyhash/mdm/>.
+ *
+ * mdm is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.polydawn.mdm;
+
+import java.io.*;
+import java.net.*;
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * A long-lived mdm process that runs commands handed to it by
+ * {@link MdmDaemonClient}, so that hooks running `mdm status` or `mdm update` over
+ * and over don't pay for starting a JVM and loading jgit every time. Repositories
+ * the commands open at the top level are kept open between commands, too.
+ * <p>
+ * The daemon listens on a loopback TCP port (the JDK mdm targets has no unix domain
+ * sockets), and writes the port and a random token to
+ * {@link MdmDaemonClient#stateFile()}, readable only by its owner. Connections that
+ * can't present the token are turned away, so only someone who can read that file
+ * can have the daemon run commands as its user.
+ * <p>
+ * Commands run one at a time, with output relayed back to the client. The client's
+ * working directory is handed to them as {@code user.dir}; the JVM itself only
+ * reads that at startup (newer JVMs don't resolve relative files against later
+ * changes to it), so mdm resolves anything relative -- finding the repo, local
+ * releases urls, the object store, traces and error logs -- against
+ * {@code user.dir} explicitly. The daemon's own environment is used, not the
+ * client's. Connections are answered on threads of
+ * their own, so a client that shows up while a command is running hears right away
+ * that the daemon is busy, and runs its command itself instead of waiting. The
+ * daemon shuts down after a stretch with no commands, or when asked to with `mdm
+ * daemon --stop`.
+ */
+public class MdmDaemon {
+	static final String GREETING = "mdm-daemon 1";
+	static final int FRAME_STDOUT = 'O';
+	static final int FRAME_STDERR = 'E';
+	static final int FRAME_EXIT = 'X';
+	static final int FRAME_REJECT = 'R';
+	static final int FRAME_BUSY = 'B';
+
+	public MdmDaemon(long idleMillis) {
+		this.stateFile = MdmDaemonClient.stateFile();
+		this.idleMillis = idleMillis;
+	}
+
+	private final File stateFile;
+	private final long idleMillis;
+	private String token;
+	private volatile boolean stopping;
+	/** Hands commands from the connection threads to the one running them.  Only takes one while that's waiting for it, so a busy daemon is easy to tell. */
+	private final SynchronousQueue<Request> requests = new SynchronousQueue<Request>();
+	/** Put on {@link #requests} to wake an idle daemon up to stop. */
+	private static final Request STOP = new Request(null, null, null, null);
+
+	/** A command a client asked for, with the connection to answer it on. */
+	private static class Request {
+		Request(Socket socket, DataOutputStream out, String cwd, String[] args) {
+			this.socket = socket;
+			this.out = out;
+			this.cwd = cwd;
+			this.args = args;
+		}
+
+		final Socket socket;
+		final DataOutputStream out;
+		final String cwd;
+		final String[] args;
+	}
+
+	/** Serve commands until stopped or idle for too long. */
+	public void serve() throws IOException {
+		final ServerSocket server = new ServerSocket(0, 50, InetAddress.getByName(null));
+		try {
+			byte[] secret = new byte[20];
+			new SecureRandom().nextBytes(secret);
+			StringBuilder hex = new StringBuilder();
+			for (byte b : secret)
+				hex.append(String.format("%02x", b & 0xFF));
+			token = hex.toString();
+			writeStateFile(server.getLocalPort());
+
+			Thread acceptor = new Thread("mdm daemon accept") {
+				public void run() {
+					accept(server);
+				}
+			};
+			acceptor.setDaemon(true);
+			acceptor.start();
+
+			// commands run here must hand back their exit code, not end the whole daemon.
+			Mdm.real = false;
+			Mdm.warmRepos = new HashMap<File,org.eclipse.jgit.lib.Repository>();
+			try {
+				// wait a second at a time, so a stop that comes in just as a command finishes isn't missed for long.
+				long idleSince = System.currentTimeMillis();
+				while (!stopping) {
+					Request request;
+					try {
+						request = requests.poll(1000, TimeUnit.MILLISECONDS);
+					} catch (InterruptedException e) {
+						break;
+					}
+					if (request == STOP)
+						break;
+					if (request == null) {
+						if (System.currentTimeMillis() - idleSince >= idleMillis)
+							break;
+						continue;
+					}
+					try {
+						int code = run(request.out, request.cwd, request.args);
+						request.out.write(FRAME_EXIT);
+						request.out.writeInt(code);
+						request.out.flush();
+					} catch (IOException e) {
+						System.err.println("mdm daemon: lost a client: "+e);
+					} finally {
+						close(request.socket);
+					}
+					idleSince = System.currentTimeMillis();
+				}
+			} finally {
+				for (org.eclipse.jgit.lib.Repository repo : Mdm.warmRepos.values())
+					repo.close();
+				Mdm.warmRepos = null;
+			}
+		} finally {
+			stopping = true;
+			server.close();
+			// a newer daemon may have taken over the state file; only remove it if it's still ours.
+			if (token != null && token.equals(readStateToken()))
+				stateFile.delete();
+		}
+	}
+
+	/** Take connections until the server socket is closed, each answered on a thread of its own. */
+	private void accept(ServerSocket server) {
+		while (!stopping) {
+			final Socket socket;
+			try {
+				socket = server.accept();
+			} catch (IOException e) {
+				return;	// closed.
+			}
+			Thread handler = new Thread("mdm daemon client") {
+				public void run() {
+					try {
+						if (handle(socket))
+							return;	// it's the command loop's to close now.
+					} catch (IOException e) {
+						System.err.println("mdm daemon: lost a client: "+e);
+					}
+					close(socket);
+				}
+			};
+			handler.setDaemon(true);
+			handler.start();
+		}
+	}
+
+	private static void close(Socket socket) {
+		try {
+			socket.close();
+		} catch (IOException e) {}
+	}
+
+	private void writeStateFile(int port) throws IOException {
+		stateFile.getParentFile().mkdirs();
+		File tmp = new File(stateFile.getPath()+".tmp");
+		tmp.delete();
+		if (!tmp.createNewFile())
+			throw new IOException("could not create "+tmp);
+		// owner only, before the token goes in.
+		tmp.setReadable(false, false);
+		tmp.setReadable(true, true);
+		tmp.setWritable(false, false);
+		tmp.setWritable(true, true);
+		Writer out = new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8");
+		try {
+			out.write(port+"\n"+token+"\n");
+		} finally {
+			out.close();
+		}
+		if (!tmp.renameTo(stateFile)) {
+			stateFile.delete();
+			if (!tmp.renameTo(stateFile))
+				throw new IOException("could not move daemon state file into place at "+stateFile);
+		}
+	}
+
+	private String readStateToken() {
+		try {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(stateFile), "UTF-8"));
+			try {
+				reader.readLine();
+				return reader.readLine();
+			} finally {
+				reader.close();
+			}
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Greet a client, and read what it asks for.
+	 *
+	 * @return true if the request was handed to the command loop, which answers it
+	 *         and closes the connection; false if it's been answered here.
+	 */
+	private boolean handle(Socket socket) throws IOException {
+		// a client that connects and then says nothing shouldn't hold its thread forever.
+		socket.setSoTimeout(10000);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+		DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		out.writeUTF(GREETING);
+		out.flush();
+
+		String offered;
+		try {
+			offered = in.readUTF();
+		} catch (EOFException e) {
+			return false;	// just checking we're here.
+		}
+		if (!token.equals(offered)) {
+			out.write(FRAME_REJECT);
+			out.flush();
+			return false;
+		}
+		String cwd = in.readUTF();
+		int argc = in.readInt();
+		if (argc < 0 || argc > 4096)
+			throw new IOException("unreasonable argument count "+argc);
+		String[] args = new String[argc];
+		for (int i = 0; i < argc; i++)
+			args[i] = in.readUTF();
+		socket.setSoTimeout(0);
+
+		if (args.length > 0 && args[0].equals("daemon")) {
+			// the client only ever forwards `daemon --stop`.  answered before stopping, since the jvm may well exit as soon as the command loop does.
+			// a command that's running gets to finish first.
+			PrintStream stderr = new PrintStream(new FrameOutputStream(out, FRAME_STDERR), true, "UTF-8");
+			stderr.println("mdm daemon stopped.");
+			stderr.flush();
+			out.write(FRAME_EXIT);
+			out.writeInt(0);
+			out.flush();
+			stopping = true;
+			requests.offer(STOP);
+			return false;
+		}
+		// the command loop only takes a request while it's waiting for one; give it a moment, in case it's between waits.
+		boolean taken;
+		try {
+			taken = !stopping && requests.offer(new Request(socket, out, cwd, args), 100, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			taken = false;
+		}
+		if (!taken) {
+			out.write(FRAME_BUSY);
+			out.flush();
+			return false;
+		}
+		return true;
+	}
+
+	/** Run a command for a client, relaying its output; returns its exit code. */
+	int run(DataOutputStream out, String cwd, String[] args) throws IOException {
+		PrintStream stdout = new PrintStream(new BufferedOutputStream(new FrameOutputStream(out, FRAME_STDOUT), 8192), true);
+		PrintStream stderr = new PrintStream(new BufferedOutputStream(new FrameOutputStream(out, FRAME_STDERR), 8192), true);
+		PrintStream oldOut = System.out;
+		PrintStream oldErr = System.err;
+		InputStream oldIn = System.in;
+		String oldCwd = System.getProperty("user.dir");
+		try {
+			System.setOut(stdout);
+			System.setErr(stderr);
+			System.setIn(new ByteArrayInputStream(new byte[0]));
+			System.setProperty("user.dir", cwd);
+			MdmExitMessage answer = Mdm._main(args);
+			if (answer == null)
+				return 0;
+			answer.print(stderr);
+			return answer.code;
+		} finally {
+			stdout.flush();
+			stderr.flush();
+			System.setOut(oldOut);
+			System.setErr(oldErr);
+			System.setIn(oldIn);
+			System.setProperty("user.dir", oldCwd);
+		}
+	}
+
+	/** Sends everything written to it down to the client as frames of one type. */
+	private static class FrameOutputStream extends OutputStream {
+		FrameOutputStream(DataOutputStream out, int type) {
+			this.out = out;
+			this.type = type;
+		}
+
+		private final DataOutputStream out;
+		private final int type;
+
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (len == 0) return;
+			synchronized (out) {
+				out.write(type);
+				out.writeInt(len);
+				out.write(b, off, len);
+			}
+		}
+
+		public void flush() throws IOException {
+			synchronized (out) {
+				out.flush();
+			}
+		}
+	}
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2012 - 2014 Eric Myhre <http://exultant.us>
+ *
+ * This file is part of mdm <https://github.com/heavenlyhash/mdm/>.
+ *
+ * mdm is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.polydawn.mdm;
+
+import java.io.*;
+import java.net.*;
+
+/**
+ * The client half of {@link MdmDaemon}: hands a command line to a running daemon
+ * and relays what it prints and its exit code. Deliberately touches nothing but the
+ * JDK, so that using it doesn't cost the class loading the daemon exists to avoid.
+ */
+public class MdmDaemonClient {
+	/** The subcommands worth sending to a daemon: the ones that never read stdin, and get run over and over by hooks. */
+	static boolean forwardable(String[] args) {
+		if (args.length == 0) return false;
+		if (args[0].equals("status") || args[0].equals("update")) return true;
+		return args[0].equals("daemon") && args.length == 2 && args[1].equals("--stop");
+	}
+
+	/** Where a running daemon says how to reach it: {@code ~/.cache/mdm/daemon}. */
+	public static File stateFile() {
+		return new File(System.getProperty("user.home"), ".cache/mdm/daemon");
+	}
+
+	/** Whether a daemon is answering at the address in the {@link #stateFile()}. */
+	public static boolean isRunning() {
+		try {
+			Socket socket = connect();
+			if (socket == null) return false;
+			socket.close();
+			return true;
+		} catch (IOException e) {
+			return false;
+		} catch (RuntimeException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Run the command through a daemon if there's one to run it.
+	 *
+	 * @return the command's exit code; or null if there's no daemon (or it wouldn't
+	 *         answer), and the command should be run here instead.
+	 */
+	public static Integer tryRun(String[] args) {
+		if (!forwardable(args) || System.getenv("MDM_NO_DAEMON") != null)
+			return null;
+		return tryRun(args, new File("").getAbsoluteFile(), System.out, System.err);
+	}
+
+	/** Like {@link #tryRun(String[])}, but for any command, run in {@code cwd}, with what it prints going to {@code stdout} and {@code stderr}. */
+	static Integer tryRun(String[] args, File cwd, PrintStream stdout, PrintStream stderr) {
+		Socket socket = null;
+		boolean accepted = false;
+		try {
+			socket = connect();
+			if (socket == null)
+				return null;
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			out.writeUTF(token);
+			out.writeUTF(cwd.getPath());
+			out.writeInt(args.length);
+			for (String arg : args)
+				out.writeUTF(arg);
+			out.flush();
+
+			while (true) {
+				int type = in.read();
+				if (type < 0)
+					throw new EOFException();
+				// turned away, or the daemon's in the middle of someone else's command: quicker to run it ourselves than wait.
+				if (type == MdmDaemon.FRAME_REJECT || type == MdmDaemon.FRAME_BUSY)
+					return null;
+				accepted = true;
+				if (type == MdmDaemon.FRAME_EXIT) {
+					stdout.flush();
+					stderr.flush();
+					return in.readInt();
+				}
+				byte[] data = new byte[in.readInt()];
+				in.readFully(data);
+				(type == MdmDaemon.FRAME_STDERR ? stderr : stdout).write(data);
+			}
+		} catch (IOException e) {
+			// nobody home, or an unreadable state file.  if the daemon went away partway through a command, that's not something to quietly redo.
+			if (accepted) {
+				stderr.println("lost connection to the mdm daemon: "+e);
+				return 1;
+			}
+			return null;
+		} catch (RuntimeException e) {
+			return null;
+		} finally {
+			if (socket != null)
+				try {
+					socket.close();
+				} catch (IOException e) {}
+		}
+	}
+
+	private static String token;
+
+	/**
+	 * Connect to the daemon named in the state file, and read its greeting.
+	 *
+	 * @return the connected socket, or null if there's no state file or something
+	 *         other than a daemon answered.
+	 */
+	private static Socket connect() throws IOException {
+		File state = stateFile();
+		if (!state.isFile())
+			return null;
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(state), "UTF-8"));
+		int port;
+		try {
+			port = Integer.parseInt(reader.readLine().trim());
+			token = reader.readLine().trim();
+		} finally {
+			reader.close();
+		}
+
+		Socket socket = new Socket();
+		try {
+			socket.connect(new InetSocketAddress(InetAddress.getByName(null), port), 1000);
+			// make sure it's really a daemon on that port, and not whatever got the port after a daemon died without cleaning up.
+			socket.setSoTimeout(1000);
+			// read the greeting byte by byte, so nothing after it gets stuck in a buffer we'd throw away.
+			if (!MdmDaemon.GREETING.equals(new DataInputStream(socket.getInputStream()).readUTF())) {
+				socket.close();
+				return null;
+			}
+			socket.setSoTimeout(0);
+			return socket;
+		} catch (IOException e) {
+			socket.close();
+			throw e;
+		}
+	}
+}
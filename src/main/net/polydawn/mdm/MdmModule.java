@@ -21,6 +21,7 @@ package net.polydawn.mdm;
 
 import java.io.*;
 import net.polydawn.mdm.errors.*;
+import net.polydawn.mdm.util.*;
 import org.eclipse.jgit.api.*;
 import org.eclipse.jgit.api.errors.*;
 import org.eclipse.jgit.errors.*;
@@ -62,23 +63,12 @@ public abstract class MdmModule {
 
 		if (repo == null) {
 			this.headId = null;
-			this.dirtyFiles = false;
 		} else {
 			try {
 				this.headId = repo.resolve(Constants.HEAD);
 			} catch (IOException e) {
 				throw new MdmRepositoryIOException(false, handle, e);
 			}
-
-			boolean dirtyFiles;
-			try {
-				dirtyFiles = !new Git(repo).status().call().isClean();
-			} catch (NoWorkTreeException e) {
-				throw new RuntimeException("wat", e);
-			} catch (GitAPIException e) {
-				dirtyFiles = false;
-			}
-			this.dirtyFiles = dirtyFiles;
 		}
 
 		if (parent != null) {
@@ -163,8 +153,11 @@ public abstract class MdmModule {
 	/** The ID the module repo is actually at. */
 	private final ObjectId headId;
 
-	/** Are there uncommitted for changed files in the module? */
-	private final boolean dirtyFiles;
+	/** Are there uncommitted for changed files in the module?  Null until someone asks; see {@link #hasDirtyFiles()}. */
+	private Boolean dirtyFiles;
+
+	/** Same question, answered only from the index's stat data; see {@link #hasDirtyFiles(boolean)}. */
+	private Boolean dirtyFilesQuick;
 
 	// properties that only make sense if a submodule:
 
@@ -213,7 +206,61 @@ public abstract class MdmModule {
 		return this.urlLocal;
 	}
 
-	public boolean hasDirtyFiles() {
-		return this.dirtyFiles;
+	/**
+	 * Check for uncommitted changes in the module, including untracked files. This
+	 * is a full status scan of the module's working tree, so it's computed on first
+	 * request and then remembered.
+	 */
+	public synchronized boolean hasDirtyFiles() {
+		if (dirtyFiles == null) {
+			if (repo == null) {
+				dirtyFiles = false;
+			} else {
+				Trace.Span span = Trace.begin("status", "status scan").arg("module", handle);
+				try {
+					dirtyFiles = !new Git(repo).status().call().isClean();
+				} catch (NoWorkTreeException e) {
+					throw new RuntimeException("wat", e);
+				} catch (GitAPIException e) {
+					dirtyFiles = false;
+				} finally {
+					span.end();
+				}
+			}
+		}
+		return dirtyFiles;
+	}
+
+	/**
+	 * Check for uncommitted changes in the module, optionally cheaply.
+	 *
+	 * @param quick
+	 *                if true, don't look for untracked files, and don't read file
+	 *                contents unless the index demands it: just compare the index
+	 *                to HEAD, and the index's recorded length and mtime for each
+	 *                tracked file to what's on disk. This can report a file that was merely touched
+	 *                as dirty, and will miss new files nobody has added yet. If
+	 *                false, same as {@link #hasDirtyFiles()}.
+	 */
+	public synchronized boolean hasDirtyFiles(boolean quick) {
+		if (!quick)
+			return hasDirtyFiles();
+		if (dirtyFiles != null)
+			return dirtyFiles;
+		if (dirtyFilesQuick == null) {
+			if (repo == null) {
+				dirtyFilesQuick = false;
+			} else {
+				Trace.Span span = Trace.begin("status", "quick status scan").arg("module", handle);
+				try {
+					dirtyFilesQuick = Plumbing.hasStatDirtyFiles(repo);
+				} catch (IOException e) {
+					throw new MdmRepositoryIOException(false, handle, e);
+				} finally {
+					span.end();
+				}
+			}
+		}
+		return dirtyFilesQuick;
 	}
 }
@@ -60,6 +60,14 @@ public class MdmModuleRelease extends MdmModule {
 		}
 	}
 
+	public static MdmModuleRelease load(Repository parent, String path, ObjectId indexId, Config gitmodulesCfg) throws MdmRepositoryNonexistant, MdmRepositoryIOException, MdmModuleTypeException {
+		try {
+			return new MdmModuleRelease(SubmoduleWalk.getSubmoduleRepository(parent, path), path, parent, gitmodulesCfg, indexId);
+		} catch (IOException e) {
+			throw new MdmRepositoryIOException(false, path, e);
+		}
+	}
+
 	public static MdmModuleRelease load(Repository parent, String path, Config gitmodulesCfg) throws MdmRepositoryNonexistant, MdmRepositoryIOException, MdmModuleTypeException {
 		try {
 			Repository repo = SubmoduleWalk.getSubmoduleRepository(parent, path);
@@ -21,7 +21,9 @@ package net.polydawn.mdm;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 import net.polydawn.mdm.errors.*;
+import net.polydawn.mdm.util.*;
 import org.eclipse.jgit.errors.*;
 import org.eclipse.jgit.lib.*;
 import org.eclipse.jgit.storage.file.*;
@@ -30,6 +32,40 @@ import us.exultant.ahs.util.*;
 
 public class MdmModuleSet {
 	public MdmModuleSet(Repository repo) throws IOException, ConfigInvalidException {
+		this(repo, defaultConcurrency());
+	}
+
+	/**
+	 * @param concurrency
+	 *                how many module repositories may be opened and inspected at
+	 *                once. Loading a module means opening its repo and scanning its
+	 *                working tree, so on large projects it pays to keep a few cores
+	 *                busy. A value of one loads every module on the calling thread.
+	 */
+	public MdmModuleSet(Repository repo, int concurrency) throws IOException, ConfigInvalidException {
+		this(repo, concurrency, null);
+	}
+
+	/**
+	 * @param skip
+	 *                consulted for each dependency module before it's loaded; those
+	 *                it accepts are left out of {@link #getDependencyModules()} and
+	 *                listed in {@link #getSkippedHandles()} instead. May be null.
+	 */
+	public MdmModuleSet(Repository repo, Skip skip) throws IOException, ConfigInvalidException {
+		this(repo, defaultConcurrency(), skip);
+	}
+
+	public MdmModuleSet(final Repository repo, int concurrency, Skip skip) throws IOException, ConfigInvalidException {
+		Trace.Span span = Trace.begin("modules", "load modules");
+		try {
+			load(repo, concurrency, skip);
+		} finally {
+			span.arg("loaded", allModules.size()).arg("skipped", skippedHandles.size()).end();
+		}
+	}
+
+	private void load(final Repository repo, int concurrency, Skip skip) throws IOException, ConfigInvalidException {
 		gitmodulesCfg = new FileBasedConfig(new File(repo.getWorkTree(), Constants.DOT_GIT_MODULES), repo.getFS());
 		gitmodulesCfg.load();
 
@@ -41,51 +77,143 @@ public class MdmModuleSet {
 		SubmoduleWalk mw = new SubmoduleWalk(repo);
 		mw.setModulesConfig(gitmodulesCfg);
 
+		// first just list the gitlinks and their types; that's quick, and it's all the information we need to hand out the actual loading.
+		List<Gitlink> gitlinks = new ArrayList<Gitlink>();
 		SubmoduleWalk generator = SubmoduleWalk.forIndex(repo);
 		// generator.loadModulesConfig() might cause this to do a more efficient walk on large repos by just taking the gitmodules file's word for it?  not sure; read that source more and also ask if trusting that file would create other consistency issues.
 		while (generator.next()) {
-			try {
-				// get the handle.  which we presume to be rather like the path, but git config always uses forward slashes.
-				// (the MdmModule constructor will also enforce this, but here we have to walk config ourselves before we get that far.)
-				String handle = (File.separatorChar != '/') ? generator.getPath().replace(File.separatorChar, '/') : generator.getPath();
-
-				// get submodule.[handle].mdm config value from gitmodules config file
-				String type_configured_string = gitmodulesCfg.getString(ConfigConstants.CONFIG_SUBMODULE_SECTION, handle, MdmConfigConstants.Module.MODULE_TYPE.toString());
-				MdmModuleType type_configured = MdmModuleType.fromString(type_configured_string);
-
-				// if the submodule.[handle].mdm config value was unrecognized or missing, ignore; it's not ours.
-				if (type_configured == null)
-					continue;
-
-				// load whichever type of mdm module it is
-				switch (type_configured) {
-					case DEPENDENCY:
-						MdmModuleDependency modDep = MdmModuleDependency.load(repo, generator, gitmodulesCfg);
-						dependencyModules.put(modDep.getHandle(), modDep);
-						allModules.put(modDep.getHandle(), modDep);
-						break;
-					case RELEASES:
-						MdmModuleRelease modRel = MdmModuleRelease.load(repo, generator, gitmodulesCfg);
-						releasesModules.put(modRel.getHandle(), modRel);
-						allModules.put(modRel.getHandle(), modRel);
-						break;
+			// get the handle.  which we presume to be rather like the path, but git config always uses forward slashes.
+			// (the MdmModule constructor will also enforce this, but here we have to walk config ourselves before we get that far.)
+			String handle = (File.separatorChar != '/') ? generator.getPath().replace(File.separatorChar, '/') : generator.getPath();
+
+			// get submodule.[handle].mdm config value from gitmodules config file
+			String type_configured_string = gitmodulesCfg.getString(ConfigConstants.CONFIG_SUBMODULE_SECTION, handle, MdmConfigConstants.Module.MODULE_TYPE.toString());
+			MdmModuleType type_configured = MdmModuleType.fromString(type_configured_string);
+
+			// if the submodule.[handle].mdm config value was unrecognized or missing, ignore; it's not ours.
+			if (type_configured == null)
+				continue;
+
+			// the caller may already know enough about this module to not need it loaded at all.
+			if (skip != null && type_configured == MdmModuleType.DEPENDENCY && skip.skip(handle, generator.getObjectId(), gitmodulesCfg)) {
+				skippedHandles.add(handle);
+				continue;
+			}
+
+			gitlinks.add(new Gitlink(type_configured, generator.getPath(), generator.getObjectId()));
+		}
+
+		// load whichever type of mdm module each is.  results come back in index order regardless of how many were loaded at once.
+		List<MdmModule> modules;
+		if (concurrency > 1 && gitlinks.size() > 1)
+			modules = loadConcurrently(repo, gitlinks, concurrency);
+		else {
+			modules = new ArrayList<MdmModule>(gitlinks.size());
+			for (Gitlink gitlink : gitlinks)
+				modules.add(load(repo, gitlink));
+		}
+
+		for (MdmModule module : modules) {
+			switch (module.getType()) {
+				case DEPENDENCY:
+					dependencyModules.put(module.getHandle(), (MdmModuleDependency)module);
+					break;
+				case RELEASES:
+					releasesModules.put(module.getHandle(), (MdmModuleRelease)module);
+					break;
+			}
+			allModules.put(module.getHandle(), module);
+		}
+	}
+
+	/** Lets a caller decline to load dependency modules it can already vouch for. */
+	public static interface Skip {
+		/**
+		 * @return true if the module should not be loaded.
+		 */
+		boolean skip(String handle, ObjectId indexId, Config gitmodulesCfg);
+	}
+
+	/** Never open more than this many module repositories at once, no matter how many cores are around. */
+	public static final int MAX_CONCURRENCY = 8;
+
+	static int defaultConcurrency() {
+		return Math.min(Runtime.getRuntime().availableProcessors(), MAX_CONCURRENCY);
+	}
+
+	/** Just what we need from the index walk to load a module later, possibly on another thread. */
+	private static class Gitlink {
+		Gitlink(MdmModuleType type, String path, ObjectId indexId) {
+			this.type = type;
+			this.path = path;
+			this.indexId = indexId;
+		}
+
+		final MdmModuleType type;
+		final String path;
+		final ObjectId indexId;
+	}
+
+	private MdmModule load(Repository repo, Gitlink gitlink) {
+		Trace.Span span = Trace.begin("modules", "load module").arg("module", gitlink.path);
+		MdmModule module = null;
+		try {
+			switch (gitlink.type) {
+				case DEPENDENCY:
+					module = MdmModuleDependency.load(repo, gitlink.path, gitlink.indexId, gitmodulesCfg);
+					return module;
+				case RELEASES:
+					module = MdmModuleRelease.load(repo, gitlink.path, gitlink.indexId, gitmodulesCfg);
+					return module;
+				default:
+					throw new MajorBug();
+			}
+		} catch (MdmModuleTypeException e) {
+			throw new MajorBug(e);
+		} finally {
+			if (module instanceof MdmModuleDependency && ((MdmModuleDependency)module).getVersionName() != null)
+				span.arg("version", ((MdmModuleDependency)module).getVersionName());
+			span.end();
+		}
+	}
+
+	private List<MdmModule> loadConcurrently(final Repository repo, List<Gitlink> gitlinks, int concurrency) {
+		ExecutorService pool = Executors.newFixedThreadPool(Math.min(concurrency, gitlinks.size()));
+		try {
+			List<Future<MdmModule>> pending = new ArrayList<Future<MdmModule>>(gitlinks.size());
+			for (final Gitlink gitlink : gitlinks)
+				pending.add(pool.submit(new Callable<MdmModule>() {
+					public MdmModule call() {
+						return load(repo, gitlink);
+					}
+				}));
+			List<MdmModule> modules = new ArrayList<MdmModule>(gitlinks.size());
+			for (Future<MdmModule> future : pending) {
+				try {
+					modules.add(future.get());
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new MdmRuntimeException("interrupted while loading modules", e);
+				} catch (ExecutionException e) {
+					// only runtime exceptions come out of load(); the MdmRepositoryIOException family is the interesting one, and it passes straight through.
+					if (e.getCause() instanceof RuntimeException) throw (RuntimeException)e.getCause();
+					if (e.getCause() instanceof Error) throw (Error)e.getCause();
+					throw new MajorBug(e.getCause());
 				}
-			} catch (MdmModuleTypeException e) {
-				throw new MajorBug(e);
-			} catch (MdmRepositoryNonexistant e) {
-				throw e;
-			} catch (MdmRepositoryIOException e) {
-				throw e;
 			}
+			return modules;
+		} finally {
+			pool.shutdownNow();
 		}
 	}
 
 	/** Must load and keep this reference ourself rather than let {@link SubmoduleWalk} do it for us because we intend to read unusual values and mutate it in unusual ways. */
-	private final StoredConfig gitmodulesCfg;
+	private StoredConfig gitmodulesCfg;
 
 	private final Map<String,MdmModule> allModules = new TreeMap<String,MdmModule>();
 	private final Map<String,MdmModuleDependency> dependencyModules = new TreeMap<String,MdmModuleDependency>();
 	private final Map<String,MdmModuleRelease> releasesModules = new TreeMap<String,MdmModuleRelease>();
+	private final Set<String> skippedHandles = new TreeSet<String>();
 
 	public Map<String,MdmModule> getAllModules() {
 		return this.allModules;
@@ -98,4 +226,9 @@ public class MdmModuleSet {
 	public Map<String,MdmModuleRelease> getReleasesModules() {
 		return this.releasesModules;
 	}
+
+	/** Handles of dependency modules that were in the index but not loaded, because the {@link Skip} given at construction said so. */
+	public Set<String> getSkippedHandles() {
+		return this.skippedHandles;
+	}
 }
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2012 - 2014 Eric Myhre <http://exultant.us>
+ *
+ * This file is part of mdm <https://github.com/heavenlyhash/mdm/>.
+ *
+ * mdm is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.polydawn.mdm;
+
+import java.io.*;
+import org.eclipse.jgit.errors.*;
+import org.eclipse.jgit.lib.*;
+import org.eclipse.jgit.storage.file.*;
+
+/**
+ * Remembers, in {@code .git/mdm/update-state}, what `mdm update` last left each
+ * dependency module at: the gitlink id the parent expected, the version name from
+ * gitmodules, and a stamp of the module's HEAD, index, and release branch files. If
+ * all three still match on the next update (and the parent's config still has the
+ * module's url), the module hasn't changed in any way update cares about, and it
+ * need not be loaded at all.
+ * <p>
+ * The stamp is only file sizes and mtimes, so it costs a handful of stat calls per
+ * module, however many files the module has. Files in the module's working tree
+ * aren't part of it: update leaves those alone in a module that's already at the
+ * right version whether it loads the module or not. Anything touched within the
+ * same second the state file was written is treated as possibly changed, the same
+ * way git treats racily clean index entries.
+ */
+public class MdmUpdateState implements MdmModuleSet.Skip {
+	public static MdmUpdateState load(Repository repo) throws IOException {
+		MdmUpdateState state = new MdmUpdateState(repo);
+		if (state.file.isFile())
+			try {
+				state.previous.load();
+				state.written = state.file.lastModified();
+			} catch (ConfigInvalidException e) {
+				// it's just a cache.  if we can't read it, we start over.
+				state.previous.clear();
+			}
+		return state;
+	}
+
+	private MdmUpdateState(Repository repo) {
+		this.repo = repo;
+		this.file = new File(new File(repo.getDirectory(), "mdm"), "update-state");
+		this.previous = new FileBasedConfig(file, repo.getFS());
+		this.next = new FileBasedConfig(file, repo.getFS());
+	}
+
+	private static final String SECTION = "module";
+	private static final String KEY_GITLINK = "gitlink";
+	private static final String KEY_VERSION = "version";
+	private static final String KEY_STAMP = "stamp";
+
+	private final Repository repo;
+	private final File file;
+	/** What the last update recorded. */
+	private final FileBasedConfig previous;
+	/** What this update will record. */
+	private final FileBasedConfig next;
+	/** When the last update recorded it; file mtimes from this second or later can't be trusted. */
+	private long written;
+
+	/**
+	 * Skip loading any module whose recorded gitlink, version, and stamp all still
+	 * match. Skipped modules carry their record forward into the next save.
+	 */
+	public boolean skip(String handle, ObjectId indexId, Config gitmodulesCfg) {
+		String gitlink = previous.getString(SECTION, handle, KEY_GITLINK);
+		String version = previous.getString(SECTION, handle, KEY_VERSION);
+		String stamp = previous.getString(SECTION, handle, KEY_STAMP);
+		if (gitlink == null || version == null || stamp == null || indexId == null)
+			return false;
+		if (!gitlink.equals(indexId.name()))
+			return false;
+		if (!version.equals(gitmodulesCfg.getString(ConfigConstants.CONFIG_SUBMODULE_SECTION, handle, MdmConfigConstants.Module.DEPENDENCY_VERSION.toString())))
+			return false;
+		String path = gitmodulesCfg.getString(ConfigConstants.CONFIG_SUBMODULE_SECTION, handle, ConfigConstants.CONFIG_KEY_PATH);
+		if (path == null)
+			return false;
+		// a module the parent has lost track of needs update to put it back in the parent's config.
+		if (repo.getConfig().getString(ConfigConstants.CONFIG_SUBMODULE_SECTION, handle, ConfigConstants.CONFIG_KEY_URL) == null)
+			return false;
+		if (!stamp.equals(stamp(path, version, true)))
+			return false;
+		copy(handle, gitlink, version, stamp);
+		return true;
+	}
+
+	/**
+	 * Note that {@code module} is now checked out at exactly the version and commit
+	 * the parent asks for. Modules in any other state shouldn't be recorded.
+	 */
+	public void record(MdmModuleDependency module) {
+		if (module.getIndexId() == null || module.getVersionName() == null)
+			return;
+		String stamp = stamp(module.getPath(), module.getVersionName(), false);
+		if (stamp == null)
+			return;
+		copy(module.getHandle(), module.getIndexId().name(), module.getVersionName(), stamp);
+	}
+
+	private void copy(String handle, String gitlink, String version, String stamp) {
+		synchronized (next) {
+			next.setString(SECTION, handle, KEY_GITLINK, gitlink);
+			next.setString(SECTION, handle, KEY_VERSION, version);
+			next.setString(SECTION, handle, KEY_STAMP, stamp);
+		}
+	}
+
+	/** Replace the recorded state with everything skipped or recorded since loading.  Modules not mentioned are forgotten. */
+	public void save() throws IOException {
+		file.getParentFile().mkdirs();
+		synchronized (next) {
+			next.save();
+		}
+	}
+
+	/**
+	 * Compose the stamp for a module: size and mtime of its gitdir pointer, HEAD,
+	 * index, and the release branch for {@code version} (loose or packed), all of
+	 * which checkouts and fetches touch.
+	 *
+	 * @param verifying
+	 *                if true, return null when any of those files were modified
+	 *                too close to when the state file was written to be trusted.
+	 * @return the stamp, or null if the module doesn't look like it's there at all.
+	 */
+	private String stamp(String path, String version, boolean verifying) {
+		File worktree = new File(repo.getWorkTree(), path);
+		File dotgit = new File(worktree, Constants.DOT_GIT);
+		File gitdir = dotgit.isDirectory() ? dotgit : new File(new File(repo.getDirectory(), "modules"), path);
+		File[] files = new File[] {
+			dotgit,
+			new File(gitdir, Constants.HEAD),
+			new File(gitdir, "index"),
+			new File(gitdir, Constants.R_HEADS+"mdm/release/"+version),
+			new File(gitdir, Constants.PACKED_REFS),
+		};
+		if (!dotgit.exists())
+			return null;
+		StringBuilder stamp = new StringBuilder();
+		for (File f : files) {
+			long mtime = f.lastModified();
+			if (verifying && mtime / 1000 >= written / 1000)
+				return null;
+			stamp.append(f.length()).append(':').append(mtime).append(' ');
+		}
+		return stamp.substring(0, stamp.length()-1);
+	}
+}
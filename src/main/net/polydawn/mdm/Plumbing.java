@@ -24,11 +24,13 @@ import java.net.*;
 import java.text.*;
 import java.util.*;
 import net.polydawn.mdm.errors.*;
+import net.polydawn.mdm.jgit.*;
 import net.polydawn.mdm.util.*;
 import org.apache.commons.lang.*;
 import org.eclipse.jgit.api.*;
 import org.eclipse.jgit.api.ResetCommand.*;
 import org.eclipse.jgit.api.errors.*;
+import org.eclipse.jgit.dircache.*;
 import org.eclipse.jgit.errors.ConfigInvalidException;
 import org.eclipse.jgit.internal.*;
 import org.eclipse.jgit.lib.*;
@@ -36,13 +38,26 @@ import org.eclipse.jgit.revwalk.*;
 import org.eclipse.jgit.storage.file.*;
 import org.eclipse.jgit.submodule.*;
 import org.eclipse.jgit.transport.*;
+import org.eclipse.jgit.treewalk.*;
 import org.eclipse.jgit.treewalk.filter.*;
+import org.eclipse.jgit.util.FS;
 import us.exultant.ahs.iob.*;
 import us.exultant.ahs.util.*;
 
 public class Plumbing {
 	// this method is getting to be quite a misnomer, it enforces a lot more state than just fetching
 	public static boolean fetch(Repository repo, MdmModuleDependency module) throws ConfigInvalidException, MdmRepositoryIOException, MdmRepositoryStateException, MdmException, IOException {
+		return fetch(repo, module, null, FetchProgress.NONE);
+	}
+
+	/**
+	 * @param groups
+	 *                if not null, releases from urls several modules share are fetched
+	 *                through this, once for all of them.
+	 * @param progress
+	 *                watches the fetches from remotes.
+	 */
+	public static boolean fetch(Repository repo, MdmModuleDependency module, FetchGroups groups, FetchProgress progress) throws ConfigInvalidException, MdmRepositoryIOException, MdmRepositoryStateException, MdmException, IOException {
 		switch (module.getStatus().getType()) {
 			case MISSING:
 				throw new MajorBug();
@@ -109,8 +124,11 @@ public class Plumbing {
 					}
 
 				try {
-					if (initLocalConfig(repo, module))
-						repo.getConfig().save();
+					// the parent repo config is shared by every module, and `mdm update` may be running several fetches at once; serialize writes to it.
+					synchronized (repo) {
+						if (initLocalConfig(repo, module))
+							repo.getConfig().save();
+					}
 				} catch (IOException e) {
 					throw new MdmRepositoryIOException("save changes", true, "the local git configuration file", e);
 				}
@@ -133,36 +151,97 @@ public class Plumbing {
 				}
 
 				final String versionBranchName = "refs/heads/mdm/release/"+module.getVersionName();
-				final String versionTagName = "refs/tags/release/"+module.getVersionName();
 
 				/* Fetch only the branch labelled with the version requested. */
-				if (module.getRepo().getRef(versionBranchName) == null) try {
-					RefSpec releaseBranchRef = new RefSpec()
-						.setForceUpdate(true)
-						.setSource(versionBranchName)
-						.setDestination(versionBranchName);
-					RefSpec releaseTagRef = new RefSpec()
-						.setForceUpdate(true)
-						.setSource(versionTagName)
-						.setDestination(versionTagName);
-					new Git(module.getRepo()).fetch()
-						.setRemote("origin")
-						.setRefSpecs(releaseBranchRef, releaseTagRef)
-						.setTagOpt(TagOpt.NO_TAGS)
-						.call();
-				} catch (InvalidRemoteException e) {
-					throw new MdmRepositoryStateException("find a valid remote origin in the config for the submodule", module.getHandle(), e);
-				} catch (TransportException e) {
-					URIish remote = null;
-					try {	//XXX: if we went through all the work to resolve the remote like the fetch command does, we could just as well do it and hand the resolved uri to fetch for better consistency.
-						remote = new RemoteConfig(module.getRepo().getConfig(), "origin").getURIs().get(0);
-					} catch (URISyntaxException e1) {}
-					throw new MdmRepositoryIOException("fetch from a remote", false, remote.toASCIIString(), e).setAdditionalMessage("check your connectivity and try again?");
-				} catch (GitAPIException e) {
-					throw new MajorBug("an unrecognized problem occurred.  please file a bug report.", e);
+				// this still brings the release commit's whole ancestry along, which for infix releases is all of mdm/infix.
+				// only the release commit's tree is needed to fill the working tree, but the jgit we build against can't negotiate a shallow fetch (it has no depth option and no shallow file support at all), and hand-copying a single commit would leave a gitdir with missing parents that neither jgit nor git could be told about.
+				// once jgit can do depth 1 fetches, asking for one here (and in FetchGroups) is all it should take.
+				if (module.getRepo().getRef(versionBranchName) == null) {
+					// resolved the same way the fetch command will, including any insteadof rewrites initModuleConfig just copied in.
+					URIish remote = getOriginUri(module.getRepo());
+					Trace.Span span = Trace.begin("fetch", "fetch")
+						.arg("module", module.getHandle())
+						.arg("version", module.getVersionName())
+						.arg("remote", String.valueOf(remote));
+					long packBytesBefore = Trace.isRecording() ? packBytes(module.getRepo()) : 0;
+					long packObjectsBefore = Trace.isRecording() ? packObjects(module.getRepo()) : 0;
+					List<RefSpec> releaseRefs = releaseRefSpecs(module.getVersionName());
+
+					/* With a shared object store, the release is fetched into the store, and the module borrows the objects from there. */
+					Repository shared = null;
+					SharedObjectStore store = SharedObjectStore.of(repo.getConfig());
+					if (store != null && remote != null) try {
+						shared = store.adopt(module.getRepo(), remote);
+					} catch (IOException e) {
+						throw new MdmRepositoryIOException("set up the shared object store", true, store.getDirectory().toString(), e);
+					}
+					try {
+						/* Releases from a url other modules also want are fetched for all of them at once, into the store or a scratch repo. */
+						Repository source = shared;
+						if (groups != null && remote != null && groups.isGrouped(remote)) {
+							try {
+								source = groups.fetch(remote, shared, progress);
+							} catch (IOException e) {
+								throw new MdmRepositoryIOException("fetch from a remote", true, repo.getDirectory()+"/mdm/fetch", e);
+							}
+						} else if (shared != null && shared.getRef(versionBranchName) == null) {
+							// nothing to do if another checkout on this machine already brought this release into the store.
+							FetchProgress.Fetch monitor = progress.begin(module.getHandle(), shared);
+							try {
+								new Git(shared).fetch()
+									.setRemote(remote.toString())
+									.setRefSpecs(releaseRefs)
+									.setTagOpt(TagOpt.NO_TAGS)
+									.setTransportConfigCallback(SshUserInfoHelper.CALLBACK)
+									.setProgressMonitor(monitor)
+									.call();
+							} finally {
+								monitor.done();
+							}
+						}
+						if (source == null) {
+							FetchProgress.Fetch monitor = progress.begin(module.getHandle(), module.getRepo());
+							try {
+								new Git(module.getRepo()).fetch()
+									.setRemote("origin")
+									.setRefSpecs(releaseRefs)
+									.setTagOpt(TagOpt.NO_TAGS)
+									.setTransportConfigCallback(SshUserInfoHelper.CALLBACK)
+									.setProgressMonitor(monitor)
+									.call();
+							} finally {
+								monitor.done();
+							}
+						} else {
+							// the module just takes its refs from there; from the store it can already see every object they need.
+							new Git(module.getRepo()).fetch()
+								.setRemote(source.getDirectory().getPath())
+								.setRefSpecs(releaseRefs)
+								.setTagOpt(TagOpt.NO_TAGS)
+								.call();
+						}
+					} catch (InvalidRemoteException e) {
+						throw new MdmRepositoryStateException("find a valid remote origin in the config for the submodule", module.getHandle(), e);
+					} catch (TransportException e) {
+						throw new MdmRepositoryIOException("fetch from a remote", false, remote == null ? "origin" : remote.toASCIIString(), e).setAdditionalMessage("check your connectivity and try again?");
+					} catch (GitAPIException e) {
+						throw new MajorBug("an unrecognized problem occurred.  please file a bug report.", e);
+					} finally {
+						if (shared != null) shared.close();
+						if (Trace.isRecording())
+							span.arg("bytes", packBytes(module.getRepo()) - packBytesBefore)
+								.arg("objects", packObjects(module.getRepo()) - packObjectsBefore);
+						span.end();
+					}
 				}
 
+				/* We may have just gained a release branch; anyone asking which version a commit is will need to look again. */
+				ReleaseBranchIndex.invalidate(module.getRepo());
+
 				/* Drop the files into the working tree. */
+				Trace.Span span = Trace.begin("checkout", "checkout")
+					.arg("module", module.getHandle())
+					.arg("version", module.getVersionName());
 				try {
 					new Git(module.getRepo()).checkout()
 						.setName(versionBranchName)
@@ -182,6 +261,8 @@ public class Plumbing {
 					throw new MdmRepositoryStateException(module.getHandle(), e); // this currently gets translated to a :'( exception and it's probably more like a :(
 				} catch (GitAPIException e) {
 					throw new MajorBug("an unrecognized problem occurred.  please file a bug report.", e);
+				} finally {
+					span.end();
 				}
 				return true;
 			default:
@@ -189,6 +270,95 @@ public class Plumbing {
 		}
 	}
 
+	/**
+	 * The total size of the pack files in a repo (or the store it borrows objects
+	 * from, which doesn't count), for telling how much a fetch brought in. Fetched
+	 * objects always arrive as a pack.
+	 */
+	static long packBytes(Repository repo) {
+		File[] packs = new File(repo.getDirectory(), "objects/pack").listFiles();
+		long total = 0;
+		if (packs != null)
+			for (File pack : packs)
+				if (pack.getName().endsWith(".pack"))
+					total += pack.length();
+		return total;
+	}
+
+	/**
+	 * The total number of objects in a repo's pack files, read from the fanout table
+	 * at the head of each pack's index. Like {@link #packBytes(Repository)}, for
+	 * telling how much a fetch brought in.
+	 */
+	static long packObjects(Repository repo) {
+		File[] indexes = new File(repo.getDirectory(), "objects/pack").listFiles();
+		long total = 0;
+		if (indexes != null)
+			for (File index : indexes)
+				if (index.getName().endsWith(".idx"))
+					try {
+						DataInputStream in = new DataInputStream(new FileInputStream(index));
+						try {
+							// a version 2 index starts with a magic number and version; version 1 starts right in on the fanout.  the last fanout entry is the object count.
+							int skip = in.readInt() == 0xff744f63 ? 8 + 255*4 : 255*4;
+							in.skipBytes(skip - 4);
+							total += in.readInt() & 0xFFFFFFFFL;
+						} finally {
+							in.close();
+						}
+					} catch (IOException e) {
+						// just being counted for a trace; a pack that's being written or removed right now doesn't matter.
+					}
+		return total;
+	}
+
+	/** The refspecs that fetch a release: its branch, and its tag. */
+	public static List<RefSpec> releaseRefSpecs(String version) {
+		String versionBranchName = "refs/heads/mdm/release/"+version;
+		String versionTagName = "refs/tags/release/"+version;
+		return Arrays.asList(
+			new RefSpec()
+				.setForceUpdate(true)
+				.setSource(versionBranchName)
+				.setDestination(versionBranchName),
+			new RefSpec()
+				.setForceUpdate(true)
+				.setSource(versionTagName)
+				.setDestination(versionTagName)
+		);
+	}
+
+	/**
+	 * Resolve a url the way a module's fetch will: with the {@code url.*.insteadof}
+	 * rewrites from the parent repo's config (which {@link #initModuleConfig} copies
+	 * into each module) applied. Returns null if the url can't be parsed.
+	 */
+	public static URIish resolveUrl(Config parentConfig, String url) {
+		Config cfg = new Config();
+		for (String base : parentConfig.getSubsections(ConfigConstants.CONFIG_KEY_URL))
+			cfg.setStringList(ConfigConstants.CONFIG_KEY_URL, base, "insteadof", Arrays.asList(parentConfig.getStringList(ConfigConstants.CONFIG_KEY_URL, base, "insteadof")));
+		cfg.setString(ConfigConstants.CONFIG_REMOTE_SECTION, "origin", ConfigConstants.CONFIG_KEY_URL, url);
+		try {
+			List<URIish> uris = new RemoteConfig(cfg, "origin").getURIs();
+			return uris.isEmpty() ? null : uris.get(0);
+		} catch (URISyntaxException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * The url of a repo's "origin" remote, after any insteadof rewrites in its config
+	 * have been applied; or null if it has no usable one.
+	 */
+	public static URIish getOriginUri(Repository repo) {
+		try {
+			List<URIish> uris = new RemoteConfig(repo.getConfig(), "origin").getURIs();
+			return uris.isEmpty() ? null : uris.get(0);
+		} catch (URISyntaxException e) {
+			return null;
+		}
+	}
+
 	/**
 	 * Similar to calling `git submodule init [module]`.  Also updates the MdmModule cache of values.
 	 * @return true if repo.getConfig() has been modified and should be saved.
@@ -293,19 +463,28 @@ public class Plumbing {
 	 * http API).
 	 */
 	public static void setMdmRemote(MdmModule module) {
-		String url = module.getUrlLocal();
-		if (isGithubHttpUrl(url) && !url.endsWith(".git")) {
+		String url = getMdmRemoteUrl(module);
+		module.getRepo().getConfig().setString(ConfigConstants.CONFIG_REMOTE_SECTION, "origin", ConfigConstants.CONFIG_KEY_URL, url);
+		module.getRepo().getConfig().setString(ConfigConstants.CONFIG_REMOTE_SECTION, "origin", "fetch", "+refs/heads/mdm/init:refs/remotes/origin/mdm/init");
+	}
+
+	/**
+	 * The url {@link #setMdmRemote(MdmModule)} gives a module's origin remote: the one
+	 * from the parent repo's local config, or from gitmodules if the module hasn't been
+	 * initialized yet, with github urls fixed up.
+	 */
+	public static String getMdmRemoteUrl(MdmModule module) {
+		String url = module.getUrlLocal() != null ? module.getUrlLocal() : module.getUrlHistoric();
+		if (url != null && isGithubHttpUrl(url) && !url.endsWith(".git")) {
 			// Github 404's unknown user agents only from some urls, so in order to have jgit accept the same urls that cgit will accept, we rewrite to the url that always responds correctly.
 			url += ".git";
 		}
-		module.getRepo().getConfig().setString(ConfigConstants.CONFIG_REMOTE_SECTION, "origin", ConfigConstants.CONFIG_KEY_URL, url);
-		module.getRepo().getConfig().setString(ConfigConstants.CONFIG_REMOTE_SECTION, "origin", "fetch", "+refs/heads/mdm/init:refs/remotes/origin/mdm/init");
+		return url;
 	}
 
 	/**
-	 * wield `git ls-remote` to get a list of branches matching the labelling pattern
-	 * mdm releases use. works locally or remote over any transport git itself
-	 * supports.
+	 * Get the list of versions released at a url, sorted, answering from the
+	 * {@link VersionManifestCache} configured for {@code repo} when it can.
 	 *
 	 * @param repo
 	 *                this argument is completely stupid and should not be required.
@@ -316,23 +495,202 @@ public class Plumbing {
 	 * @throws InvalidRemoteException
 	 */
 	public static List<String> getVersionManifest(Repository repo, String releasesUrl) throws InvalidRemoteException, TransportException, GitAPIException {
-		Collection<Ref> refs = new Git(repo).lsRemote()
-			.setRemote(releasesUrl)
-			.call();
-		final String mdmReleaseRefPrefix = "refs/heads/mdm/release/";
-		List<String> v = new ArrayList<String>();
-		for (Ref ref : refs) {
-			if (ref.getName().startsWith(mdmReleaseRefPrefix))
-				v.add(ref.getName().substring(mdmReleaseRefPrefix.length()));
+		return VersionManifestCache.of(repo.getConfig()).getVersions(repo, releasesUrl, null);
+	}
+
+	/**
+	 * Get the list of branches matching the labelling pattern mdm releases use.
+	 * works locally or remote over any transport git itself supports. Always asks
+	 * the remote; see {@link #getVersionManifest(Repository, String)} for the cached
+	 * way.
+	 * <p>
+	 * A releases repo on the local filesystem is opened directly, and only its refs
+	 * under {@code refs/heads/mdm/release/} are read (from packed-refs and that one
+	 * directory), rather than listing every tag it has. Anywhere else we wield
+	 * `git ls-remote`, which gets the whole advertisement and filters it here: the
+	 * jgit we build against only speaks protocol v0, so it can't ask the remote for
+	 * just the refs with a given prefix.
+	 *
+	 * @throws GitAPIException
+	 * @throws TransportException
+	 * @throws InvalidRemoteException
+	 */
+	public static List<String> listVersions(Repository repo, String releasesUrl) throws InvalidRemoteException, TransportException, GitAPIException {
+		final String mdmReleaseRefPrefix = ReleaseBranchIndex.RELEASE_BRANCH_PREFIX;
+		List<String> v = null;
+		File localGitDir = getLocalGitDir(resolveRemote(repo, releasesUrl));
+		if (localGitDir != null) try {
+			Repository releases = new RepositoryBuilder().setGitDir(localGitDir).setMustExist(true).build();
+			try {
+				v = new ArrayList<String>(releases.getRefDatabase().getRefs(mdmReleaseRefPrefix).keySet());
+			} finally {
+				releases.close();
+			}
+		} catch (IOException e) {
+			/* can't read it directly after all; ls-remote will make a better error of it, if there is one. */
+		}
+		if (v == null) {
+			Trace.Span span = Trace.begin("fetch", "ls-remote").arg("remote", releasesUrl);
+			Collection<Ref> refs;
+			try {
+				refs = new Git(repo).lsRemote()
+					.setRemote(releasesUrl)
+					.setTransportConfigCallback(SshUserInfoHelper.CALLBACK)
+					.call();
+				span.arg("refs", refs.size());
+			} finally {
+				span.end();
+			}
+			v = new ArrayList<String>();
+			for (Ref ref : refs) {
+				if (ref.getName().startsWith(mdmReleaseRefPrefix))
+					v.add(ref.getName().substring(mdmReleaseRefPrefix.length()));
+			}
 		}
 		Collections.sort(v, new VersionComparator());
 		return v;
 	}
 
+	/** The url a fetch or ls-remote of {@code releasesUrl} from {@code repo} would really talk to: the named remote's url if there is one, else {@code releasesUrl} itself. */
+	public static String resolveRemote(Repository repo, String releasesUrl) {
+		try {
+			RemoteConfig remote = new RemoteConfig(repo.getConfig(), releasesUrl);
+			if (!remote.getURIs().isEmpty())
+				return remote.getURIs().get(0).toString();
+		} catch (URISyntaxException e) {}
+		return releasesUrl;
+	}
+
+	/** If the url names a repo on this filesystem, its git directory; otherwise null. */
+	public static File getLocalGitDir(String url) {
+		File path;
+		try {
+			URIish uri = new URIish(url);
+			if (uri.getScheme() != null && !uri.getScheme().equals("file"))
+				return null;
+			if (uri.getHost() != null)
+				return null;
+			path = new File(uri.getPath());
+			// relative to user.dir explicitly: the daemon sets it to each client's working directory, and newer jvms don't look at it when resolving relative files.
+			if (!path.isAbsolute())
+				path = new File(System.getProperty("user.dir"), uri.getPath());
+		} catch (URISyntaxException e) {
+			return null;
+		}
+		File dotGit = new File(path, Constants.DOT_GIT);
+		if (new File(dotGit, "refs").isDirectory())
+			return dotGit;
+		if (new File(path, "refs").isDirectory())
+			return path;
+		return null;
+	}
+
 	public static boolean isCommitedGitlink(Repository repo, String path) throws IOException {
 		return SubmoduleWalk.forIndex(repo).setFilter(PathFilter.create(path)).next();
 	}
 
+	/**
+	 * Find the gitlinks at the given paths in each of several commits, with one
+	 * recursive walk per commit.
+	 *
+	 * @return map from path to the set of gitlink ids at that path in any of the
+	 *         commits. Paths that aren't a gitlink in any of them are absent.
+	 */
+	public static Map<String,Set<ObjectId>> getGitlinks(Repository repo, Collection<? extends AnyObjectId> commits, Collection<String> paths) throws IOException {
+		Map<String,Set<ObjectId>> gitlinks = new HashMap<String,Set<ObjectId>>();
+		if (paths.isEmpty())
+			return gitlinks;
+		TreeFilter filter = PathFilterGroup.createFromStrings(paths);
+		RevWalk revWalk = new RevWalk(repo);
+		try {
+			for (AnyObjectId commit : commits) {
+				TreeWalk treeWalk = new TreeWalk(revWalk.getObjectReader());
+				treeWalk.setRecursive(true);
+				treeWalk.setFilter(filter);
+				treeWalk.addTree(revWalk.parseCommit(commit).getTree());
+				while (treeWalk.next()) {
+					if (treeWalk.getFileMode(0) != FileMode.GITLINK) continue;
+					Set<ObjectId> ids = gitlinks.get(treeWalk.getPathString());
+					if (ids == null) {
+						ids = new HashSet<ObjectId>();
+						gitlinks.put(treeWalk.getPathString(), ids);
+					}
+					ids.add(treeWalk.getObjectId(0));
+				}
+			}
+		} finally {
+			revWalk.release();
+		}
+		return gitlinks;
+	}
+
+	/**
+	 * Cheaply check a repository for uncommitted changes. The index is compared to
+	 * HEAD's tree, and then each tracked file's length and mtime as recorded in the
+	 * index are compared to what the filesystem says now. Files are only read if the
+	 * index itself says their stat data can't be trusted, and untracked files aren't
+	 * looked for at all, so this is much faster than a full status on big working
+	 * trees, at the cost of calling a file dirty if it was merely touched and missing
+	 * brand new files entirely.
+	 */
+	public static boolean hasStatDirtyFiles(Repository repo) throws IOException {
+		DirCache dc = repo.readDirCache();
+
+		// anything staged but not committed?
+		ObjectId headTree = repo.resolve(Constants.HEAD+"^{tree}");
+		TreeWalk tw = new TreeWalk(repo);
+		try {
+			tw.setRecursive(true);
+			if (headTree != null)
+				tw.addTree(headTree);
+			else
+				tw.addTree(new EmptyTreeIterator());
+			tw.addTree(new DirCacheIterator(dc));
+			tw.setFilter(TreeFilter.ANY_DIFF);
+			if (tw.next())
+				return true;
+		} finally {
+			tw.release();
+		}
+
+		// anything in the working tree that doesn't look like what the index last saw?
+		FS fs = repo.getFS();
+		File workTree = repo.getWorkTree();
+		for (int i = 0; i < dc.getEntryCount(); i++) {
+			DirCacheEntry entry = dc.getEntry(i);
+			if (entry.getStage() != DirCacheEntry.STAGE_0)
+				return true;
+			if (entry.getFileMode() == FileMode.GITLINK)
+				continue;	// nested submodules can speak for themselves.
+			File file = new File(workTree, entry.getPathString());
+			if (!fs.exists(file))
+				return true;
+			if (entry.isSmudged()) {
+				// written too close to the index itself for the stat data to be trusted (this is normal right after a checkout).  only the content can tell us.
+				if (entry.getFileMode() != FileMode.REGULAR_FILE && entry.getFileMode() != FileMode.EXECUTABLE_FILE)
+					return true;
+				InputStream in = new FileInputStream(file);
+				try {
+					if (!entry.getObjectId().equals(new ObjectInserter.Formatter().idFor(Constants.OBJ_BLOB, file.length(), in)))
+						return true;
+				} finally {
+					in.close();
+				}
+				continue;
+			}
+			if (fs.length(file) != entry.getLength())
+				return true;
+			long indexTime = entry.getLastModified();
+			long fileTime = fs.lastModified(file);
+			// either side may have only had whole seconds to work with, in which case that's all we can compare.
+			if (indexTime % 1000 == 0 || fileTime % 1000 == 0) {
+				if (indexTime / 1000 != fileTime / 1000)
+					return true;
+			} else if (indexTime != fileTime)
+				return true;
+		}
+		return false;
+	}
 
 	/**
 	 * Create a new "empty" commit in a new branch. If the branch name already exists,
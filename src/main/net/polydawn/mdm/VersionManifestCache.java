@@ -0,0 +1,174 @@
+/*
+ * Copyright 2012 - 2014 Eric Myhre <http://exultant.us>
+ *
+ * This file is part of mdm <https://github.com/heavenlyhash/mdm/>.
+ *
+ * mdm is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.polydawn.mdm;
+
+import java.io.*;
+import java.util.*;
+import org.eclipse.jgit.api.errors.*;
+import org.eclipse.jgit.api.errors.TransportException;
+import org.eclipse.jgit.errors.*;
+import org.eclipse.jgit.lib.*;
+import org.eclipse.jgit.storage.file.*;
+import org.eclipse.jgit.util.FS;
+
+/**
+ * Remembers the list of versions each releases url offered when last asked, so that
+ * {@link Plumbing#getVersionManifest} doesn't have to list every ref on the remote
+ * each time. One small file per url, in {@code mdm.manifestcache} (by default
+ * {@code ~/.cache/mdm/manifests}).
+ * <p>
+ * For remotes on the local filesystem, the cached list is revalidated by a stamp of
+ * the remote's ref files (sizes and mtimes, as {@link MdmUpdateState} does), so it's
+ * used exactly as long as the remote's refs haven't changed. Other remotes have no
+ * cheap way to ask whether anything changed (the git protocol's only answer is the
+ * full ref advertisement), so their lists are trusted for {@code mdm.manifestttl}
+ * seconds (default 300), then listed again. A list that doesn't have a version the
+ * caller is specifically looking for is always listed again, so a release made a
+ * moment ago is never hidden.
+ * <p>
+ * Offline, the cache is all there is: any cached list is used however old it is,
+ * and a url that was never listed is an error.
+ */
+public class VersionManifestCache {
+	public static VersionManifestCache of(Config cfg) {
+		String section = MdmConfigConstants.User.SECTION;
+		String path = cfg.getString(section, null, MdmConfigConstants.User.MANIFEST_CACHE.toString());
+		File dir;
+		if (path == null || path.trim().length() == 0)
+			dir = new File(FS.DETECTED.userHome(), ".cache/mdm/manifests");
+		else if (path.trim().equals("~") || path.trim().startsWith("~/"))
+			dir = new File(FS.DETECTED.userHome(), path.trim().substring(1));
+		else
+			dir = new File(path.trim());
+		long ttl = cfg.getLong(section, null, MdmConfigConstants.User.MANIFEST_TTL.toString(), DEFAULT_TTL);
+		return new VersionManifestCache(dir, ttl * 1000);
+	}
+
+	/** How many seconds a list of versions from a remote that isn't on this filesystem is trusted for, unless configured otherwise. */
+	public static final long DEFAULT_TTL = 300;
+
+	public VersionManifestCache(File directory, long ttlMillis) {
+		this.directory = directory;
+		this.ttl = ttlMillis;
+	}
+
+	private final File directory;
+	private final long ttl;
+	private boolean offline;
+
+	private static final String SECTION = "manifest";
+	private static final String KEY_URL = "url";
+	private static final String KEY_LISTED = "listed";
+	private static final String KEY_STAMP = "stamp";
+	private static final String KEY_VERSION = "version";
+
+	/** Answer from the cache only, no matter how old, and never contact the remote. */
+	public VersionManifestCache setOffline(boolean offline) {
+		this.offline = offline;
+		return this;
+	}
+
+	public boolean isOffline() {
+		return offline;
+	}
+
+	/**
+	 * @param repo
+	 *                the repo the url is interpreted relative to, as for
+	 *                {@link Plumbing#getVersionManifest(Repository, String)}.
+	 * @param releasesUrl
+	 *                a url, or the name of a remote configured in {@code repo}.
+	 * @param wanted
+	 *                a version the caller is looking for, or null.
+	 * @throws MdmExitMessage
+	 *                 if offline and the url's versions have never been listed.
+	 */
+	public List<String> getVersions(Repository repo, String releasesUrl, String wanted) throws InvalidRemoteException, TransportException, GitAPIException {
+		String url = Plumbing.resolveRemote(repo, releasesUrl);
+		FileBasedConfig entry = new FileBasedConfig(fileFor(url), FS.DETECTED);
+		boolean cached = false;
+		try {
+			if (entry.getFile().isFile()) {
+				entry.load();
+				cached = url.equals(entry.getString(SECTION, null, KEY_URL));
+			}
+		} catch (IOException e) {
+			/* it's just a cache.  if we can't read it, we ask the remote. */
+		} catch (ConfigInvalidException e) {
+			/* likewise. */
+		}
+
+		File localGitDir = Plumbing.getLocalGitDir(url);
+		String stamp = localGitDir == null ? null : stamp(localGitDir);
+		if (cached) {
+			List<String> versions = Arrays.asList(entry.getStringList(SECTION, null, KEY_VERSION));
+			if (offline)
+				return versions;
+			boolean fresh = (stamp != null)
+				? stamp.equals(entry.getString(SECTION, null, KEY_STAMP))
+				: System.currentTimeMillis() - entry.getLong(SECTION, null, KEY_LISTED, 0) < ttl;
+			if (fresh && (wanted == null || versions.contains(wanted)))
+				return versions;
+		} else if (offline) {
+			throw new MdmExitMessage(":(", "working offline, and the versions available from "+url+" have never been listed before.  try again without --offline?");
+		}
+
+		List<String> versions = Plumbing.listVersions(repo, releasesUrl);
+		entry.clear();
+		entry.setString(SECTION, null, KEY_URL, url);
+		entry.setLong(SECTION, null, KEY_LISTED, System.currentTimeMillis());
+		if (stamp != null)
+			entry.setString(SECTION, null, KEY_STAMP, stamp);
+		entry.setStringList(SECTION, null, KEY_VERSION, versions);
+		try {
+			directory.mkdirs();
+			entry.save();
+		} catch (IOException e) {
+			/* couldn't cache it.  we'll just ask again next time. */
+		}
+		return versions;
+	}
+
+	private File fileFor(String url) {
+		return new File(directory, ObjectId.fromRaw(Constants.newMessageDigest().digest(Constants.encode(url))).name());
+	}
+
+	/** Sizes and mtimes of every file that could hold a release ref.  If none of them changed, neither did the list of releases. */
+	static String stamp(File gitDir) {
+		StringBuilder stamp = new StringBuilder();
+		File packedRefs = new File(gitDir, Constants.PACKED_REFS);
+		stamp.append(packedRefs.length()).append(':').append(packedRefs.lastModified());
+		stampDir(new File(gitDir, "refs/heads/mdm/release"), stamp);
+		return stamp.toString();
+	}
+
+	private static void stampDir(File dir, StringBuilder stamp) {
+		stamp.append(' ').append(dir.lastModified());
+		File[] children = dir.listFiles();
+		if (children == null)
+			return;
+		Arrays.sort(children);
+		for (File child : children)
+			if (child.isDirectory())
+				stampDir(child, stamp);
+			else
+				stamp.append(' ').append(child.length()).append(':').append(child.lastModified());
+	}
+}
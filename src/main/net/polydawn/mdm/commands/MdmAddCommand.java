@@ -70,6 +70,8 @@ public class MdmAddCommand extends MdmCommand {
 		// pick out the version requested.
 		// may be null, as with local name, we'll prompt for it later.
 		version = args.getString("version");
+
+		offline = args.getBoolean("offline") == Boolean.TRUE;
 	}
 
 	public void validate() throws MdmExitMessage {
@@ -86,6 +88,9 @@ public class MdmAddCommand extends MdmCommand {
 
 	String version;
 
+	/** List versions from the manifest cache only. */
+	boolean offline = false;
+
 	public MdmExitMessage call() throws ConfigInvalidException, IOException, MdmException {
 		assertInRepoRoot();
 
@@ -141,7 +146,7 @@ public class MdmAddCommand extends MdmCommand {
 
 	List<String> fetchVersions() throws MdmExitMessage {
 		try {
-			return Plumbing.getVersionManifest(repo, url);
+			return VersionManifestCache.of(repo.getConfig()).setOffline(offline).getVersions(repo, url, version);
 		} catch (InvalidRemoteException e) {
 			throw new MdmExitMessage(":(", "the provided url doesn't parse like a url!");
 		} catch (TransportException e) {
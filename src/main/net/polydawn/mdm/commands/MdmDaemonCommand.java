@@ -0,0 +1,57 @@
+/*
+ * Copyright 2012 - 2014 Eric Myhre <http://exultant.us>
+ *
+ * This file is part of mdm <https://github.com/heavenlyhash/mdm/>.
+ *
+ * mdm is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.polydawn.mdm.commands;
+
+import java.io.*;
+import net.polydawn.mdm.*;
+import net.sourceforge.argparse4j.inf.*;
+import org.eclipse.jgit.lib.*;
+
+public class MdmDaemonCommand extends MdmCommand {
+	public MdmDaemonCommand(Repository repo) {
+		super(repo);
+	}
+
+	public void parse(Namespace args) {
+		stop = args.getBoolean("stop") == Boolean.TRUE;
+		idleTimeout = args.getInt("idle_timeout");
+	}
+
+	/** Stop a running daemon instead of starting one. */
+	boolean stop;
+	/** Minutes without a command before the daemon shuts itself down. */
+	int idleTimeout;
+
+	public void validate() throws MdmExitMessage {
+		if (idleTimeout <= 0)
+			throw new MdmExitMessage(":(", "--idle-timeout must be at least one minute.");
+	}
+
+	public MdmExitMessage call() throws IOException {
+		if (stop) {
+			// a running daemon answers `daemon --stop` itself, before we ever get here.
+			return new MdmExitMessage(":I", "no mdm daemon is running.");
+		}
+		if (MdmDaemonClient.isRunning())
+			return new MdmExitMessage(":I", "an mdm daemon is already running.");
+		new MdmDaemon(idleTimeout * 60000L).serve();
+		return new MdmExitMessage(":D", "mdm daemon stopped.");
+	}
+}
@@ -22,17 +22,21 @@ package net.polydawn.mdm.commands;
 import java.io.*;
 import java.util.*;
 import java.util.regex.*;
+import java.util.zip.*;
 import net.polydawn.mdm.*;
 import net.polydawn.mdm.errors.*;
+import net.polydawn.mdm.jgit.*;
 import net.polydawn.mdm.util.*;
 import net.sourceforge.argparse4j.inf.*;
 import org.eclipse.jgit.api.*;
 import org.eclipse.jgit.api.MergeCommand.FastForwardMode;
 import org.eclipse.jgit.api.errors.*;
+import org.eclipse.jgit.dircache.*;
 import org.eclipse.jgit.lib.*;
 import org.eclipse.jgit.revwalk.*;
 import org.eclipse.jgit.treewalk.*;
 import org.eclipse.jgit.treewalk.filter.*;
+import org.eclipse.jgit.util.TemporaryBuffer;
 import us.exultant.ahs.util.*;
 
 public class MdmReleaseCommand extends MdmCommand {
@@ -46,6 +50,7 @@ public class MdmReleaseCommand extends MdmCommand {
 		snapshotPath = relRepoPath+"/"+version;
 		inputPath = args.getString("files");
 		accumulateData = !(args.getBoolean("skip_accumulation") == Boolean.TRUE);
+		inMemory = args.getBoolean("in_memory") == Boolean.TRUE;
 	}
 
 	public void validate() throws MdmExitMessage {
@@ -63,6 +68,13 @@ public class MdmReleaseCommand extends MdmCommand {
 	String snapshotPath;
 	public String inputPath;
 	public boolean accumulateData;
+	/** Build the release and accumulation commits directly in the object database instead of by checking things out.  Ignored in infix mode. */
+	public boolean inMemory;
+	/** Where an archive comes from when {@link #inputPath} is {@link #FILES_FROM_STDIN}. */
+	InputStream stdin = System.in;
+
+	/** The value of {@code --files} that means "read a tar or zip archive from stdin". */
+	public static final String FILES_FROM_STDIN = "-";
 
 	public MdmExitMessage call() throws IOException, MdmException, MdmExitMessage {
 		MdmModuleRelease relModule;
@@ -73,14 +85,29 @@ public class MdmReleaseCommand extends MdmCommand {
 		}
 		Repository relRepo = relModule.getRepo();
 
+		// infix releases branch from existing history, so they always get made the checkout way; only releases founding a new root of history can be built in memory.
+		boolean infixMode = relRepo.getRef("refs/heads/mdm/infix") != null;
+		// an archive on stdin has nowhere to be copied from, so it can only ever be released the in-memory way.
+		boolean fromStdin = FILES_FROM_STDIN.equals(inputPath);
+		if (fromStdin && infixMode)
+			return new MdmExitMessage(":(", "releasing from an archive on stdin isn't supported when the releases repo is in infix mode.");
+		boolean buildInMemory = (inMemory || fromStdin) && !infixMode;
+
 		relModule.assertPresentsAsReleaseRepo();
 		assertReleaseRepoDoesntAlreadyContain(relModule, version);
-		assertReleaseRepoClean(relModule);
+		assertReleaseRepoClean(relModule, buildInMemory);
 
-		List<String> inputFiles = selectInputFiles();
+		List<String> inputFiles = fromStdin ? null : selectInputFiles();
+
+		if (buildInMemory) {
+			MdmExitMessage problem = releaseInMemory(relRepo, inputFiles);
+			if (problem != null)
+				return problem;
+			finishRelease(relRepo);
+			return new MdmExitMessage(":D", "release version "+version+" complete");
+		}
 
 		// create a branch for the release commit.  depending on whether or not infix mode is enabled, this is either branching from the infix branch, or it's founding a new root of history.
-		boolean infixMode = relRepo.getRef("refs/heads/mdm/infix") != null;
 		if (infixMode)
 			try {
 				new Git(relRepo).checkout()
@@ -116,6 +143,7 @@ public class MdmReleaseCommand extends MdmCommand {
 		File inputBase = new File(inputPath).getCanonicalFile();
 		if (inputBase.isFile()) inputBase = inputBase.getParentFile();
 		File relRepoFile = new File(relRepoPath).getCanonicalFile();
+		Trace.Span span = traceIngest(inputBase, inputFiles);
 		for (String input : inputFiles) {
 			File inputFull = new File(inputBase, input);
 			File dest = new File(relRepoFile, input);
@@ -139,14 +167,15 @@ public class MdmReleaseCommand extends MdmCommand {
 		} catch (GitAPIException e) {
 			throw new MajorBug("an unrecognized problem occurred.  please file a bug report.", e);
 		}
+		span.end();
+		span = Trace.begin("release", "commit").arg("version", version);
 		try {
 			CommitCommand commit = new Git(relRepo).commit()
 				.setMessage("release version "+version);
 			if (!infixMode) {
 				commit.setAmend(true);	// because our mechanism for creating an orphan branch starts us with an empty commit.
-				PersonIdent convergenceIdent = new PersonIdent("mdm", "", new Date(0), TimeZone.getTimeZone("GMT"));
-				commit.setAuthor(convergenceIdent);
-				commit.setCommitter(convergenceIdent);
+				commit.setAuthor(convergenceIdent());
+				commit.setCommitter(convergenceIdent());
 			}
 			commit.call();
 
@@ -171,6 +200,9 @@ public class MdmReleaseCommand extends MdmCommand {
 		}
 
 
+		span.end();
+		span = Trace.begin("release", "accumulate").arg("version", version);
+
 		// generate an accumulation commit.  do this from the master branch, but don't submit it yet, because when we roll in the artifacts we want them in a subdirectory so that when master is checked out all the versions are splayed out in the working tree at once.
 		try {
 			new Git(relRepo).checkout()
@@ -259,7 +291,78 @@ public class MdmReleaseCommand extends MdmCommand {
 			throw new MajorBug("an unrecognized problem occurred.  please file a bug report.", e);
 		}
 
-		// commit the new hash of the releases-repo into the project main repo (if we are operating in a canonically placed releases submodule)
+		span.end();
+
+		finishRelease(relRepo);
+		return new MdmExitMessage(":D", "release version "+version+" complete");
+	}
+
+	/** Everything after the release commits are made, whichever way they were made. */
+	private void finishRelease(Repository relRepo) throws IOException, MdmException {
+		Trace.Span span = Trace.begin("release", "version index");
+		updateVersionIndex(relRepo);
+		span.end();
+		span = Trace.begin("release", "repack");
+		repackReleases(relRepo);
+		span.end();
+		span = Trace.begin("release", "commit gitlink");
+		commitReleasesGitlink();
+		span.end();
+	}
+
+	/** Begin the span for taking in the input files, with their total size if anyone's recording. */
+	private Trace.Span traceIngest(File inputBase, List<String> inputFiles) {
+		Trace.Span span = Trace.begin("release", "ingest").arg("version", version);
+		if (inputFiles != null && Trace.isRecording()) {
+			long bytes = 0;
+			for (String input : inputFiles)
+				bytes += sizeOf(new File(inputBase, input));
+			span.arg("files", inputFiles.size()).arg("bytes", bytes);
+		}
+		return span;
+	}
+
+	private static long sizeOf(File file) {
+		File[] children = file.listFiles();
+		if (children == null)
+			return file.length();
+		long total = 0;
+		for (File child : children)
+			total += sizeOf(child);
+		return total;
+	}
+
+	/**
+	 * Bring the releases repo's {@link PublishedVersionIndex} up to date with its
+	 * release branches, now there's a new one.
+	 */
+	void updateVersionIndex(Repository relRepo) throws IOException, MdmException {
+		switch (PublishedVersionIndex.update(relRepo, "release version "+version)) {
+			case NEW:
+			case FORCED:
+			case NO_CHANGE:
+				return;
+			default:
+				throw new MdmException("aborted due to concurrent modification of repo");
+		}
+	}
+
+	/**
+	 * Pack the new release as deltas against the release before it, if the releases
+	 * repo's config asks for that with {@code mdm.release.repack}. See
+	 * {@link ReleaseRepacker}.
+	 */
+	void repackReleases(Repository relRepo) throws IOException {
+		if (!relRepo.getConfig().getBoolean(MdmConfigConstants.Release.SECTION, MdmConfigConstants.Release.SUBSECTION, MdmConfigConstants.Release.REPACK.toString(), false))
+			return;
+		new ReleaseRepacker(relRepo).repack(version);
+	}
+
+	/**
+	 * Commit the new hash of the releases repo into the project main repo, if we are
+	 * operating in a canonically placed releases submodule.
+	 */
+	void commitReleasesGitlink() throws IOException, MdmException {
 		if (isInRepoRoot() && relRepoPath.equals("releases") && Plumbing.isCommitedGitlink(repo, "releases")) {
 			try {
 				new Git(repo).commit()
@@ -284,8 +387,344 @@ public class MdmReleaseCommand extends MdmCommand {
 				throw new MajorBug("an unrecognized problem occurred.  please file a bug report.", e);
 			}
 		}
+	}
 
-		return new MdmExitMessage(":D", "release version "+version+" complete");
+	/** Author and committer of release commits: the same every time, so that releasing the same files under the same version name converges on the same commit. */
+	static PersonIdent convergenceIdent() {
+		return new PersonIdent("mdm", "", new Date(0), TimeZone.getTimeZone("GMT"));
+	}
+
+	/**
+	 * Make the release the fast way: hash the input files straight into the releases
+	 * repo's object database, and build the release commit and the accumulation
+	 * commit with no checkouts at all. The results are the same commits the checkout
+	 * way makes (the release commit hash is identical; the accumulation commit has
+	 * the same tree and parents), except that ignore rules aren't consulted: every
+	 * input file is released.
+	 * <p>
+	 * The working tree is only touched if master is checked out and accumulation is
+	 * on, in which case the new version's directory is written (and nothing else;
+	 * everything else on master is already there).
+	 *
+	 * <p>
+	 * If {@code inputFiles} is null, the files come from an archive on stdin instead
+	 * (see {@link #insertArchiveTree(ObjectInserter, BlobPacker, InputStream)}).
+	 *
+	 * @return null if all went well, or a message if the release can't proceed.
+	 */
+	MdmExitMessage releaseInMemory(Repository relRepo, List<String> inputFiles) throws IOException, MdmException, MdmExitMessage {
+		File relRepoFile = new File(relRepoPath).getCanonicalFile();
+
+		if (accumulateData && new File(relRepoFile, version).exists())
+			return new MdmExitMessage(":'(", "couldn't make the directory named \""+version+"\" to put the releases into because there was already something there.");
+
+		ObjectInserter inserter = relRepo.newObjectInserter();
+		BlobPacker packer = new BlobPacker(relRepo, Runtime.getRuntime().availableProcessors(), CompressionPolicy.of(relRepo.getConfig()));
+		ObjectReader reader = relRepo.newObjectReader();
+		RevWalk revWalk = new RevWalk(reader);
+		try {
+			ObjectId masterId = relRepo.resolve("refs/heads/master");
+			RevCommit master = revWalk.parseCommit(masterId);
+
+			// the release commit: just the artifacts, founding a new root of history.
+			ObjectId releaseTreeId;
+			Trace.Span span;
+			if (inputFiles == null) {
+				span = traceIngest(null, null).arg("stdin", true);
+				releaseTreeId = insertArchiveTree(inserter, packer, stdin);
+			} else {
+				File inputBase = new File(inputPath).getCanonicalFile();
+				if (inputBase.isFile()) inputBase = inputBase.getParentFile();
+				span = traceIngest(inputBase, inputFiles);
+				releaseTreeId = insertInputTree(relRepo, inserter, packer, inputBase, inputFiles);
+			}
+			span.end();
+			span = Trace.begin("release", "commit").arg("version", version);
+			CommitBuilder release = new CommitBuilder();
+			release.setTreeId(releaseTreeId);
+			release.setAuthor(convergenceIdent());
+			release.setCommitter(convergenceIdent());
+			release.setMessage("release version "+version);
+			ObjectId releaseId = inserter.insert(release);
+
+			// the accumulation commit: everything already on master, plus the artifacts in a version-named directory (or not, if we're skipping accumulation).
+			ObjectId accumulationTreeId = master.getTree();
+			if (accumulateData) {
+				DirCache accumulation = DirCache.newInCore();
+				DirCacheBuilder builder = accumulation.builder();
+				builder.addTree(new byte[0], DirCacheEntry.STAGE_0, reader, master.getTree());
+				builder.addTree(Constants.encode(version), DirCacheEntry.STAGE_0, reader, releaseTreeId);
+				builder.finish();
+				accumulationTreeId = accumulation.writeTree(inserter);
+			}
+			CommitBuilder accumulation = new CommitBuilder();
+			accumulation.setTreeId(accumulationTreeId);
+			accumulation.setParentIds(masterId, releaseId);
+			PersonIdent ident = new PersonIdent(relRepo);
+			accumulation.setAuthor(ident);
+			accumulation.setCommitter(ident);
+			accumulation.setMessage("merge release version "+version+" to master");
+			ObjectId accumulationId = inserter.insert(accumulation);
+			inserter.flush();
+
+			// point all the refs at it.
+			// this tag will be removed in a future release, as it's no longer required for any structural purpose (same as in the checkout way).
+			createRef(relRepo, "refs/heads/mdm/release/"+version, releaseId, "commit: release version "+version);
+			createRef(relRepo, "refs/tags/release/"+version, releaseId, "tagged release/"+version);
+			RefUpdate ru = relRepo.updateRef("refs/heads/master");
+			ru.setNewObjectId(accumulationId);
+			ru.setExpectedOldObjectId(masterId);
+			ru.setRefLogMessage("commit (merge): merge release version "+version+" to master", false);
+			if (ru.update(revWalk) != RefUpdate.Result.FAST_FORWARD)
+				throw new MdmException("aborted due to concurrent modification of repo");
+			createRef(relRepo, "refs/tags/mdm/master/"+version, accumulationId, "tagged mdm/master/"+version);
+
+			// if master is what's checked out, the index and working tree need the new version directory to stay clean.
+			if (accumulateData && (Constants.R_HEADS+"master").equals(relRepo.getFullBranch()))
+				checkoutVersionDir(relRepo, reader, relRepoFile, releaseTreeId);
+			span.end();
+		} finally {
+			revWalk.release();
+			reader.release();
+			packer.release();
+			inserter.release();
+		}
+		return null;
+	}
+
+	/**
+	 * Hash the input files into blobs, and return the id of a tree of them, just as
+	 * copying them into the releases repo and running `git add` and `git commit`
+	 * would have. Plain files are deflated on several threads and land in one new
+	 * pack; anything that needs converting on the way in (line endings, if the
+	 * releases repo asks for that) is read here. Symlinks are followed, the same as
+	 * the copy does: the release gets the file or directory they point at.
+	 */
+	private ObjectId insertInputTree(Repository relRepo, ObjectInserter inserter, BlobPacker packer, File inputBase, List<String> inputFiles) throws IOException {
+		DirCache dc = DirCache.newInCore();
+		DirCacheBuilder builder = dc.builder();
+		insertInputEntries(relRepo, builder, inserter, packer, inputBase, PathFilterGroup.createFromStrings(inputFiles), "", null);
+		packer.flush();
+		// entries reached through symlinks come out of order; the builder sorts them.
+		builder.finish();
+		return dc.writeTree(inserter);
+	}
+
+	/**
+	 * Add entries for the files under {@code base} that {@code filter} lets through,
+	 * at their path under {@code base} with {@code prefix} in front; or, if
+	 * {@code rename} is given, at that path instead (for the one file a symlink
+	 * points at).
+	 */
+	private void insertInputEntries(Repository relRepo, DirCacheBuilder builder, ObjectInserter inserter, BlobPacker packer, File base, TreeFilter filter, String prefix, String rename) throws IOException {
+		TreeWalk treeWalk = new TreeWalk(relRepo);
+		try {
+			// the releases repo's options (filemode, autocrlf) decide how files are read, since that's whose `git add` it would have been.
+			treeWalk.addTree(new FileTreeIterator(base, relRepo.getFS(), relRepo.getConfig().get(WorkingTreeOptions.KEY)));
+			treeWalk.setRecursive(true);
+			treeWalk.setFilter(filter);
+			while (treeWalk.next()) {
+				WorkingTreeIterator file = treeWalk.getTree(0, WorkingTreeIterator.class);
+				String path = rename != null ? rename : prefix + treeWalk.getPathString();
+				File onDisk = new File(base, treeWalk.getPathString());
+				if (file.getEntryFileMode() == FileMode.SYMLINK) {
+					File target = onDisk.getCanonicalFile();
+					if (target.isDirectory())
+						insertInputEntries(relRepo, builder, inserter, packer, target, TreeFilter.ALL, path+"/", null);
+					else if (target.isFile())
+						insertInputEntries(relRepo, builder, inserter, packer, target.getParentFile(), PathFilter.create(target.getName()), "", path);
+					else
+						throw new FileNotFoundException("Source '" + onDisk + "' does not exist");
+					continue;
+				}
+				DirCacheEntry entry = new DirCacheEntry(path);
+				entry.setFileMode(file.getEntryFileMode());
+				if (entry.getFileMode() == FileMode.GITLINK) {
+					entry.setObjectId(file.getEntryObjectId());
+				} else if (file.getEntryContentLength() == file.getEntryLength()) {
+					packer.insert(entry, onDisk, file.getEntryLength());
+				} else {
+					long length = file.getEntryContentLength();
+					InputStream in = file.openEntryStream();
+					try {
+						entry.setObjectId(inserter.insert(Constants.OBJ_BLOB, length, in));
+					} finally {
+						in.close();
+					}
+				}
+				builder.add(entry);
+			}
+		} finally {
+			treeWalk.release();
+		}
+	}
+
+	/**
+	 * Hash the files in an archive into blobs, and return the id of a tree of them.
+	 * Tar (plain or gzipped) and zip are recognized by their first bytes. Each entry
+	 * is read once, and hashed and deflated as it's read; all the blobs land in one
+	 * new pack. The exception is zip entries that don't give their size up front
+	 * (streaming zip writers put it after the content instead): those are read into a
+	 * buffer first, which stays in memory unless the entry is big, and are deflated
+	 * on another thread while we read on. Tar entries keep their executable bit and
+	 * symlinks, and so do zip entries made on unix (see {@link ZipModes}); other zip
+	 * entries are plain files.
+	 */
+	ObjectId insertArchiveTree(ObjectInserter inserter, BlobPacker packer, InputStream in) throws IOException, MdmExitMessage {
+		// entries keyed by path, so if an archive has the same path twice, the last one wins, just as extracting it would.
+		Map<String,DirCacheEntry> entries = new TreeMap<String,DirCacheEntry>();
+		// hard links get their linked entry's id, but only once it's known, so they wait until the blobs are all done.
+		Map<String,DirCacheEntry> hardlinks = new HashMap<String,DirCacheEntry>();
+
+		in = new BufferedInputStream(in);
+		in.mark(4);
+		byte[] magic = new byte[4];
+		int n = 0;
+		for (int r; n < magic.length && (r = in.read(magic, n, magic.length - n)) > 0; n += r);
+		in.reset();
+		if (n == 4 && magic[0] == 'P' && magic[1] == 'K' && magic[2] == 3 && magic[3] == 4) {
+			ZipModes modes = new ZipModes(in);
+			ZipInputStream zip = new ZipInputStream(modes);
+			// which entry each path came from, to look its mode up by once we've reached the central directory.
+			Map<String,String> names = new HashMap<String,String>();
+			for (ZipEntry ze; (ze = zip.getNextEntry()) != null;) {
+				if (ze.isDirectory()) continue;
+				String path = archivePath(ze.getName());
+				entries.put(path, insertBlob(packer, path, FileMode.REGULAR_FILE, zip, ze.getSize()));
+				names.put(path, ze.getName());
+			}
+			// a symlink's content is its target, same as a git symlink blob, so only the mode needs changing.
+			Map<String,Integer> unixModes = modes.readModes();
+			for (Map.Entry<String,String> name : names.entrySet()) {
+				Integer mode = unixModes.get(name.getValue());
+				if (mode == null) continue;
+				if ((mode & 0170000) == 0120000)
+					entries.get(name.getKey()).setFileMode(FileMode.SYMLINK);
+				else if ((mode & 0100) != 0)
+					entries.get(name.getKey()).setFileMode(FileMode.EXECUTABLE_FILE);
+			}
+		} else {
+			if (n >= 2 && (magic[0] & 0xFF) == 0x1f && (magic[1] & 0xFF) == 0x8b)
+				in = new GZIPInputStream(in, 65536);
+			TarReader tar = new TarReader(in);
+			for (TarReader.Entry te; (te = tar.next()) != null;) {
+				if (te.isDirectory()) continue;
+				String path = archivePath(te.path);
+				hardlinks.remove(path);
+				if (te.isSymlink()) {
+					byte[] target = Constants.encode(te.linkTarget);
+					DirCacheEntry entry = new DirCacheEntry(path);
+					entry.setFileMode(FileMode.SYMLINK);
+					packer.insert(entry, target);
+					entries.put(path, entry);
+				} else if (te.isHardlink()) {
+					String linkedPath = archivePath(te.linkTarget);
+					DirCacheEntry linked = hardlinks.containsKey(linkedPath) ? hardlinks.get(linkedPath) : entries.get(linkedPath);
+					if (linked == null)
+						throw new MdmExitMessage(":(", "the archive has a hard link at "+path+" to "+te.linkTarget+", which isn't earlier in the archive.");
+					DirCacheEntry entry = new DirCacheEntry(path);
+					entries.put(path, entry);
+					hardlinks.put(path, linked);
+				} else if (te.isFile()) {
+					entries.put(path, insertBlob(packer, path, te.isExecutable() ? FileMode.EXECUTABLE_FILE : FileMode.REGULAR_FILE, tar.getEntryStream(), te.size));
+				}
+				// anything else (devices, fifos) is nothing git could hold, so we pass it by.
+			}
+		}
+
+		if (entries.isEmpty())
+			throw new MdmExitMessage(":(", "no files were found in the archive on stdin.\nrelease aborted.");
+		packer.flush();
+		for (Map.Entry<String,DirCacheEntry> link : hardlinks.entrySet())
+			entries.get(link.getKey()).copyMetaData(link.getValue());
+
+		DirCache dc = DirCache.newInCore();
+		DirCacheBuilder builder = dc.builder();
+		for (DirCacheEntry entry : entries.values())
+			builder.add(entry);
+		builder.finish();
+		return dc.writeTree(inserter);
+	}
+
+	/** @param size the length of the entry's content, or -1 if the archive didn't say. */
+	private static DirCacheEntry insertBlob(BlobPacker packer, String path, FileMode mode, InputStream in, long size) throws IOException {
+		DirCacheEntry entry = new DirCacheEntry(path);
+		entry.setFileMode(mode);
+		if (size >= 0) {
+			packer.insert(entry, in, size);
+			return entry;
+		}
+		// the object header needs the length before the content, so an entry that doesn't say gets a buffer of its own.
+		TemporaryBuffer.LocalFile buffer = new TemporaryBuffer.LocalFile();
+		try {
+			buffer.copy(in);
+			buffer.close();
+		} catch (IOException e) {
+			buffer.destroy();
+			throw e;
+		}
+		packer.insert(entry, buffer);
+		return entry;
+	}
+
+	/** Clean up a path from an archive into a path in the release, refusing anything that would land outside it. */
+	static String archivePath(String name) throws MdmExitMessage {
+		StringBuilder path = new StringBuilder();
+		if (name.startsWith("/"))
+			throw new MdmExitMessage(":(", "the archive contains an absolute path ("+name+"), which can't be released.");
+		for (String segment : name.split("/")) {
+			if (segment.length() == 0 || segment.equals(".")) continue;
+			if (segment.equals("..") || segment.equals(Constants.DOT_GIT))
+				throw new MdmExitMessage(":(", "the archive contains a path that can't be released ("+name+").");
+			if (path.length() > 0) path.append('/');
+			path.append(segment);
+		}
+		if (path.length() == 0)
+			throw new MdmExitMessage(":(", "the archive contains an entry with an empty path.");
+		return path.toString();
+	}
+
+	/** Write the files of a release into the version-named directory of the releases repo, and add them to its index. */
+	private void checkoutVersionDir(Repository relRepo, ObjectReader reader, File relRepoFile, ObjectId releaseTreeId) throws IOException {
+		DirCache dc = relRepo.lockDirCache();
+		try {
+			DirCacheBuilder builder = dc.builder();
+			builder.keep(0, dc.getEntryCount());
+			TreeWalk treeWalk = new TreeWalk(reader);
+			try {
+				treeWalk.addTree(releaseTreeId);
+				treeWalk.setRecursive(true);
+				while (treeWalk.next()) {
+					DirCacheEntry entry = new DirCacheEntry(version+"/"+treeWalk.getPathString());
+					entry.setFileMode(treeWalk.getFileMode(0));
+					entry.setObjectId(treeWalk.getObjectId(0));
+					File file = new File(relRepoFile, entry.getPathString());
+					if (entry.getFileMode() == FileMode.GITLINK) {
+						file.mkdirs();
+					} else {
+						file.getParentFile().mkdirs();
+						DirCacheCheckout.checkoutEntry(relRepo, file, entry, reader);
+					}
+					builder.add(entry);
+				}
+			} finally {
+				treeWalk.release();
+			}
+			builder.finish();
+			dc.write();
+			dc.commit();
+		} finally {
+			dc.unlock();
+		}
+	}
+
+	private static void createRef(Repository repo, String name, ObjectId id, String refLogMessage) throws IOException, MdmException {
+		RefUpdate ru = repo.updateRef(name);
+		ru.setNewObjectId(id);
+		ru.setExpectedOldObjectId(ObjectId.zeroId());
+		ru.setRefLogMessage(refLogMessage, false);
+		if (ru.update() != RefUpdate.Result.NEW)
+			throw new MdmException("aborted due to concurrent modification of repo");
 	}
 
 	MdmModuleRelease loadReleaseModule() {
@@ -299,7 +738,17 @@ public class MdmReleaseCommand extends MdmCommand {
 	 *                 if the releases repo has uncommitted changes.
 	 */
 	void assertReleaseRepoClean(MdmModuleRelease relModule) throws MdmExitMessage {
-		if (relModule.hasDirtyFiles())
+		assertReleaseRepoClean(relModule, false);
+	}
+
+	/**
+	 * @param quick
+	 *                if true, only use the stat-level check (see
+	 *                {@link MdmModule#hasDirtyFiles(boolean)}). Fine when we're not
+	 *                going to do any checkouts in the releases repo.
+	 */
+	void assertReleaseRepoClean(MdmModuleRelease relModule, boolean quick) throws MdmExitMessage {
+		if (relModule.hasDirtyFiles(quick))
 			throw new MdmExitMessage(":(", "there are uncommitted changes in the release repo.  cannot release.");
 	}
 
@@ -41,6 +41,7 @@ public class MdmStatusCommand extends MdmCommand {
 
 	private PrintStream os = System.out;
 	private String depName;
+	boolean quick;
 
 	public void setPrintStream(PrintStream os) {
 		this.os = os;
@@ -48,6 +49,7 @@ public class MdmStatusCommand extends MdmCommand {
 
 	public void parse(Namespace args) {
 		this.depName = args.getString("name");
+		this.quick = args.getBoolean("quick") == Boolean.TRUE;
 	}
 
 	public void validate() throws MdmExitMessage {}
@@ -119,7 +121,7 @@ public class MdmStatusCommand extends MdmCommand {
 					s.warnings.add("intended version is "+dependency.getVersionName()+", run `mdm update` to get it");
 				if (!dependency.getIndexId().equals(dependency.getHeadId()))
 					s.warnings.add("commit currently checked out does not match hash in parent project");
-				if (dependency.hasDirtyFiles())
+				if (dependency.hasDirtyFiles(quick))
 					s.warnings.add("there are uncommitted changes in this submodule");
 			}
 		}
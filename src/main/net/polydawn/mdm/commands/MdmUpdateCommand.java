@@ -21,17 +21,18 @@ package net.polydawn.mdm.commands;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 import net.polydawn.mdm.*;
 import net.polydawn.mdm.errors.*;
 import net.polydawn.mdm.jgit.*;
+import net.polydawn.mdm.util.*;
 import net.sourceforge.argparse4j.inf.*;
 import org.eclipse.jgit.api.*;
 import org.eclipse.jgit.api.errors.*;
 import org.eclipse.jgit.errors.*;
 import org.eclipse.jgit.lib.*;
-import org.eclipse.jgit.revwalk.*;
-import org.eclipse.jgit.treewalk.*;
 import us.exultant.ahs.iob.*;
+import us.exultant.ahs.util.*;
 import static net.polydawn.mdm.Loco.*;
 import static us.exultant.ahs.util.Strings.join;
 
@@ -43,25 +44,53 @@ public class MdmUpdateCommand extends MdmCommand {
 	public void parse(Namespace args) {
 		treatHashMismatchAsError = args.getBoolean("strict") == Boolean.TRUE;
 		performReclaim = args.getBoolean("reclaim") == Boolean.TRUE;
+		if (args.getInt("jobs") != null)
+			jobs = args.getInt("jobs");
+		if (args.getString("progress") != null)
+			progressStyle = args.getString("progress");
 	}
 
 	private boolean treatHashMismatchAsError = false;
 	private boolean performReclaim = false;
 
-	public void validate() throws MdmExitMessage {}
+	/** If a merge is in progress, the gitlink ids found at each module path in any of the merging commits.  Null otherwise. */
+	private Map<String,Set<ObjectId>> mergeGitlinks;
+
+	/** Modules that fetch from the same url, so their releases can be fetched together.  Only set while modules are being updated. */
+	private FetchGroups fetchGroups;
+
+	/** How many modules may be fetched and checked out at once.  One means we just walk the modules in order. */
+	int jobs = 1;
+
+	/** How to report fetch progress: "auto" (a live line on a terminal, nothing otherwise), "plain", "json", or "none". */
+	String progressStyle = "auto";
+
+	/** Watches the fetches from remotes.  Only set while modules are being updated. */
+	private FetchProgress progress;
+
+	public void validate() throws MdmExitMessage {
+		if (jobs < 1)
+			throw new MdmExitMessage(":(", "the number of jobs must be at least one.");
+	}
 
 	public MdmExitMessage call() throws ConfigInvalidException, IOException, GitAPIException {
 		try {
 			assertInRepo();
 		} catch (MdmExitMessage e) { return e; }
 
+		// modules that are exactly where the last update left them needn't even be loaded.
+		// reclaiming has to visit every module, though, and in the middle of a merge the index alone doesn't say what's acceptable.
+		MdmUpdateState state = MdmUpdateState.load(repo);
+		boolean trustState = !performReclaim && repo.readMergeHeads() == null;
+
 		MdmModuleSet moduleSet;
 		try {
-			moduleSet = new MdmModuleSet(repo);
+			moduleSet = new MdmModuleSet(repo, trustState ? state : null);
 		} catch (ConfigInvalidException e) {
 			throw new MdmExitInvalidConfig(Constants.DOT_GIT_MODULES);
 		}
 		Map<String,MdmModuleDependency> modules = moduleSet.getDependencyModules();
+		Set<String> skipped = moduleSet.getSkippedHandles();
 
 		// Go over every module and do what we can to it, keeping a list of who each kind of operation was performed on for summary output later.
 		List<MdmModule> impacted = new ArrayList<MdmModule>();
@@ -69,64 +98,58 @@ public class MdmUpdateCommand extends MdmCommand {
 		List<MdmModule> contorted = new ArrayList<MdmModule>();
 		List<String> removed = new ArrayList<String>();
 		int hashMismatchWarnings = 0;
-		int i = 0;
 		boolean fancy = System.console() != null;
-		for (MdmModuleDependency module : modules.values()) {
-			i++;
-			try {
-				os.print((fancy ? "\033[2K\r" : "") + "updating module "+i+" of "+modules.size()+": "+module.getHandle() +" ..." + (fancy ? "" : "\n"));
-				if (Plumbing.fetch(repo, module)) {
-					impacted.add(module);
-					ObjectId moduleHeadId = module.getRepo().resolve(Constants.HEAD);
-					List<ObjectId> mergeHeads = repo.readMergeHeads();
-					if (mergeHeads == null) {
-						// if there are no merges in progress, we check if the dependency version we fetched by name has the hash that's expected by the parent repo.
-						if (!moduleHeadId.equals(module.getIndexId())) {
-							// in putting the module to the version named in .gitmodules, we made it disagree with the parent index.
-							// this probably indicates oddness.
-							hashMismatchWarnings++;
-							os.println((fancy ? "\033[2K\r" : "") + "notice: in updating "+module.getHandle()+" to version "+module.getVersionName()+", mdm left the submodule with a different hash checked out than the parent repo expected.");
-						}
-					} else {
-						// if we're in the middle of a merge, we skip the normal hash validity check, because
-						// module.getIndexId() contains the index's hash for the submodule only, and that can set off false alarms.
-						// there's actually a valid *set* of hashes here, one from each merge head, and we consider them all.
-						boolean acceptable = false;
-						mergeHeads.add(repo.resolve(Constants.HEAD));
-						for (ObjectId incomingHead : mergeHeads) {
-							if (acceptable) break; // not required for correctness,just a shortcut
-							RevTree incomingHeadRootTree = new RevWalk(repo).parseCommit(incomingHead).getTree();
-							TreeWalk incomingHeadModuleTree = TreeWalk.forPath(repo, module.getPath(), incomingHeadRootTree);
-							if (incomingHeadModuleTree == null) continue; // this is null if there is no object at that location in the incoming merge head
-							if (incomingHeadModuleTree.getFileMode(0) != FileMode.GITLINK) continue; // also don't accept the object id if it's something other than a submodule gitlink on the incoming merge head
-							ObjectId incomingModuleHeadId = incomingHeadModuleTree.getObjectId(0);
-							acceptable |= moduleHeadId.equals(incomingModuleHeadId);
-						}
-						if (!acceptable) {
-							// in putting the module to the version named in .gitmodules, we didn't get a hash that agreed with *any* of the parent indexes.
-							hashMismatchWarnings++;
-							os.println((fancy ? "\033[2K\r" : "") + "notice: in updating "+module.getHandle()+" to version "+module.getVersionName()+", mdm left the submodule with a different hash checked out than *any* of the merging branches.  This is only expected if you changed the version name to a value also not present on any of the merging branches.");
-							// TODO: we could get even smarter and parse the gitmodules file from every merge head and use that to give a better qualification of the notice message.
-						}
-					}
-				} else {
-					if (performReclaim) Plumbing.markMdmClaim(module);
-					unphased.add(module);
-				}
-			} catch (MdmException e) {
-				os.println((fancy ? "\033[2K\r" : "") + "error: in updating "+module.getHandle()+" to version "+module.getVersionName()+", "+e);
-				contorted.add(module);
+		List<ObjectId> mergeHeads = repo.readMergeHeads();
+		if (mergeHeads != null) {
+			// gather what every merging branch has at each module's path now, in one walk per branch, rather than once per module later.
+			mergeHeads.add(repo.resolve(Constants.HEAD));
+			List<String> paths = new ArrayList<String>(modules.size());
+			for (MdmModuleDependency module : modules.values())
+				paths.add(module.getPath());
+			mergeGitlinks = Plumbing.getGitlinks(repo, mergeHeads, paths);
+		}
+		List<ModuleUpdate> results;
+		fetchGroups = new FetchGroups(repo, modules.values());
+		progress = makeProgress(fancy);
+		progress.start();
+		try {
+			if (jobs > 1 && modules.size() > 1)
+				results = updateConcurrently(modules.values(), fancy);
+			else
+				results = updateSequentially(modules.values(), fancy);
+		} finally {
+			progress.close();
+			progress = null;
+			fetchGroups.close();
+			fetchGroups = null;
+		}
+		for (ModuleUpdate result : results) {
+			switch (result.outcome) {
+				case IMPACTED:  impacted.add(result.module); break;
+				case UNPHASED:  unphased.add(result.module); break;
+				case CONTORTED: contorted.add(result.module); break;
 			}
+			if (result.hashMismatch)
+				hashMismatchWarnings++;
+			else if (result.outcome != Outcome.CONTORTED && moduleHeadMatchesIndex(result.module))
+				state.record(result.module);
+		}
+		try {
+			state.save();
+		} catch (IOException e) {
+			throw new MdmRepositoryIOException("save changes", true, "the mdm update state file", e);
 		}
 		os.print((fancy ? "\033[2K\r" : ""));
 
 		// look for other repositories that *aren't* currently linked as submodules.  if they were created by mdm, we should sweep up.
+		// this has to walk the working tree rather than just .git/modules: dependencies made by older versions of mdm keep their git dir in the working tree.
+		Trace.Span sweep = Trace.begin("update", "sweep unlinked");
 		SubrepoWalk subrepos = new SubrepoWalk(repo);
 		while (subrepos.next()) {
 			String subrepoPath = subrepos.getPathString();
 
 			// if it's something we're currently managing, of course we should pass that over
-			if (modules.get(subrepoPath) != null)
+			if (modules.get(subrepoPath) != null || skipped.contains(subrepoPath))
 				continue;
 
 			Repository subrepo = subrepos.getRepo();
@@ -151,6 +174,7 @@ public class MdmUpdateCommand extends MdmCommand {
 				/* we literally wouldn't be here if this was the case.  or, our job is already done by a race, I guess. */
 			}
 		}
+		sweep.arg("removed", removed.size()).end();
 
 		// explain notices about hash mismatches, if any occured.
 		if (hashMismatchWarnings > 0) {
@@ -174,7 +198,7 @@ public class MdmUpdateCommand extends MdmCommand {
 		StringBuilder status = new StringBuilder();
 		status.append("mdm dependencies have been updated (");
 		status.append(impacted.size()).append(" changed, ");
-		status.append(unphased.size()).append(" unaffected");
+		status.append(unphased.size() + skipped.size()).append(" unaffected");
 		if (contorted.size() > 0)
 			status.append(", ").append(contorted.size()).append(" contorted");
 		if (removed.size() > 0)
@@ -195,4 +219,151 @@ public class MdmUpdateCommand extends MdmCommand {
 		else
 			return new MdmExitMessage(":D", status.toString());
 	}
+
+	private FetchProgress makeProgress(boolean fancy) {
+		if (progressStyle.equals("plain"))
+			return new FetchProgress(os, FetchProgress.Style.PLAIN);
+		if (progressStyle.equals("json"))
+			return new FetchProgress(os, FetchProgress.Style.JSON);
+		if (progressStyle.equals("auto") && fancy)
+			return new FetchProgress(os, FetchProgress.Style.LIVE);
+		return FetchProgress.NONE;
+	}
+
+	private static boolean moduleHeadMatchesIndex(MdmModuleDependency module) throws IOException {
+		if (module.getRepo() == null || module.getIndexId() == null)
+			return false;
+		return module.getIndexId().equals(module.getRepo().resolve(Constants.HEAD));
+	}
+
+	/** What became of a single module during update.  The summary is composed from these, in module order. */
+	static class ModuleUpdate {
+		ModuleUpdate(MdmModuleDependency module) {
+			this.module = module;
+		}
+
+		final MdmModuleDependency module;
+		Outcome outcome;
+		boolean hashMismatch;
+		/** Notices and errors to show the user; held until the module's turn comes up so concurrent updates don't scramble the output. */
+		final List<String> messages = new ArrayList<String>();
+	}
+
+	static enum Outcome {
+		IMPACTED,
+		UNPHASED,
+		CONTORTED;
+	}
+
+	private List<ModuleUpdate> updateSequentially(Collection<MdmModuleDependency> modules, boolean fancy) throws ConfigInvalidException, IOException {
+		List<ModuleUpdate> results = new ArrayList<ModuleUpdate>(modules.size());
+		int i = 0;
+		for (MdmModuleDependency module : modules) {
+			i++;
+			os.print((fancy ? "\033[2K\r" : "") + "updating module "+i+" of "+modules.size()+": "+module.getHandle() +" ..." + (fancy ? "" : "\n"));
+			ModuleUpdate result = updateModule(module);
+			for (String message : result.messages)
+				os.println((fancy ? "\033[2K\r" : "") + message);
+			results.add(result);
+		}
+		return results;
+	}
+
+	/**
+	 * Update modules on a pool of {@link #jobs} threads. Every module has its own
+	 * gitdir, so the fetches and checkouts are independent; the only state they share
+	 * is the parent repo's config, which {@link Plumbing#fetch} serializes writes to.
+	 * Progress and messages are still reported in module order.
+	 */
+	private List<ModuleUpdate> updateConcurrently(Collection<MdmModuleDependency> modules, boolean fancy) throws ConfigInvalidException, IOException {
+		ExecutorService pool = Executors.newFixedThreadPool(Math.min(jobs, modules.size()));
+		try {
+			List<Future<ModuleUpdate>> pending = new ArrayList<Future<ModuleUpdate>>(modules.size());
+			for (final MdmModuleDependency module : modules)
+				pending.add(pool.submit(new Callable<ModuleUpdate>() {
+					public ModuleUpdate call() throws ConfigInvalidException, IOException {
+						return updateModule(module);
+					}
+				}));
+
+			List<ModuleUpdate> results = new ArrayList<ModuleUpdate>(modules.size());
+			int i = 0;
+			for (Future<ModuleUpdate> future : pending) {
+				i++;
+				ModuleUpdate result = await(future);
+				os.print((fancy ? "\033[2K\r" : "") + "updated module "+i+" of "+modules.size()+": "+result.module.getHandle() + (fancy ? "" : "\n"));
+				for (String message : result.messages)
+					os.println((fancy ? "\033[2K\r" : "") + message);
+				results.add(result);
+			}
+			return results;
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	private static ModuleUpdate await(Future<ModuleUpdate> future) throws ConfigInvalidException, IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new MdmRuntimeException("interrupted while waiting for dependencies to update", e);
+		} catch (ExecutionException e) {
+			// unwrap back to whatever the sequential loop would have thrown.
+			Throwable cause = e.getCause();
+			if (cause instanceof ConfigInvalidException) throw (ConfigInvalidException)cause;
+			if (cause instanceof IOException) throw (IOException)cause;
+			if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+			if (cause instanceof Error) throw (Error)cause;
+			throw new MajorBug("an unrecognized problem occurred.  please file a bug report.", cause);
+		}
+	}
+
+	/**
+	 * Fetch and check out one module, and check the result against the hashes the
+	 * parent repo expects. Prints nothing; anything worth saying is left in
+	 * {@link ModuleUpdate#messages}.
+	 */
+	private ModuleUpdate updateModule(MdmModuleDependency module) throws ConfigInvalidException, IOException {
+		ModuleUpdate result = new ModuleUpdate(module);
+		Trace.Span span = Trace.begin("update", "update module")
+			.arg("module", module.getHandle())
+			.arg("version", module.getVersionName());
+		try {
+			if (Plumbing.fetch(repo, module, fetchGroups, progress)) {
+				result.outcome = Outcome.IMPACTED;
+				ObjectId moduleHeadId = module.getRepo().resolve(Constants.HEAD);
+				if (mergeGitlinks == null) {
+					// if there are no merges in progress, we check if the dependency version we fetched by name has the hash that's expected by the parent repo.
+					if (!moduleHeadId.equals(module.getIndexId())) {
+						// in putting the module to the version named in .gitmodules, we made it disagree with the parent index.
+						// this probably indicates oddness.
+						result.hashMismatch = true;
+						result.messages.add("notice: in updating "+module.getHandle()+" to version "+module.getVersionName()+", mdm left the submodule with a different hash checked out than the parent repo expected.");
+					}
+				} else {
+					// if we're in the middle of a merge, we skip the normal hash validity check, because
+					// module.getIndexId() contains the index's hash for the submodule only, and that can set off false alarms.
+					// there's actually a valid *set* of hashes here, one from each merge head, and we consider them all.
+					// (only gitlinks were collected, so if some merge head has something other than a submodule at this path, it doesn't count.)
+					Set<ObjectId> acceptable = mergeGitlinks.get(module.getPath());
+					if (acceptable == null || !acceptable.contains(moduleHeadId)) {
+						// in putting the module to the version named in .gitmodules, we didn't get a hash that agreed with *any* of the parent indexes.
+						result.hashMismatch = true;
+						result.messages.add("notice: in updating "+module.getHandle()+" to version "+module.getVersionName()+", mdm left the submodule with a different hash checked out than *any* of the merging branches.  This is only expected if you changed the version name to a value also not present on any of the merging branches.");
+						// TODO: we could get even smarter and parse the gitmodules file from every merge head and use that to give a better qualification of the notice message.
+					}
+				}
+			} else {
+				if (performReclaim) Plumbing.markMdmClaim(module);
+				result.outcome = Outcome.UNPHASED;
+			}
+		} catch (MdmException e) {
+			result.messages.add("error: in updating "+module.getHandle()+" to version "+module.getVersionName()+", "+e);
+			result.outcome = Outcome.CONTORTED;
+		} finally {
+			span.arg("outcome", String.valueOf(result.outcome)).end();
+		}
+		return result;
+	}
 }
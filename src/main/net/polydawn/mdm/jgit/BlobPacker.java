@@ -0,0 +1,276 @@
+/*
+ * Copyright 2012 - 2014 Eric Myhre <http://exultant.us>
+ *
+ * This file is part of mdm <https://github.com/heavenlyhash/mdm/>.
+ *
+ * mdm is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.polydawn.mdm.jgit;
+
+import java.io.*;
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
+import org.eclipse.jgit.dircache.*;
+import org.eclipse.jgit.internal.storage.file.*;
+import org.eclipse.jgit.lib.*;
+import org.eclipse.jgit.transport.*;
+import org.eclipse.jgit.util.TemporaryBuffer;
+
+/**
+ * Hashes and deflates blobs on several threads at once, and writes them all into a
+ * single new pack in the repository instead of one loose object apiece.
+ * <p>
+ * Blobs are handed over along with the {@link DirCacheEntry} they're for; the entry's
+ * object id is filled in by the time {@link #flush()} returns. Nothing may read the
+ * entries' ids (or look for the blobs in the repository) before then.
+ * <p>
+ * Each worker deflates into its own buffer (which spills to a temp file if it gets
+ * big), so memory stays bounded no matter how large the files are; only the copy of
+ * finished objects into the pack is done one at a time. At most two blobs per thread
+ * are in hand at once: handing over another waits until one is done, so content
+ * given as bytes or buffers can't pile up faster than it's written. Blobs the
+ * repository already has, and blobs handed over more than once, are only hashed,
+ * not written.
+ * <p>
+ * How hard each blob is deflated is up to the {@link CompressionPolicy}, which gets a
+ * look at its path and first few bytes.
+ */
+public class BlobPacker {
+	public BlobPacker(Repository repo, int concurrency) {
+		this(repo, concurrency, CompressionPolicy.uniform(repo.getConfig().get(CoreConfig.KEY).getCompression()));
+	}
+
+	public BlobPacker(Repository repo, int concurrency, CompressionPolicy compression) {
+		this.repo = repo;
+		this.compression = compression;
+		this.executor = concurrency > 1 ? Executors.newFixedThreadPool(concurrency) : null;
+		this.inFlight = new Semaphore(concurrency * 2);
+	}
+
+	private final Repository repo;
+	private final CompressionPolicy compression;
+	private final ExecutorService executor;
+	/** One permit per blob handed over and not yet finished. */
+	private final Semaphore inFlight;
+	private final List<Future<?>> pending = new ArrayList<Future<?>>();
+
+	// everything below is only touched while holding the lock on `this`.
+	private PackFileWriter pack;
+	private ObjectReader reader;
+	private final ObjectIdOwnerMap<PackedObjectInfo> written = new ObjectIdOwnerMap<PackedObjectInfo>();
+
+	/** Read the file (which must be {@code length} bytes long) as the content of a blob for this entry. */
+	public void insert(final DirCacheEntry entry, final File file, final long length) throws IOException {
+		submit(new Callable<Void>() {
+			public Void call() throws IOException {
+				InputStream in = new FileInputStream(file);
+				try {
+					entry.setObjectId(insertBlob(entry.getPathString(), length, in));
+				} finally {
+					in.close();
+				}
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Read the stream (which must end after exactly {@code length} bytes) as the
+	 * content of a blob for this entry. This happens right away, on the calling
+	 * thread, since nothing else can be read from wherever the stream comes from
+	 * until it's done; that way the content is only read once, and never copied
+	 * anywhere first. Blobs handed over before keep being worked on meanwhile.
+	 */
+	public void insert(DirCacheEntry entry, InputStream in, long length) throws IOException {
+		entry.setObjectId(insertBlob(entry.getPathString(), length, in));
+	}
+
+	/**
+	 * Use the content of this buffer as the content of a blob for this entry. The
+	 * buffer is ours after this; it's destroyed once the blob is written.
+	 */
+	public void insert(final DirCacheEntry entry, final TemporaryBuffer content) throws IOException {
+		submit(new Callable<Void>() {
+			public Void call() throws IOException {
+				try {
+					InputStream in = content.openInputStream();
+					try {
+						entry.setObjectId(insertBlob(entry.getPathString(), content.length(), in));
+					} finally {
+						in.close();
+					}
+				} finally {
+					content.destroy();
+				}
+				return null;
+			}
+		});
+	}
+
+	/** Use these bytes as the content of a blob for this entry. */
+	public void insert(final DirCacheEntry entry, final byte[] content) throws IOException {
+		submit(new Callable<Void>() {
+			public Void call() throws IOException {
+				entry.setObjectId(insertBlob(entry.getPathString(), content.length, new ByteArrayInputStream(content)));
+				return null;
+			}
+		});
+	}
+
+	private void submit(Callable<Void> task) throws IOException {
+		if (executor == null) {
+			try {
+				task.call();
+			} catch (IOException e) {
+				throw e;
+			} catch (Exception e) {
+				throw new IOException(e);
+			}
+		} else {
+			try {
+				inFlight.acquire();
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException();
+			}
+			try {
+				pending.add(executor.submit(new Permitted(task)));
+			} catch (RejectedExecutionException e) {
+				inFlight.release();
+				throw new IOException(e);
+			}
+			// forget what's finished (speaking up now if any of it failed), so the list stays as short as the work in hand.
+			for (Iterator<Future<?>> itr = pending.iterator(); itr.hasNext();) {
+				Future<?> done = itr.next();
+				if (!done.isDone()) continue;
+				await(done);
+				itr.remove();
+			}
+		}
+	}
+
+	/** Gives back its permit when the task is done, however it went. */
+	private class Permitted implements Callable<Void> {
+		Permitted(Callable<Void> task) {
+			this.task = task;
+		}
+
+		private final Callable<Void> task;
+
+		public Void call() throws Exception {
+			try {
+				return task.call();
+			} finally {
+				inFlight.release();
+			}
+		}
+	}
+
+	private static void await(Future<?> task) throws IOException {
+		try {
+			task.get();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+			throw new IOException(e.getCause());
+		}
+	}
+
+	private ObjectId insertBlob(String path, long length, InputStream in) throws IOException {
+		MessageDigest md = Constants.newMessageDigest();
+		md.update(Constants.encodedTypeString(Constants.OBJ_BLOB));
+		md.update((byte) ' ');
+		md.update(Constants.encodeASCII(length));
+		md.update((byte) 0);
+
+		// the first bytes say whether the content is compressed already, which decides how hard to deflate it.
+		byte[] buf = new byte[8192];
+		int head = 0;
+		for (int n; head < CompressionPolicy.MAGIC_LENGTH && (n = in.read(buf, head, buf.length - head)) > 0; head += n);
+
+		TemporaryBuffer.LocalFile deflated = new TemporaryBuffer.LocalFile();
+		Deflater deflater = new Deflater(compression.levelFor(path, buf, head));
+		try {
+			DeflaterOutputStream out = new DeflaterOutputStream(deflated, deflater, 8192);
+			md.update(buf, 0, head);
+			out.write(buf, 0, head);
+			long total = head;
+			for (int n; (n = in.read(buf)) > 0; total += n) {
+				md.update(buf, 0, n);
+				out.write(buf, 0, n);
+			}
+			out.close();
+			if (total != length)
+				throw new IOException("expected "+length+" bytes of content but read "+total+"; did the file change while it was being read?");
+
+			ObjectId id = ObjectId.fromRaw(md.digest());
+			append(id, length, deflated);
+			return id;
+		} finally {
+			deflater.end();
+			deflated.destroy();
+		}
+	}
+
+	private synchronized void append(ObjectId id, long length, TemporaryBuffer deflated) throws IOException {
+		if (written.contains(id)) return;
+		if (reader == null) reader = repo.newObjectReader();
+		if (reader.has(id)) return;
+
+		if (pack == null) pack = new PackFileWriter(repo);
+		InputStream in = deflated.openInputStream();
+		try {
+			written.add(pack.writeWhole(id, Constants.OBJ_BLOB, length, in));
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Wait for every blob to be finished, and put the pack (if anything needed
+	 * writing) in place where the repository will find it.
+	 */
+	public void flush() throws IOException {
+		try {
+			for (Future<?> task : pending)
+				await(task);
+		} finally {
+			pending.clear();
+		}
+		synchronized (this) {
+			if (pack == null) return;
+			try {
+				File packFile = pack.finish();
+				if (repo.getObjectDatabase() instanceof ObjectDirectory)
+					((ObjectDirectory)repo.getObjectDatabase()).openPack(packFile);
+			} finally {
+				pack = null;
+			}
+		}
+	}
+
+	/** Stop the worker threads, and throw away anything not yet flushed. */
+	public void release() {
+		if (executor != null) executor.shutdownNow();
+		synchronized (this) {
+			if (reader != null) reader.release();
+			reader = null;
+			if (pack != null) pack.abort();
+			pack = null;
+		}
+	}
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2012 - 2014 Eric Myhre <http://exultant.us>
+ *
+ * This file is part of mdm <https://github.com/heavenlyhash/mdm/>.
+ *
+ * mdm is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.polydawn.mdm.jgit;
+
+import java.util.*;
+import net.polydawn.mdm.*;
+import org.eclipse.jgit.lib.*;
+
+/**
+ * Picks the zlib level for each blob. Content that's already compressed (archives,
+ * jars, most image formats) barely shrinks when deflated again, so it gets a
+ * separate, usually much cheaper, level; everything else gets the repo's
+ * {@code core.compression}. The level only changes how the object is stored, never
+ * its hash.
+ */
+public class CompressionPolicy {
+	/** Deflate everything at the same level. */
+	public static CompressionPolicy uniform(int level) {
+		return new CompressionPolicy(level, level, Collections.<String>emptySet());
+	}
+
+	/**
+	 * The policy a releases repo asks for: {@code core.compression} for most blobs,
+	 * and {@code mdm.release.compressedLevel} (default 0, meaning stored as-is) for
+	 * blobs that look compressed already. Extra extensions to treat as compressed can
+	 * be listed with {@code mdm.release.compressedExtension}.
+	 */
+	public static CompressionPolicy of(Config cfg) {
+		int level = cfg.get(CoreConfig.KEY).getCompression();
+		String section = MdmConfigConstants.Release.SECTION;
+		String subsection = MdmConfigConstants.Release.SUBSECTION;
+		int compressedLevel = cfg.getInt(section, subsection, MdmConfigConstants.Release.COMPRESSED_LEVEL.toString(), 0);
+		Set<String> extensions = new HashSet<String>(Arrays.asList(COMPRESSED_EXTENSIONS));
+		for (String ext : cfg.getStringList(section, subsection, MdmConfigConstants.Release.COMPRESSED_EXTENSION.toString()))
+			extensions.add(ext.toLowerCase(Locale.ROOT).replaceFirst("^\\.", ""));
+		return new CompressionPolicy(level, compressedLevel, extensions);
+	}
+
+	private CompressionPolicy(int level, int compressedLevel, Set<String> compressedExtensions) {
+		this.level = level;
+		this.compressedLevel = compressedLevel;
+		this.compressedExtensions = compressedExtensions;
+	}
+
+	private final int level;
+	private final int compressedLevel;
+	private final Set<String> compressedExtensions;
+
+	static final String[] COMPRESSED_EXTENSIONS = {
+		"jar", "war", "ear", "aar", "apk", "whl", "egg", "nupkg", "zip",
+		"gz", "tgz", "bz2", "tbz", "tbz2", "xz", "txz", "lz", "lzma", "lz4", "zst", "7z", "rar",
+		"deb", "rpm",
+		"png", "jpg", "jpeg", "gif", "webp",
+		"mp3", "mp4", "ogg", "webm",
+	};
+
+	/** How many leading bytes of a blob {@link #levelFor(String, byte[], int)} wants to see. */
+	public static final int MAGIC_LENGTH = 12;
+
+	/**
+	 * @param path
+	 *                the path the blob is released at, for its extension.
+	 * @param head
+	 *                the first bytes of the blob.
+	 * @param length
+	 *                how many bytes of {@code head} are valid (fewer than
+	 *                {@link #MAGIC_LENGTH} if the blob is shorter than that).
+	 * @return the zlib level to store this blob with.
+	 */
+	public int levelFor(String path, byte[] head, int length) {
+		if (level == compressedLevel) return level;
+		return looksCompressed(path, head, length) ? compressedLevel : level;
+	}
+
+	boolean looksCompressed(String path, byte[] head, int length) {
+		if (hasCompressedMagic(head, length)) return true;
+		int slash = path.lastIndexOf('/');
+		int dot = path.lastIndexOf('.');
+		if (dot <= slash + 1) return false;
+		return compressedExtensions.contains(path.substring(dot + 1).toLowerCase(Locale.ROOT));
+	}
+
+	static boolean hasCompressedMagic(byte[] b, int n) {
+		return
+			startsWith(b, n, 'P', 'K', 0x03, 0x04) ||	// zip, jar, and friends
+			startsWith(b, n, 'P', 'K', 0x05, 0x06) ||	// empty zip
+			startsWith(b, n, 0x1f, 0x8b) ||	// gzip
+			startsWith(b, n, 'B', 'Z', 'h') ||	// bzip2
+			startsWith(b, n, 0xfd, '7', 'z', 'X', 'Z', 0x00) ||	// xz
+			startsWith(b, n, 0x28, 0xb5, 0x2f, 0xfd) ||	// zstd
+			startsWith(b, n, 0x04, 0x22, 0x4d, 0x18) ||	// lz4
+			startsWith(b, n, '7', 'z', 0xbc, 0xaf, 0x27, 0x1c) ||	// 7z
+			startsWith(b, n, 'R', 'a', 'r', '!') ||	// rar
+			startsWith(b, n, 0x89, 'P', 'N', 'G') ||	// png
+			startsWith(b, n, 0xff, 0xd8, 0xff) ||	// jpeg
+			startsWith(b, n, 'G', 'I', 'F', '8') ||	// gif
+			(startsWith(b, n, 'R', 'I', 'F', 'F') && n >= 12 && b[8] == 'W' && b[9] == 'E' && b[10] == 'B' && b[11] == 'P');	// webp
+	}
+
+	private static boolean startsWith(byte[] b, int n, int... magic) {
+		if (n < magic.length) return false;
+		for (int i = 0; i < magic.length; i++)
+			if ((b[i] & 0xFF) != magic[i]) return false;
+		return true;
+	}
+}
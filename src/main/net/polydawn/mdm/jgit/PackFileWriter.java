@@ -0,0 +1,216 @@
+/*
+ * Copyright 2012 - 2014 Eric Myhre <http://exultant.us>
+ *
+ * This file is part of mdm <https://github.com/heavenlyhash/mdm/>.
+ *
+ * mdm is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.polydawn.mdm.jgit;
+
+import java.io.*;
+import java.security.*;
+import java.util.*;
+import java.util.zip.*;
+import org.eclipse.jgit.internal.storage.file.*;
+import org.eclipse.jgit.lib.*;
+import org.eclipse.jgit.transport.*;
+import org.eclipse.jgit.util.NB;
+
+/**
+ * Writes a pack file one object at a time, for when we've already decided how each
+ * object is stored (and deflated it) ourselves, then puts the pack and its index in
+ * place in the repository's pack directory. Not thread safe; callers that write from
+ * several threads hold a lock around it.
+ */
+class PackFileWriter {
+	PackFileWriter(Repository repo) throws IOException {
+		packDir = new File(objectsDirectory(repo), "pack");
+		packDir.mkdirs();
+		packTmp = File.createTempFile("incoming_", ".pack", packDir);
+		out = new BufferedOutputStream(new FileOutputStream(packTmp), 65536);
+		// the object count gets filled in once we know it.
+		byte[] header = new byte[12];
+		System.arraycopy(Constants.PACK_SIGNATURE, 0, header, 0, 4);
+		NB.encodeInt32(header, 4, 2);
+		out.write(header);
+		offset = header.length;
+	}
+
+	static File objectsDirectory(Repository repo) {
+		if (repo.getObjectDatabase() instanceof ObjectDirectory)
+			return ((ObjectDirectory)repo.getObjectDatabase()).getDirectory();
+		return new File(repo.getDirectory(), "objects");
+	}
+
+	private final File packDir;
+	private final File packTmp;
+	private OutputStream out;
+	private long offset;
+	private final CRC32 crc = new CRC32();
+	private final List<PackedObjectInfo> objects = new ArrayList<PackedObjectInfo>();
+
+	int getObjectCount() {
+		return objects.size();
+	}
+
+	/**
+	 * Write an object whole.
+	 *
+	 * @param size
+	 *                the length of the object's content, before deflating.
+	 * @param deflated
+	 *                the object's content, already deflated.
+	 */
+	PackedObjectInfo writeWhole(AnyObjectId id, int type, long size, InputStream deflated) throws IOException {
+		PackedObjectInfo info = begin(id, type, size);
+		copy(deflated);
+		return end(info);
+	}
+
+	/**
+	 * Write an object as a delta against another object already written to this pack.
+	 *
+	 * @param size
+	 *                the length of the delta, before deflating.
+	 * @param deflated
+	 *                the delta, already deflated.
+	 */
+	PackedObjectInfo writeDelta(AnyObjectId id, PackedObjectInfo base, long size, InputStream deflated) throws IOException {
+		PackedObjectInfo info = begin(id, Constants.OBJ_OFS_DELTA, size);
+		// distance back to the base: seven bits per byte, most significant first, with every byte but the last offset by one.
+		byte[] buf = new byte[10];
+		int n = buf.length - 1;
+		long distance = info.getOffset() - base.getOffset();
+		buf[n] = (byte) (distance & 0x7F);
+		while ((distance >>>= 7) != 0)
+			buf[--n] = (byte) (0x80 | (--distance & 0x7F));
+		write(buf, n, buf.length - n);
+		copy(deflated);
+		return end(info);
+	}
+
+	private PackedObjectInfo begin(AnyObjectId id, int type, long size) throws IOException {
+		PackedObjectInfo info = new PackedObjectInfo(id);
+		info.setOffset(offset);
+		crc.reset();
+		// type and the low four bits of the size, then seven more bits of size per byte.
+		byte[] header = new byte[16];
+		int n = 0;
+		int c = (type << 4) | (int) (size & 0x0F);
+		size >>>= 4;
+		while (size != 0) {
+			header[n++] = (byte) (c | 0x80);
+			c = (int) (size & 0x7F);
+			size >>>= 7;
+		}
+		header[n++] = (byte) c;
+		write(header, 0, n);
+		return info;
+	}
+
+	private void copy(InputStream in) throws IOException {
+		byte[] buf = new byte[65536];
+		for (int r; (r = in.read(buf)) > 0;)
+			write(buf, 0, r);
+	}
+
+	private void write(byte[] buf, int off, int len) throws IOException {
+		out.write(buf, off, len);
+		crc.update(buf, off, len);
+		offset += len;
+	}
+
+	private PackedObjectInfo end(PackedObjectInfo info) {
+		info.setCRC((int) crc.getValue());
+		objects.add(info);
+		return info;
+	}
+
+	/**
+	 * Finish the pack, and move it and its index into place.
+	 *
+	 * @return the pack file, under the name git would have given it.
+	 */
+	File finish() throws IOException {
+		out.close();
+		out = null;
+		File idxTmp = new File(packDir, packTmp.getName().replaceFirst("\\.pack$", ".idx"));
+		try {
+			// go back and fill in the object count, then hash the whole thing for the trailer.
+			byte[] packHash;
+			RandomAccessFile raf = new RandomAccessFile(packTmp, "rw");
+			try {
+				byte[] count = new byte[4];
+				NB.encodeInt32(count, 0, objects.size());
+				raf.seek(8);
+				raf.write(count);
+				raf.seek(0);
+				MessageDigest md = Constants.newMessageDigest();
+				byte[] buf = new byte[65536];
+				for (int r; (r = raf.read(buf)) > 0;)
+					md.update(buf, 0, r);
+				packHash = md.digest();
+				raf.write(packHash);
+			} finally {
+				raf.close();
+			}
+
+			// named for the objects in it, the same way jgit and git name their packs.
+			Collections.sort(objects);
+			MessageDigest md = Constants.newMessageDigest();
+			byte[] raw = new byte[Constants.OBJECT_ID_LENGTH];
+			for (PackedObjectInfo info : objects) {
+				info.copyRawTo(raw, 0);
+				md.update(raw);
+			}
+			String name = "pack-"+ObjectId.fromRaw(md.digest()).name();
+
+			OutputStream idxOut = new BufferedOutputStream(new FileOutputStream(idxTmp));
+			try {
+				PackIndexWriter.createVersion(idxOut, 2).write(objects, packHash);
+			} finally {
+				idxOut.close();
+			}
+
+			File pack = new File(packDir, name+".pack");
+			File idx = new File(packDir, name+".idx");
+			if (pack.exists() && idx.exists())
+				return pack;	// exactly these objects were packed before; that pack will do.
+			packTmp.setReadOnly();
+			idxTmp.setReadOnly();
+			if (!packTmp.renameTo(pack))
+				throw new IOException("could not move new pack into place at "+pack);
+			if (!idxTmp.renameTo(idx)) {
+				pack.delete();
+				throw new IOException("could not move new pack index into place at "+idx);
+			}
+			return pack;
+		} finally {
+			if (packTmp.exists()) packTmp.delete();
+			if (idxTmp.exists()) idxTmp.delete();
+		}
+	}
+
+	/** Throw away the pack without putting it anywhere. */
+	void abort() {
+		if (out != null) {
+			try {
+				out.close();
+			} catch (IOException e) {}
+			out = null;
+		}
+		packTmp.delete();
+	}
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright 2012 - 2014 Eric Myhre <http://exultant.us>
+ *
+ * This file is part of mdm <https://github.com/heavenlyhash/mdm/>.
+ *
+ * mdm is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.polydawn.mdm.jgit;
+
+import java.io.*;
+import java.util.*;
+import net.polydawn.mdm.util.*;
+import org.eclipse.jgit.errors.*;
+import org.eclipse.jgit.lib.*;
+import org.eclipse.jgit.revwalk.*;
+import org.eclipse.jgit.treewalk.*;
+import org.eclipse.jgit.util.RawParseUtils;
+
+/**
+ * A single blob in a releases repo, pointed at directly by {@value #REF}, listing
+ * every release: its version name, its release commit, and the total size of its
+ * files. A client that fetches just that one ref learns the whole manifest, without
+ * needing an advertisement of every release branch.
+ * <p>
+ * One release per line, in {@link VersionComparator} order:
+ *
+ * <pre>
+ * &lt;commit id&gt; SP &lt;size in bytes&gt; SP &lt;version name&gt; LF
+ * </pre>
+ *
+ * The version name goes last so it can be read to the end of the line. Lines that
+ * start with '#' are comments, and are ignored along with blank lines.
+ */
+public class PublishedVersionIndex {
+	public static final String REF = "refs/mdm/index";
+
+	public static class Entry {
+		public Entry(String version, ObjectId commit, long size) {
+			this.version = version;
+			this.commit = commit;
+			this.size = size;
+		}
+
+		public final String version;
+		public final ObjectId commit;
+		public final long size;
+
+		public boolean equals(Object o) {
+			if (!(o instanceof Entry)) return false;
+			Entry other = (Entry) o;
+			return version.equals(other.version) && commit.equals(other.commit) && size == other.size;
+		}
+
+		public int hashCode() {
+			return version.hashCode();
+		}
+
+		public String toString() {
+			return commit.name()+" "+size+" "+version;
+		}
+	}
+
+	public static byte[] format(Collection<Entry> entries) {
+		List<Entry> sorted = new ArrayList<Entry>(entries);
+		Collections.sort(sorted, new Comparator<Entry>() {
+			private final VersionComparator versions = new VersionComparator();
+
+			public int compare(Entry a, Entry b) {
+				return versions.compare(a.version, b.version);
+			}
+		});
+		StringBuilder sb = new StringBuilder();
+		for (Entry entry : sorted)
+			sb.append(entry).append('\n');
+		return Constants.encode(sb.toString());
+	}
+
+	/** @throws IOException if a line isn't an index entry. */
+	public static List<Entry> parse(byte[] content) throws IOException {
+		List<Entry> entries = new ArrayList<Entry>();
+		String[] lines = RawParseUtils.decode(content).split("\n");
+		for (int i = 0; i < lines.length; i++) {
+			String line = lines[i];
+			if (line.length() == 0 || line.charAt(0) == '#') continue;
+			int sp1 = line.indexOf(' ');
+			int sp2 = sp1 < 0 ? -1 : line.indexOf(' ', sp1 + 1);
+			if (sp1 != Constants.OBJECT_ID_STRING_LENGTH || sp2 < 0 || sp2 == line.length() - 1)
+				throw new IOException("malformed version index entry on line "+(i+1)+": "+line);
+			try {
+				entries.add(new Entry(
+					line.substring(sp2 + 1),
+					ObjectId.fromString(line.substring(0, sp1)),
+					Long.parseLong(line.substring(sp1 + 1, sp2))
+				));
+			} catch (IllegalArgumentException e) {
+				throw new IOException("malformed version index entry on line "+(i+1)+": "+line);
+			}
+		}
+		return entries;
+	}
+
+	/** The entries in the repo's index, or null if it doesn't have one. */
+	public static List<Entry> read(Repository repo) throws IOException {
+		Ref ref = repo.getRef(REF);
+		if (ref == null || ref.getObjectId() == null)
+			return null;
+		return parse(repo.open(ref.getObjectId(), Constants.OBJ_BLOB).getCachedBytes(Integer.MAX_VALUE));
+	}
+
+	/**
+	 * Rewrite the index to match the repo's release branches, and point {@value #REF}
+	 * at it. Sizes of releases already in the old index at the same commit are taken
+	 * from it rather than counted again.
+	 */
+	public static RefUpdate.Result update(Repository repo, String refLogMessage) throws IOException {
+		Map<String,Entry> previous = new HashMap<String,Entry>();
+		Ref ref = repo.getRef(REF);
+		try {
+			List<Entry> old = read(repo);
+			if (old != null)
+				for (Entry entry : old)
+					previous.put(entry.version, entry);
+		} catch (IOException e) {
+			/* a broken index is simply replaced. */
+		}
+
+		List<Entry> entries = new ArrayList<Entry>();
+		ObjectReader reader = repo.newObjectReader();
+		ObjectInserter inserter = repo.newObjectInserter();
+		ObjectId blob;
+		try {
+			RevWalk revWalk = new RevWalk(reader);
+			try {
+				for (Map.Entry<String,Ref> branch : repo.getRefDatabase().getRefs(ReleaseBranchIndex.RELEASE_BRANCH_PREFIX).entrySet()) {
+					ObjectId commit = branch.getValue().getObjectId();
+					if (commit == null) continue;
+					Entry known = previous.get(branch.getKey());
+					if (known != null && known.commit.equals(commit))
+						entries.add(known);
+					else
+						entries.add(new Entry(branch.getKey(), commit.copy(), sizeOf(reader, revWalk.parseCommit(commit).getTree())));
+				}
+			} finally {
+				revWalk.release();
+			}
+			blob = inserter.insert(Constants.OBJ_BLOB, format(entries));
+			inserter.flush();
+		} finally {
+			inserter.release();
+			reader.release();
+		}
+
+		RefUpdate ru = repo.updateRef(REF);
+		ru.setNewObjectId(blob);
+		ru.setExpectedOldObjectId(ref == null ? ObjectId.zeroId() : ref.getObjectId());
+		ru.setRefLogMessage(refLogMessage, false);
+		return ru.forceUpdate();
+	}
+
+	/** Total size of the files in a tree. */
+	private static long sizeOf(ObjectReader reader, AnyObjectId tree) throws MissingObjectException, IncorrectObjectTypeException, IOException {
+		long size = 0;
+		TreeWalk treeWalk = new TreeWalk(reader);
+		try {
+			treeWalk.addTree(tree);
+			treeWalk.setRecursive(true);
+			while (treeWalk.next())
+				if ((treeWalk.getRawMode(0) & FileMode.TYPE_MASK) != FileMode.TYPE_GITLINK)
+					size += reader.getObjectSize(treeWalk.getObjectId(0), Constants.OBJ_BLOB);
+		} finally {
+			treeWalk.release();
+		}
+		return size;
+	}
+}
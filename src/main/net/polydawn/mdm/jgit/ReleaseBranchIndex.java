@@ -0,0 +1,75 @@
+/*
+ * Copyright 2012 - 2014 Eric Myhre <http://exultant.us>
+ *
+ * This file is part of mdm <https://github.com/heavenlyhash/mdm/>.
+ *
+ * mdm is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.polydawn.mdm.jgit;
+
+import java.io.*;
+import java.util.*;
+import org.eclipse.jgit.lib.*;
+
+/**
+ * Maps commit ids back to the name of the release whose {@code mdm/release/*} branch
+ * points at them. Built from a single scan of the release branch refs, and then
+ * kept for as long as the repository object is alive (or until someone calls
+ * {@link #invalidate(Repository)} because they've changed those refs).
+ */
+public class ReleaseBranchIndex {
+	public static final String RELEASE_BRANCH_PREFIX = Constants.R_HEADS+"mdm/release/";
+
+	/** Weak keys, so we never keep a repository around just because we once indexed it. */
+	private static final Map<Repository,ReleaseBranchIndex> cache = new WeakHashMap<Repository,ReleaseBranchIndex>();
+
+	public static ReleaseBranchIndex of(Repository repo) throws IOException {
+		synchronized (cache) {
+			ReleaseBranchIndex index = cache.get(repo);
+			if (index == null) {
+				index = new ReleaseBranchIndex(repo);
+				cache.put(repo, index);
+			}
+			return index;
+		}
+	}
+
+	/** Forget what we knew about this repository's release branches; the next lookup will scan them again. */
+	public static void invalidate(Repository repo) {
+		synchronized (cache) {
+			cache.remove(repo);
+		}
+	}
+
+	private ReleaseBranchIndex(Repository repo) throws IOException {
+		// refs come back sorted by name, so if several releases are the same commit, the first by name wins, just like it always has.
+		for (Map.Entry<String,Ref> entry : repo.getRefDatabase().getRefs(RELEASE_BRANCH_PREFIX).entrySet()) {
+			ObjectId id = entry.getValue().getObjectId();
+			if (id == null) continue;
+			if (versions.containsKey(id)) continue;
+			// Note that version names with slashes in them come through whole here, but really, that's not a
+			// generally supported feature (and trying to create a release with such a name is rejected by `mdm release`).
+			versions.put(id.copy(), entry.getKey());
+		}
+	}
+
+	private final Map<ObjectId,String> versions = new HashMap<ObjectId,String>();
+
+	/** @return the version name of the release branch pointing at {@code commit}, or null if there isn't one. */
+	public String getVersion(AnyObjectId commit) {
+		if (commit == null) return null;
+		return versions.get(commit);
+	}
+}
@@ -0,0 +1,268 @@
+/*
+ * Copyright 2012 - 2014 Eric Myhre <http://exultant.us>
+ *
+ * This file is part of mdm <https://github.com/heavenlyhash/mdm/>.
+ *
+ * mdm is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.polydawn.mdm.jgit;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.*;
+import net.polydawn.mdm.util.*;
+import org.eclipse.jgit.internal.storage.file.*;
+import org.eclipse.jgit.internal.storage.pack.*;
+import org.eclipse.jgit.lib.*;
+import org.eclipse.jgit.revwalk.*;
+import org.eclipse.jgit.storage.pack.*;
+import org.eclipse.jgit.transport.*;
+import org.eclipse.jgit.treewalk.*;
+import org.eclipse.jgit.util.TemporaryBuffer;
+
+/**
+ * Packs the objects of a new release, storing its files as deltas against the same
+ * files in the release before it.
+ * <p>
+ * The previous release is the greatest one before the new version in
+ * {@link VersionComparator} order. The pack holds just what the new release brings
+ * that the previous release doesn't already have: each file that changed is stored as
+ * a delta against its version in the previous release (unless the delta wouldn't save
+ * at least half), and everything else whole. A pack on disk has to hold the bases of
+ * its deltas itself, so a file's previous version is copied into the pack too when
+ * it's used as a base -- which is what git does when it keeps a thin pack it fetched.
+ * Someone fetching the new release who already has the previous one can then be sent
+ * just the deltas.
+ * <p>
+ * Only objects that are still loose are packed: files a release made in memory
+ * are already in the pack {@link BlobPacker} wrote for them, and aren't stored a
+ * second time (nor deltified). Once the new pack is in place, the loose copies of
+ * everything in it are removed, as {@code git prune-packed} would; no pack is ever
+ * removed, since other processes may have them open.
+ * <p>
+ * So what this saves is transfer, not disk. Because each pack has to carry a whole
+ * copy of the files it deltas against, a release that's repacked takes about as
+ * much disk as the files that changed in it would loose -- less only when the
+ * previous version was still loose too, and is moved into the pack rather than
+ * copied. Disk space is only really reclaimed by consolidating packs, with {@code git
+ * gc}, whenever that's convenient.
+ */
+public class ReleaseRepacker {
+	public ReleaseRepacker(Repository repo) {
+		this.repo = repo;
+		PackConfig packConfig = new PackConfig(repo);
+		this.bigFileThreshold = packConfig.getBigFileThreshold();
+		this.level = packConfig.getCompressionLevel();
+		this.compression = CompressionPolicy.of(repo.getConfig());
+	}
+
+	private final Repository repo;
+	/** Files bigger than this are never held in memory to be deltified; they're stored whole. */
+	private final int bigFileThreshold;
+	private final int level;
+	private final CompressionPolicy compression;
+
+	/**
+	 * Pack the release of {@code version}. Does nothing if there's no such release,
+	 * or no release before it to delta against.
+	 */
+	public void repack(String version) throws IOException {
+		if (!(repo.getObjectDatabase() instanceof ObjectDirectory))
+			return;
+		ObjectDirectory odb = (ObjectDirectory) repo.getObjectDatabase();
+		Ref release = repo.getRef(ReleaseBranchIndex.RELEASE_BRANCH_PREFIX+version);
+		Ref previous = previousRelease(version);
+		if (release == null || release.getObjectId() == null || previous == null)
+			return;
+
+		ObjectReader reader = repo.newObjectReader();
+		PackFileWriter pack = null;
+		File packFile;
+		List<ObjectId> packed = new ArrayList<ObjectId>();
+		try {
+			// what's new in this release, and the path each new file is at.
+			List<RevObject> fresh = new ArrayList<RevObject>();
+			Map<ObjectId,String> paths = new HashMap<ObjectId,String>();
+			ObjectWalk objectWalk = new ObjectWalk(reader);
+			try {
+				objectWalk.markStart(objectWalk.parseAny(release.getObjectId()));
+				objectWalk.markUninteresting(objectWalk.parseAny(previous.getObjectId()));
+				for (RevObject o; (o = objectWalk.next()) != null;)
+					if (odb.fileFor(o).isFile())
+						fresh.add(o);
+				for (RevObject o; (o = objectWalk.nextObject()) != null;) {
+					if (!odb.fileFor(o).isFile())
+						continue;	// already packed.
+					fresh.add(o);
+					if (o.getType() == Constants.OBJ_BLOB)
+						paths.put(o.copy(), objectWalk.getPathString());
+				}
+			} finally {
+				objectWalk.release();
+			}
+			if (fresh.isEmpty())
+				return;
+			Map<String,ObjectId> bases = filesOf(reader, previous.getObjectId());
+
+			pack = new PackFileWriter(repo);
+			Map<ObjectId,PackedObjectInfo> written = new HashMap<ObjectId,PackedObjectInfo>();
+			for (RevObject o : fresh) {
+				String path = paths.get(o);
+				ObjectId base = path == null ? null : bases.get(path);
+				if (base == null || !writeDelta(pack, reader, o, path, base, written))
+					writeWhole(pack, reader, o, o.getType(), path);
+				packed.add(o.copy());
+			}
+			packed.addAll(written.keySet());
+			packFile = pack.finish();
+			pack = null;
+		} finally {
+			if (pack != null) pack.abort();
+			reader.release();
+		}
+		odb.openPack(packFile);
+
+		// only now that the pack can be found are the loose copies redundant.
+		for (ObjectId id : packed)
+			odb.fileFor(id).delete();
+	}
+
+	/** The release branch that comes last in {@link VersionComparator} order of those before {@code version}, or null if there's none. */
+	private Ref previousRelease(String version) throws IOException {
+		VersionComparator order = new VersionComparator();
+		String best = null;
+		Ref previous = null;
+		for (Map.Entry<String,Ref> entry : repo.getRefDatabase().getRefs(ReleaseBranchIndex.RELEASE_BRANCH_PREFIX).entrySet()) {
+			if (entry.getValue().getObjectId() == null) continue;
+			if (order.compare(entry.getKey(), version) >= 0) continue;
+			if (best != null && order.compare(entry.getKey(), best) <= 0) continue;
+			best = entry.getKey();
+			previous = entry.getValue();
+		}
+		return previous;
+	}
+
+	/** Map each path of a file in the commit's tree to its blob. */
+	private Map<String,ObjectId> filesOf(ObjectReader reader, ObjectId commit) throws IOException {
+		Map<String,ObjectId> files = new HashMap<String,ObjectId>();
+		RevWalk revWalk = new RevWalk(reader);
+		TreeWalk treeWalk = new TreeWalk(reader);
+		try {
+			treeWalk.addTree(revWalk.parseCommit(commit).getTree());
+			treeWalk.setRecursive(true);
+			while (treeWalk.next()) {
+				if ((treeWalk.getRawMode(0) & FileMode.TYPE_MASK) == FileMode.TYPE_GITLINK) continue;
+				files.put(treeWalk.getPathString(), treeWalk.getObjectId(0));
+			}
+		} finally {
+			treeWalk.release();
+			revWalk.release();
+		}
+		return files;
+	}
+
+	/**
+	 * Write {@code id} as a delta against {@code base}, writing the base whole first
+	 * if it isn't in the pack yet. Returns false, having written nothing, if either is
+	 * too big to deltify or the delta wouldn't save at least half.
+	 */
+	private boolean writeDelta(PackFileWriter pack, ObjectReader reader, AnyObjectId id, String path, ObjectId base, Map<ObjectId,PackedObjectInfo> written) throws IOException {
+		ObjectLoader loader = reader.open(id, Constants.OBJ_BLOB);
+		ObjectLoader baseLoader = reader.open(base, Constants.OBJ_BLOB);
+		if (loader.isLarge() || loader.getSize() > bigFileThreshold || baseLoader.isLarge() || baseLoader.getSize() > bigFileThreshold)
+			return false;
+		byte[] content = loader.getCachedBytes();
+		byte[] baseContent = baseLoader.getCachedBytes();
+		ByteArrayOutputStream delta = new ByteArrayOutputStream();
+		if (!new DeltaIndex(baseContent).encode(delta, content, content.length / 2))
+			return false;
+
+		PackedObjectInfo baseInfo = written.get(base);
+		if (baseInfo == null) {
+			baseInfo = writeBlob(pack, base, new ByteArrayInputStream(baseContent), baseContent.length, compression.levelFor(path, baseContent, Math.min(baseContent.length, CompressionPolicy.MAGIC_LENGTH)), null);
+			written.put(base, baseInfo);
+		}
+		writeBlob(pack, id, new ByteArrayInputStream(delta.toByteArray()), delta.size(), level, baseInfo);
+		return true;
+	}
+
+	/** Deflate {@code in} into the pack as {@code id}: whole if {@code base} is null, otherwise as a delta against it. */
+	private PackedObjectInfo writeBlob(PackFileWriter pack, AnyObjectId id, InputStream in, long size, int level, PackedObjectInfo base) throws IOException {
+		TemporaryBuffer.LocalFile deflated = deflate(in, level);
+		try {
+			InputStream din = deflated.openInputStream();
+			try {
+				if (base == null)
+					return pack.writeWhole(id, Constants.OBJ_BLOB, size, din);
+				return pack.writeDelta(id, base, size, din);
+			} finally {
+				din.close();
+			}
+		} finally {
+			deflated.destroy();
+		}
+	}
+
+	private void writeWhole(PackFileWriter pack, ObjectReader reader, AnyObjectId id, int type, String path) throws IOException {
+		ObjectLoader loader = reader.open(id, type);
+		int objectLevel = level;
+		if (type == Constants.OBJ_BLOB && path != null) {
+			byte[] head = new byte[CompressionPolicy.MAGIC_LENGTH];
+			int n = 0;
+			ObjectStream peek = loader.openStream();
+			try {
+				for (int r; n < head.length && (r = peek.read(head, n, head.length - n)) > 0; n += r);
+			} finally {
+				peek.close();
+			}
+			objectLevel = compression.levelFor(path, head, n);
+		}
+		ObjectStream in = loader.openStream();
+		TemporaryBuffer.LocalFile deflated;
+		try {
+			deflated = deflate(in, objectLevel);
+		} finally {
+			in.close();
+		}
+		try {
+			InputStream din = deflated.openInputStream();
+			try {
+				pack.writeWhole(id, type, loader.getSize(), din);
+			} finally {
+				din.close();
+			}
+		} finally {
+			deflated.destroy();
+		}
+	}
+
+	private static TemporaryBuffer.LocalFile deflate(InputStream in, int level) throws IOException {
+		TemporaryBuffer.LocalFile deflated = new TemporaryBuffer.LocalFile();
+		Deflater deflater = new Deflater(level);
+		try {
+			DeflaterOutputStream out = new DeflaterOutputStream(deflated, deflater, 8192);
+			byte[] buf = new byte[8192];
+			for (int n; (n = in.read(buf)) > 0;)
+				out.write(buf, 0, n);
+			out.close();
+			return deflated;
+		} catch (IOException e) {
+			deflated.destroy();
+			throw e;
+		} finally {
+			deflater.end();
+		}
+	}
+}
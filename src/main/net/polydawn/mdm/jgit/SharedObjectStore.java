@@ -0,0 +1,138 @@
+/*
+ * Copyright 2012 - 2014 Eric Myhre <http://exultant.us>
+ *
+ * This file is part of mdm <https://github.com/heavenlyhash/mdm/>.
+ *
+ * mdm is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.polydawn.mdm.jgit;
+
+import java.io.*;
+import net.polydawn.mdm.*;
+import org.eclipse.jgit.lib.*;
+import org.eclipse.jgit.transport.*;
+import org.eclipse.jgit.util.FS;
+import us.exultant.ahs.iob.*;
+
+/**
+ * A machine-wide directory of bare repos, one per releases url, that dependency
+ * gitdirs borrow objects from through {@code objects/info/alternates} (the same
+ * mechanism as {@code git clone --reference}). Releases are fetched into the store
+ * first, so every checkout on the machine that wants a release already in the store
+ * gets it without touching the network, and keeps no copy of its own.
+ * <p>
+ * Turned on by setting {@code mdm.objectstore} to a directory, usually in the user's
+ * own git config; for example {@code ~/.cache/mdm/objects}.
+ * <p>
+ * Only gitdirs with no objects of their own yet are ever linked to the store, so
+ * nothing that was already working comes to depend on it. Once linked, though, a
+ * gitdir's objects live in the store: clearing out the store breaks the dependency
+ * gitdirs that use it (delete them and run {@code mdm update} again to recover).
+ */
+public class SharedObjectStore {
+	/** The store configured by {@code mdm.objectstore}, or null if there isn't one. */
+	public static SharedObjectStore of(Config cfg) {
+		String path = cfg.getString(MdmConfigConstants.User.SECTION, null, MdmConfigConstants.User.OBJECT_STORE.toString());
+		if (path == null || path.trim().length() == 0)
+			return null;
+		path = path.trim();
+		if (path.equals("~") || path.startsWith("~/"))
+			return new SharedObjectStore(new File(FS.DETECTED.userHome(), path.substring(1)));
+		if (!new File(path).isAbsolute())
+			return new SharedObjectStore(new File(System.getProperty("user.dir"), path));
+		return new SharedObjectStore(new File(path));
+	}
+
+	public SharedObjectStore(File directory) {
+		this.directory = directory.getAbsoluteFile();
+	}
+
+	private final File directory;
+
+	public File getDirectory() {
+		return directory;
+	}
+
+	/** The gitdir in the store for objects fetched from the given url; named for the sha1 of the url. */
+	public File gitDirFor(URIish url) {
+		byte[] hash = Constants.newMessageDigest().digest(Constants.encode(url.toString()));
+		return new File(directory, ObjectId.fromRaw(hash).name());
+	}
+
+	/** Open the store's repo for the given url, creating it if it doesn't exist yet. */
+	public Repository open(URIish url) throws IOException {
+		File gitDir = gitDirFor(url);
+		// several modules with the same url may be updated at once; don't let them race to create it.
+		synchronized (SharedObjectStore.class) {
+			Repository store = new RepositoryBuilder().setGitDir(gitDir).setBare().build();
+			if (!new File(gitDir, Constants.CONFIG).exists()) {
+				gitDir.getParentFile().mkdirs();
+				try {
+					store.create(true);
+				} catch (IllegalStateException e) {
+					/* another mdm process just made it. */
+				}
+			}
+			return store;
+		}
+	}
+
+	/**
+	 * If {@code repo} borrows objects from the store's repo for {@code url}, or can
+	 * safely be made to because it has no objects of its own yet, return the store's
+	 * repo (which the caller closes). Otherwise return null, and {@code repo} should
+	 * fetch for itself as usual.
+	 */
+	public Repository adopt(Repository repo, URIish url) throws IOException {
+		File objects = PackFileWriter.objectsDirectory(repo);
+		File storeObjects = new File(gitDirFor(url), "objects");
+		boolean linked = isLinked(objects, storeObjects);
+		if (!linked && !isEmpty(objects))
+			return null;
+		Repository store = open(url);
+		if (!linked) {
+			File alternates = new File(objects, "info/alternates");
+			alternates.getParentFile().mkdirs();
+			IOForge.saveFile(storeObjects.getPath()+"\n", alternates);
+			// the object database only reads its alternates once; closing it makes it look again.
+			repo.getObjectDatabase().close();
+		}
+		return store;
+	}
+
+	private static boolean isLinked(File objects, File storeObjects) throws IOException {
+		File alternates = new File(objects, "info/alternates");
+		if (!alternates.isFile())
+			return false;
+		for (String line : IOForge.readFileAsString(alternates).split("\n"))
+			if (new File(line.trim()).getAbsoluteFile().equals(storeObjects))
+				return true;
+		return false;
+	}
+
+	/** True if there are no loose objects and no packs in an objects directory. */
+	private static boolean isEmpty(File objects) {
+		String[] names = objects.list();
+		if (names == null)
+			return true;
+		for (String name : names) {
+			if (name.equals("info")) continue;
+			String[] contents = new File(objects, name).list();
+			if (contents == null || contents.length > 0)
+				return false;
+		}
+		return true;
+	}
+}
@@ -1,11 +1,35 @@
 package net.polydawn.mdm.jgit;
 
+import org.eclipse.jgit.api.*;
 import org.eclipse.jgit.transport.*;
 import com.jcraft.jsch.*;
 
-public class SshUserInfoHelper {
-	public static void apply() {
-		SshSessionFactory.setInstance(new JschConfigSessionFactory() {
+/**
+ * Gives ssh transports our prompts for passwords, passphrases, and host keys.
+ * Hand {@link #CALLBACK} to each transport command; it only does anything for
+ * transports that turn out to be ssh, so jsch never gets loaded for commands that
+ * don't go over ssh.
+ */
+public class SshUserInfoHelper implements TransportConfigCallback {
+	public static final SshUserInfoHelper CALLBACK = new SshUserInfoHelper();
+
+	private SshUserInfoHelper() {}
+
+	public void configure(Transport transport) {
+		if (transport instanceof SshTransport)
+			((SshTransport) transport).setSshSessionFactory(factory());
+	}
+
+	private static SshSessionFactory factory;
+
+	private static synchronized SshSessionFactory factory() {
+		if (factory == null)
+			factory = makeFactory();
+		return factory;
+	}
+
+	private static SshSessionFactory makeFactory() {
+		return new JschConfigSessionFactory() {
 			@Override
 			protected void configure(OpenSshConfig.Host host, Session session) {
 				session.setConfig("StrictHostKeyChecking", "ask");
@@ -65,6 +89,6 @@ public class SshUserInfoHelper {
 					}
 				});
 			}
-		});
+		};
 	}
 }
@@ -20,11 +20,11 @@
 package net.polydawn.mdm.jgit;
 
 import java.io.*;
-import net.polydawn.mdm.util.FileUtils;
 import org.eclipse.jgit.errors.*;
 import org.eclipse.jgit.lib.*;
 import org.eclipse.jgit.submodule.*;
 import org.eclipse.jgit.treewalk.*;
+import org.eclipse.jgit.treewalk.filter.*;
 import org.eclipse.jgit.util.*;
 
 /**
@@ -37,8 +37,8 @@ import org.eclipse.jgit.util.*;
  * This can be used for detecting things that need special handling (because git by
  * default often operates specially or very cautiously around other git repos), but should
  * be used conservatively because often walking the filesystem is noticably more expensive
- * than asking the index about something. (TODO: also seriously consider how this ought to
- * respond to gitignores, including the special flags in the index.)
+ * than asking the index about something. The walk doesn't descend into gitignored
+ * directories, nor into any directory it has already reported as a repo.
  * </p>
  *
  * @author Eric Myhre <tt>hash@exultant.us</tt>
@@ -48,28 +48,29 @@ public class SubrepoWalk {
 
 	public SubrepoWalk(Repository repo) throws IOException {
 		this.repo = repo;
+		this.workTreeCanonical = repo.getWorkTree().getCanonicalFile();
 		walk = new TreeWalk(repo);
 		walk.addTree(new FileTreeIterator(repo));
 		walk.setRecursive(true);
+		walk.setFilter(new PruningFilter());
 	}
 
 	private final Repository repo;
+	/** Resolved once, so checking a candidate for symlinks costs one canonicalization instead of two. */
+	private final File workTreeCanonical;
 	private final TreeWalk walk;
 	private String pathString;
 
 	public boolean next() throws IOException {
 		while (walk.next()) {
-			// if one wanted to handle gitignores it would look something like this:
-			// if (walk.getTree(0, DirCacheIterator.class) == null && f.isEntryIgnored()) {}
-
+			// the filter has already let through only gitlinks.
 			// interestingly enough, a FileTreeIterator appears to consider something a gitlink
 			//  if it so much as has a .git file or directory -- it doesn't have to be in the dircache.
-			if (walk.getFileMode(0) != FileMode.GITLINK)
-				continue;
+			// and since a gitlink isn't a tree, the walk never descends into one.
 
 			// shame jgit doesn't understand symlinks at heart.
 			pathString = walk.getPathString();
-			if (FileUtils.isSymlink(repo.getWorkTree(), new File(pathString)))
+			if (isSymlinked(pathString))
 				continue;
 
 			return true;
@@ -77,10 +78,35 @@ public class SubrepoWalk {
 		return false;
 	}
 
+	/** True if anything on the way from the working tree to this path is a symlink. */
+	private boolean isSymlinked(String path) throws IOException {
+		File resolved = new File(workTreeCanonical, path);
+		return !resolved.getCanonicalFile().equals(resolved);
+	}
+
+	/** Passes gitlinks, and any directory that isn't gitignored; everything else is skipped without a second look. */
+	private static class PruningFilter extends TreeFilter {
+		@Override
+		public boolean include(TreeWalk walker) throws IOException {
+			if (walker.isSubtree())
+				return !walker.getTree(0, WorkingTreeIterator.class).isEntryIgnored();
+			return walker.getFileMode(0) == FileMode.GITLINK;
+		}
+
+		@Override
+		public boolean shouldBeRecursive() {
+			return false;
+		}
+
+		@Override
+		public TreeFilter clone() {
+			return this;
+		}
+	}
+
 	public String getPathString() {
 		return pathString;
 	}
-
 	public Repository getRepo() throws IOException {
 		File subWorkTree = new File(repo.getWorkTree(), getPathString());
 		if (!subWorkTree.isDirectory()) return null; // should already be out of scope, but.
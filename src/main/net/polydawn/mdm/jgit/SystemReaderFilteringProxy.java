@@ -19,6 +19,7 @@
 
 package net.polydawn.mdm.jgit;
 
+import net.polydawn.mdm.*;
 import org.eclipse.jgit.lib.*;
 import org.eclipse.jgit.storage.file.*;
 import org.eclipse.jgit.util.*;
@@ -29,6 +30,8 @@ public class SystemReaderFilteringProxy extends SystemReader {
 		whitelist.setBoolean("user", null, "name", true);
 		whitelist.setBoolean("user", null, "email", true);
 		whitelist.setBoolean("url", null, "*", true);
+		for (MdmConfigConstants.User key : MdmConfigConstants.User.values())
+			whitelist.setBoolean(MdmConfigConstants.User.SECTION, null, key.toString(), true);
 		SystemReader proxy = new SystemReaderFilteringProxy(SystemReader.getInstance(), whitelist);
 		SystemReader.setInstance(proxy);
 	}
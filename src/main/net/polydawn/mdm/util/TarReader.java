@@ -0,0 +1,300 @@
+/*
+ * Copyright 2012 - 2014 Eric Myhre <http://exultant.us>
+ *
+ * This file is part of mdm <https://github.com/heavenlyhash/mdm/>.
+ *
+ * mdm is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.polydawn.mdm.util;
+
+import java.io.*;
+
+/**
+ * Reads entries out of a tar stream, one after another, without ever buffering an
+ * entry's content: each entry's bytes are read straight from the underlying stream
+ * by whoever consumes {@link #getEntryStream()}.
+ * <p>
+ * Understands plain ustar and old v7 headers, plus the two common ways of getting
+ * around their limits: GNU long names ('L' and 'K' entries) and pax extended headers
+ * ('x' entries; the path, linkpath, and size keys). Sizes in the GNU base-256
+ * encoding are fine too, so entries over 8GB work.
+ */
+public class TarReader {
+	public TarReader(InputStream in) {
+		this.in = in;
+	}
+
+	private static final int BLOCK = 512;
+
+	private final InputStream in;
+	private final byte[] header = new byte[BLOCK];
+	/** Bytes of the current entry not yet consumed, plus padding to the end of its last block. */
+	private long remaining;
+	private long padding;
+	private EntryStream current;
+
+	public static class Entry {
+		Entry(String path, char type, int mode, long size, String linkTarget) {
+			this.path = path;
+			this.type = type;
+			this.mode = mode;
+			this.size = size;
+			this.linkTarget = linkTarget;
+		}
+
+		public final String path;
+		public final char type;
+		public final int mode;
+		public final long size;
+		public final String linkTarget;
+
+		public boolean isFile() {
+			return type == '0' || type == '\0' || type == '7';
+		}
+
+		public boolean isDirectory() {
+			return type == '5';
+		}
+
+		public boolean isSymlink() {
+			return type == '2';
+		}
+
+		public boolean isHardlink() {
+			return type == '1';
+		}
+
+		public boolean isExecutable() {
+			return (mode & 0111) != 0;
+		}
+	}
+
+	/**
+	 * Skip whatever's left of the current entry and read the next header.
+	 *
+	 * @return the next entry, or null if the archive is over.
+	 * @throws IOException
+	 *                 if the stream ends too soon, or doesn't look like tar at all.
+	 */
+	public Entry next() throws IOException {
+		String longName = null;
+		String longLink = null;
+		String paxPath = null;
+		String paxLink = null;
+		long paxSize = -1;
+		current = null;
+		while (true) {
+			skip(remaining + padding);
+			remaining = padding = 0;
+
+			if (!readBlock())
+				return null;
+			if (isZeroBlock(header))
+				return null;	// two of these mark the end, but one is already enough for us.
+			if (!checksumOk(header))
+				throw new IOException("not a tar archive, or a damaged one (bad header checksum)");
+
+			char type = (char)header[156];
+			long size = parseNumber(header, 124, 12);
+			beginEntry(size);
+
+			switch (type) {
+				case 'L':
+					longName = readString(readContent());
+					continue;
+				case 'K':
+					longLink = readString(readContent());
+					continue;
+				case 'x':
+					for (String record : new String(readContent(), "UTF-8").split("\n")) {
+						int sp = record.indexOf(' ');
+						int eq = record.indexOf('=');
+						if (sp < 0 || eq < sp) continue;
+						String key = record.substring(sp+1, eq);
+						String value = record.substring(eq+1);
+						if (key.equals("path")) paxPath = value;
+						else if (key.equals("linkpath")) paxLink = value;
+						else if (key.equals("size")) paxSize = Long.parseLong(value);
+					}
+					continue;
+				case 'g':
+					// global pax headers only say things we don't care about.
+					continue;
+			}
+
+			String path = readString(header, 0, 100);
+			if (isUstar(header)) {
+				String prefix = readString(header, 345, 155);
+				if (prefix.length() > 0)
+					path = prefix + "/" + path;
+			}
+			if (longName != null) path = longName;
+			if (paxPath != null) path = paxPath;
+			String link = readString(header, 157, 100);
+			if (longLink != null) link = longLink;
+			if (paxLink != null) link = paxLink;
+			if (paxSize >= 0) {
+				size = paxSize;
+				beginEntry(size);
+			}
+			// links, directories, and the like say nothing about content, whatever the size field says.
+			if (type == '1' || type == '2' || type == '3' || type == '4' || type == '5' || type == '6') {
+				size = 0;
+				beginEntry(0);
+			}
+			int mode = (int)parseNumber(header, 100, 8);
+
+			current = new EntryStream();
+			return new Entry(path, type, mode, size, link);
+		}
+	}
+
+	/** The content of the entry last returned by {@link #next()}.  Ends at the end of the entry; closing it does nothing. */
+	public InputStream getEntryStream() {
+		return current;
+	}
+
+	private void beginEntry(long size) {
+		remaining = size;
+		padding = (BLOCK - (size % BLOCK)) % BLOCK;
+	}
+
+	/** Read the content of a metadata entry.  These are small; we don't stream them. */
+	private byte[] readContent() throws IOException {
+		if (remaining > 1024*1024)
+			throw new IOException("unreasonably large tar metadata entry");
+		byte[] content = new byte[(int)remaining];
+		readFully(content, content.length);
+		remaining = 0;
+		return content;
+	}
+
+	private boolean readBlock() throws IOException {
+		int n = 0;
+		while (n < BLOCK) {
+			int r = in.read(header, n, BLOCK - n);
+			if (r < 0) {
+				if (n == 0) return false;	// some writers leave off the end-of-archive blocks.
+				throw new EOFException("tar archive ended in the middle of a header");
+			}
+			n += r;
+		}
+		return true;
+	}
+
+	private void readFully(byte[] buf, int len) throws IOException {
+		int n = 0;
+		while (n < len) {
+			int r = in.read(buf, n, len - n);
+			if (r < 0)
+				throw new EOFException("tar archive ended in the middle of an entry");
+			n += r;
+		}
+	}
+
+	private void skip(long n) throws IOException {
+		// always by reading: skip on a pipe (stdin, say) can throw instead of skipping, depending on whether a buffer in front of it happens to be empty.
+		byte[] scratch = new byte[(int)Math.min(n, 8192)];
+		while (n > 0) {
+			int r = in.read(scratch, 0, (int)Math.min(n, scratch.length));
+			if (r < 0)
+				throw new EOFException("tar archive ended in the middle of an entry");
+			n -= r;
+		}
+	}
+
+	private static boolean isZeroBlock(byte[] block) {
+		for (byte b : block)
+			if (b != 0) return false;
+		return true;
+	}
+
+	private static boolean isUstar(byte[] header) {
+		return header[257] == 'u' && header[258] == 's' && header[259] == 't' && header[260] == 'a' && header[261] == 'r';
+	}
+
+	private static boolean checksumOk(byte[] header) {
+		long expected;
+		try {
+			expected = parseNumber(header, 148, 8);
+		} catch (IOException e) {
+			return false;
+		}
+		// the checksum is computed as if its own field were all spaces.  some ancient writers summed signed bytes, so accept either.
+		long unsigned = 0;
+		long signed = 0;
+		for (int i = 0; i < BLOCK; i++) {
+			byte b = (i >= 148 && i < 156) ? (byte)' ' : header[i];
+			unsigned += b & 0xFF;
+			signed += b;
+		}
+		return expected == unsigned || expected == signed;
+	}
+
+	/** Parse a numeric header field: octal text, or if the high bit of the first byte is set, a big-endian binary number. */
+	static long parseNumber(byte[] header, int offset, int length) throws IOException {
+		if ((header[offset] & 0x80) != 0) {
+			long value = header[offset] & 0x7F;
+			for (int i = 1; i < length; i++)
+				value = (value << 8) | (header[offset+i] & 0xFF);
+			return value;
+		}
+		long value = 0;
+		int end = offset + length;
+		int i = offset;
+		while (i < end && (header[i] == ' ' || header[i] == 0)) i++;
+		for (; i < end; i++) {
+			byte b = header[i];
+			if (b == ' ' || b == 0) break;
+			if (b < '0' || b > '7')
+				throw new IOException("not a tar archive, or a damaged one (bad number in header)");
+			value = (value << 3) | (b - '0');
+		}
+		return value;
+	}
+
+	private static String readString(byte[] buf, int offset, int length) throws UnsupportedEncodingException {
+		int end = offset;
+		while (end < offset + length && buf[end] != 0) end++;
+		return new String(buf, offset, end - offset, "UTF-8");
+	}
+
+	private static String readString(byte[] buf) throws UnsupportedEncodingException {
+		return readString(buf, 0, buf.length);
+	}
+
+	private class EntryStream extends InputStream {
+		@Override
+		public int read() throws IOException {
+			if (current != this || remaining <= 0) return -1;
+			int b = in.read();
+			if (b < 0) throw new EOFException("tar archive ended in the middle of an entry");
+			remaining--;
+			return b;
+		}
+
+		@Override
+		public int read(byte[] buf, int off, int len) throws IOException {
+			if (current != this || remaining <= 0) return -1;
+			int r = in.read(buf, off, (int)Math.min(len, remaining));
+			if (r < 0) throw new EOFException("tar archive ended in the middle of an entry");
+			remaining -= r;
+			return r;
+		}
+
+		@Override
+		public void close() {}
+	}
+}
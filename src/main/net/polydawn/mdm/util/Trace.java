@@ -0,0 +1,263 @@
+/*
+ * Copyright 2012 - 2014 Eric Myhre <http://exultant.us>
+ *
+ * This file is part of mdm <https://github.com/heavenlyhash/mdm/>.
+ *
+ * mdm is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.polydawn.mdm.util;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Records how long the phases of a command take, per module and per thread, and
+ * writes them out as a Chrome trace (the JSON trace event format that
+ * chrome://tracing, Perfetto, and speedscope all read) when the command is done.
+ * <p>
+ * Nothing is recorded unless {@link #start(File)} has been called or a
+ * {@link Listener} is installed: until then {@link #begin(String, String)} hands
+ * out a span that ignores everything, so the instrumented code costs next to
+ * nothing in normal use.
+ * <p>
+ * When mdm is built with the {@code main-jfr} tree and runs on a JVM with Flight
+ * Recorder, spans are also emitted as JFR events while a recording is running: one
+ * started with the JVM, or any recording at all if {@link #JFR_PROPERTY} is set; see
+ * {@code net.polydawn.mdm.jfr.JfrTrace}.
+ * <p>
+ * Spans are used like this:
+ *
+ * <pre>
+ * Trace.Span span = Trace.begin("fetch", "fetch");
+ * try {
+ * 	...
+ * 	span.arg("bytes", n);
+ * } finally {
+ * 	span.end();
+ * }
+ * </pre>
+ */
+public final class Trace {
+	private Trace() {}
+
+	private static volatile File output;
+	private static volatile Listener listener;
+	private static volatile long base;
+	private static final List<Event> events = new ArrayList<Event>();
+	private static final Map<Long,String> threads = new LinkedHashMap<Long,String>();
+
+	/** Start recording spans, to be written to {@code out} by {@link #finish()}. */
+	public static synchronized void start(File out) {
+		output = out;
+		base = System.nanoTime();
+		events.clear();
+		threads.clear();
+	}
+
+	/** Whether spans are being recorded; for skipping work that only feeds span args. */
+	public static boolean isRecording() {
+		return output != null || listener != null;
+	}
+
+	/**
+	 * Something else that wants to hear about spans as they happen, whether or not
+	 * they're also being written to a file.
+	 */
+	public interface Listener {
+		/**
+		 * @return a handle to pass back to {@link #end(Object, Map)} when the span ends;
+		 *         or null if this span isn't interesting.
+		 */
+		Object begin(String category, String name);
+
+		/**
+		 * @param args
+		 *                the args given to the span; null if there weren't any.
+		 */
+		void end(Object handle, Map<String,Object> args);
+	}
+
+	/** Install a listener, replacing any other; or remove it, with null. */
+	public static void setListener(Listener listener) {
+		Trace.listener = listener;
+	}
+
+	/**
+	 * Begin a span on the current thread. It's recorded once {@link Span#end()} is
+	 * called.
+	 *
+	 * @param category
+	 *                a broad grouping, such as "fetch" or "release".
+	 * @param name
+	 *                what's happening.
+	 */
+	public static Span begin(String category, String name) {
+		if (output == null && listener == null) return NOOP;
+		return new Span(category, name, listener);
+	}
+
+	/**
+	 * Stop recording, and write out everything recorded since {@link #start(File)}.
+	 * Spans still open are dropped. Does nothing if not recording.
+	 */
+	public static void finish() throws IOException {
+		File out;
+		List<Event> finished;
+		Map<Long,String> names;
+		synchronized (Trace.class) {
+			if (output == null) return;
+			out = output;
+			output = null;
+			finished = new ArrayList<Event>(events);
+			names = new LinkedHashMap<Long,String>(threads);
+			events.clear();
+			threads.clear();
+		}
+		Writer w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(out), "UTF-8"));
+		try {
+			w.write("{\"traceEvents\":[\n");
+			boolean first = true;
+			for (Map.Entry<Long,String> thread : names.entrySet()) {
+				if (!first) w.write(",\n");
+				first = false;
+				w.write("{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":"+thread.getKey()+",\"args\":{\"name\":"+quote(thread.getValue())+"}}");
+			}
+			for (Event e : finished) {
+				if (!first) w.write(",\n");
+				first = false;
+				e.write(w);
+			}
+			w.write("\n],\"displayTimeUnit\":\"ms\"}\n");
+		} finally {
+			w.close();
+		}
+	}
+
+	private static synchronized void record(Event event) {
+		if (output == null) return;
+		events.add(event);
+		if (!threads.containsKey(event.tid))
+			threads.put(event.tid, Thread.currentThread().getName());
+	}
+
+	private static class Event {
+		String category;
+		String name;
+		long tid;
+		long start;
+		long duration;
+		Map<String,Object> args;
+
+		void write(Writer w) throws IOException {
+			w.write("{\"name\":"+quote(name)+",\"cat\":"+quote(category)+",\"ph\":\"X\",\"pid\":1,\"tid\":"+tid);
+			w.write(",\"ts\":"+micros(start)+",\"dur\":"+micros(duration));
+			if (args != null) {
+				w.write(",\"args\":{");
+				boolean first = true;
+				for (Map.Entry<String,Object> arg : args.entrySet()) {
+					if (!first) w.write(",");
+					first = false;
+					Object v = arg.getValue();
+					w.write(quote(arg.getKey())+":"+(v instanceof Number || v instanceof Boolean ? v.toString() : quote(String.valueOf(v))));
+				}
+				w.write("}");
+			}
+			w.write("}");
+		}
+	}
+
+	/** A phase in progress.  Not thread safe; each belongs to the thread that began it. */
+	public static class Span {
+		private Span(String category, String name, Listener listener) {
+			event = new Event();
+			event.category = category;
+			event.name = name;
+			event.tid = Thread.currentThread().getId();
+			event.start = System.nanoTime() - base;
+			handle = listener == null ? null : listener.begin(category, name);
+			this.listener = handle == null ? null : listener;
+		}
+
+		private Span() {
+			event = null;
+			listener = null;
+			handle = null;
+		}
+
+		private final Event event;
+		private final Listener listener;
+		private final Object handle;
+
+		/** Attach a value (a string, number, or boolean) to show with the span. */
+		public Span arg(String key, Object value) {
+			if (event == null) return this;
+			if (event.args == null) event.args = new LinkedHashMap<String,Object>();
+			event.args.put(key, value);
+			return this;
+		}
+
+		/** Finish the span, and record it.  Calling this more than once records it once. */
+		public void end() {
+			if (event == null || event.duration != 0) return;
+			event.duration = Math.max(1, System.nanoTime() - base - event.start);
+			if (output != null)
+				record(event);
+			if (listener != null)
+				listener.end(handle, event.args);
+		}
+	}
+
+	private static final Span NOOP = new Span();
+
+	/**
+	 * Set this system property to {@code true} to have the Flight Recorder events
+	 * hooked up even if no recording is running yet, so that recordings started
+	 * later (with {@code jcmd <pid> JFR.start}, say, on a long-running daemon) get
+	 * them too.
+	 */
+	public static final String JFR_PROPERTY = "mdm.jfr";
+
+	static {
+		// setting up the jfr listener loads a good part of jfr, which would slow down every start; so only do it if asked, or if a recording was set up when the jvm started.
+		// asking jfr whether it's been set up loads just the one class.  the jfr tree itself is only there in builds made on a jdk that has jfr, and only loads on a jvm that does.
+		try {
+			if (Boolean.getBoolean(JFR_PROPERTY) || Boolean.TRUE.equals(Class.forName("jdk.jfr.FlightRecorder").getMethod("isInitialized").invoke(null)))
+				Class.forName("net.polydawn.mdm.jfr.JfrTrace").getMethod("install").invoke(null);
+		} catch (Exception e) {
+		} catch (LinkageError e) {}
+	}
+
+	private static String micros(long nanos) {
+		return String.format(Locale.ROOT, "%.3f", nanos / 1000.0);
+	}
+
+	private static String quote(String s) {
+		StringBuilder b = new StringBuilder(s.length() + 2).append('"');
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			switch (c) {
+				case '"':  b.append("\\\""); break;
+				case '\\': b.append("\\\\"); break;
+				case '\n': b.append("\\n"); break;
+				case '\r': b.append("\\r"); break;
+				case '\t': b.append("\\t"); break;
+				default:
+					if (c < 0x20) b.append(String.format("\\u%04x", (int) c));
+					else b.append(c);
+			}
+		}
+		return b.append('"').toString();
+	}
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2012 - 2014 Eric Myhre <http://exultant.us>
+ *
+ * This file is part of mdm <https://github.com/heavenlyhash/mdm/>.
+ *
+ * mdm is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package net.polydawn.mdm.util;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Recovers the unix modes of the entries in a zip that's being read as a stream.
+ * <p>
+ * A zip only says what unix mode its entries have in the central directory at its
+ * end, which {@link java.util.zip.ZipInputStream} stops at without reading. So this
+ * sits between the zip stream and where its bytes come from, counting them and
+ * keeping the last few, and once the zip stream runs out of entries,
+ * {@link #readModes()} reads the rest and picks the central directory out of it.
+ * Nothing is buffered but that window and the central directory itself.
+ */
+public class ZipModes extends FilterInputStream {
+	public ZipModes(InputStream in) {
+		super(in);
+	}
+
+	/** Bigger than the most {@link java.util.zip.ZipInputStream} ever reads past the end of the last entry. */
+	private static final int WINDOW = 65536;
+	/** Central directories bigger than this aren't worth holding in memory; those zips go without modes. */
+	private static final int MAX_TAIL = 64 << 20;
+
+	private static final int CEN_SIG = 0x02014b50;
+	private static final int END_SIG = 0x06054b50;
+	private static final int ZIP64_LOCATOR_SIG = 0x07064b50;
+	private static final int ZIP64_END_SIG = 0x06064b50;
+	/** The "version made by" host that means the external attributes hold a unix mode. */
+	private static final int HOST_UNIX = 3;
+
+	private final byte[] window = new byte[WINDOW];
+	/** How many bytes have been read through here in all. */
+	private long consumed;
+
+	@Override
+	public int read() throws IOException {
+		int b = in.read();
+		if (b >= 0) {
+			window[(int) (consumed % WINDOW)] = (byte) b;
+			consumed++;
+		}
+		return b;
+	}
+
+	@Override
+	public int read(byte[] buf, int off, int len) throws IOException {
+		int n = in.read(buf, off, len);
+		for (int i = Math.max(0, n - WINDOW); i < n; i++)
+			window[(int) ((consumed + i) % WINDOW)] = buf[off + i];
+		if (n > 0) consumed += n;
+		return n;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		// through read, so the window stays whole.
+		byte[] buf = new byte[(int) Math.min(n, 8192)];
+		long skipped = 0;
+		for (int r; skipped < n && (r = read(buf, 0, (int) Math.min(buf.length, n - skipped))) > 0; skipped += r);
+		return skipped;
+	}
+
+	@Override
+	public boolean markSupported() {
+		return false;
+	}
+
+	/**
+	 * Read the rest of the stream, and find the unix mode of each entry in the
+	 * central directory at its end. Call this once the zip stream has run out of
+	 * entries.
+	 *
+	 * @return the mode of each entry (by name) that has one; empty if the zip didn't
+	 *         come from a unix system, or its central directory can't be found.
+	 */
+	public Map<String,Integer> readModes() throws IOException {
+		Map<String,Integer> modes = new HashMap<String,Integer>();
+
+		// what's left of the window, then everything after it.
+		int kept = (int) Math.min(consumed, WINDOW);
+		long base = consumed - kept;
+		ByteArrayOutputStream tail = new ByteArrayOutputStream();
+		for (long i = base; i < consumed; i++)
+			tail.write(window[(int) (i % WINDOW)]);
+		byte[] buf = new byte[8192];
+		for (int r; (r = in.read(buf)) > 0;) {
+			if (tail.size() > MAX_TAIL) return modes;
+			tail.write(buf, 0, r);
+		}
+		byte[] b = tail.toByteArray();
+
+		// the end record is last, but for a comment; look back for its signature.
+		int end = -1;
+		for (int i = b.length - 22; i >= 0; i--)
+			if (u32(b, i) == END_SIG) {
+				end = i;
+				break;
+			}
+		if (end < 0) return modes;
+		long entries = u16(b, end + 10);
+		long offset = u32(b, end + 16);
+		if ((offset == 0xFFFFFFFFL || entries == 0xFFFF) && end >= 20 && u32(b, end - 20) == ZIP64_LOCATOR_SIG) {
+			int end64 = (int) (u64(b, end - 20 + 8) - base);
+			if (end64 < 0 || end64 + 56 > b.length || u32(b, end64) != ZIP64_END_SIG) return modes;
+			entries = u64(b, end64 + 32);
+			offset = u64(b, end64 + 48);
+		}
+
+		// the offset is from the start of the zip, which (with nothing stuck on the front of it) is where we started counting.
+		long pos = offset - base;
+		for (long i = 0; i < entries; i++) {
+			if (pos < 0 || pos + 46 > b.length || u32(b, (int) pos) != CEN_SIG) return modes;
+			int p = (int) pos;
+			int host = u16(b, p + 4) >> 8;
+			int nameLength = u16(b, p + 28);
+			int extraLength = u16(b, p + 30);
+			int commentLength = u16(b, p + 32);
+			long attributes = u32(b, p + 38);
+			if (p + 46 + nameLength > b.length) return modes;
+			if (host == HOST_UNIX)
+				modes.put(new String(b, p + 46, nameLength, "UTF-8"), (int) (attributes >>> 16));
+			pos += 46 + nameLength + extraLength + commentLength;
+		}
+		return modes;
+	}
+
+	private static int u16(byte[] b, int i) {
+		return (b[i] & 0xFF) | (b[i+1] & 0xFF) << 8;
+	}
+
+	private static long u32(byte[] b, int i) {
+		return u16(b, i) | (long) u16(b, i+2) << 16;
+	}
+
+	private static long u64(byte[] b, int i) {
+		return u32(b, i) | u32(b, i+4) << 32;
+	}
+}
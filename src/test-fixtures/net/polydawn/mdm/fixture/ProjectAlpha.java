@@ -20,11 +20,9 @@ public class ProjectAlpha implements Fixture {
 	public ProjectAlpha(String path) throws IOException {
 		repo = setUpPlainRepo(path);
 
-		WithCwd wd = new WithCwd(repo.getWorkTree()); {
-			IOForge.saveFile("alpha file 1", new File("./alpha").getCanonicalFile());
-			new File("./dir/").getCanonicalFile().mkdirs();
-			IOForge.saveFile("alpha file 2", new File("./dir/alpha2").getCanonicalFile());
-		} wd.close();
+		IOForge.saveFile("alpha file 1", new File(repo.getWorkTree(), "alpha"));
+		new File(repo.getWorkTree(), "dir").mkdirs();
+		IOForge.saveFile("alpha file 2", new File(repo.getWorkTree(), "dir/alpha2"));
 
 		try {
 			new Git(repo).add()
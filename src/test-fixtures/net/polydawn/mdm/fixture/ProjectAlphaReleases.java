@@ -19,9 +19,7 @@ public class ProjectAlphaReleases implements Fixture {
 		try {
 			repo = setUpReleaseRepo(path);
 
-			WithCwd wd = new WithCwd(new File(path, ".git/staging")); {
-				IOForge.saveFile("alpha release", new File("./alpha").getCanonicalFile());
-			} wd.close();
+			IOForge.saveFile("alpha release", new File(path, ".git/staging/alpha").getCanonicalFile());
 
 			MdmReleaseCommand cmd = new MdmReleaseCommand(null);
 			cmd.relRepoPath = new File(path).getCanonicalPath();
@@ -4,6 +4,7 @@ import static org.junit.Assert.*;
 import java.io.*;
 import net.polydawn.mdm.*;
 import net.polydawn.mdm.jgit.*;
+import org.eclipse.jgit.util.*;
 import org.junit.*;
 
 public class TestCaseUsingRepository {
@@ -13,6 +14,7 @@ public class TestCaseUsingRepository {
 	}
 
 	private WithCwd wd;
+	private File realHome;
 
 	@After
 	public void cleanup() {
@@ -20,11 +22,18 @@ public class TestCaseUsingRepository {
 			wd.clear();
 			wd = null;
 		}
+		if (realHome != null) {
+			FS.DETECTED.setUserHome(realHome);
+			realHome = null;
+		}
 	}
 
 	@Before
 	public void setUp() throws IOException {
 		wd = WithCwd.temp();
+		// give each test a home of its own, so the caches mdm keeps under ~ (like the version manifest cache) and the user's gitconfig stay out of it.
+		realHome = FS.DETECTED.userHome();
+		FS.DETECTED.setUserHome(WithCwd.createUniqueTestFolderPrefix());
 	}
 
 	public void assertJoy(MdmExitMessage result) {
@@ -0,0 +1,227 @@
+/*
+ * Copyright 2012 - 2014 Eric Myhre <http://exultant.us>
+ *
+ * This file is part of mdm <https://github.com/heavenlyhash/mdm/>.
+ *
+ * mdm is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.polydawn.mdm;
+
+import static org.junit.Assert.*;
+import java.io.*;
+import java.net.*;
+import java.util.concurrent.*;
+import net.polydawn.mdm.fixture.*;
+import net.polydawn.mdm.test.*;
+import org.eclipse.jgit.api.*;
+import org.junit.*;
+import org.junit.runner.*;
+import us.exultant.ahs.iob.*;
+
+@RunWith(OrderedJUnit4ClassRunner.class)
+public class MdmDaemonTest extends TestCaseUsingRepository {
+	private String realHome;
+	private Thread daemonThread;
+	private ByteArrayOutputStream stdout;
+	private ByteArrayOutputStream stderr;
+
+	@Before
+	public void sandboxHome() throws IOException {
+		// the daemon's state file lives under the home dir.
+		realHome = System.getProperty("user.home");
+		System.setProperty("user.home", new File("home").getCanonicalPath());
+	}
+
+	@After
+	public void stopDaemon() throws Exception {
+		if (daemonThread != null && daemonThread.isAlive()) {
+			run(new File(".").getCanonicalFile(), "daemon", "--stop");
+			daemonThread.join(10000);
+		}
+		System.setProperty("user.home", realHome);
+	}
+
+	private void startDaemon(final MdmDaemon daemon) throws Exception {
+		daemonThread = new Thread("test daemon") {
+			public void run() {
+				try {
+					daemon.serve();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		};
+		daemonThread.start();
+		long deadline = System.currentTimeMillis() + 10000;
+		while (!MdmDaemonClient.isRunning()) {
+			assertTrue("daemon should come up", System.currentTimeMillis() < deadline);
+			Thread.sleep(10);
+		}
+	}
+
+	private Integer run(File cwd, String... args) {
+		stdout = new ByteArrayOutputStream();
+		stderr = new ByteArrayOutputStream();
+		return MdmDaemonClient.tryRun(args, cwd, new PrintStream(stdout, true), new PrintStream(stderr, true));
+	}
+
+	private File project() throws Exception {
+		File dir = new File("project").getCanonicalFile();
+		Git.init().setDirectory(dir).call();
+		return dir;
+	}
+
+	@Test
+	public void relaysOutputAndExitCode() throws Exception {
+		File project = project();
+		startDaemon(new MdmDaemon(60000));
+
+		assertEquals(Integer.valueOf(0), run(project, "status"));
+		assertTrue(stdout.toString(), stdout.toString().contains("no managed dependencies"));
+
+		assertEquals("argument errors exit 1", Integer.valueOf(1), run(project, "update", "--no-such-option"));
+		assertTrue(stderr.toString(), stderr.toString().contains("--no-such-option"));
+	}
+
+	@Test
+	public void runsCommandsInTheClientsWorkingDirectory() throws Exception {
+		File project = project();
+		File elsewhere = new File("elsewhere").getCanonicalFile();
+		elsewhere.mkdirs();
+		String cwd = System.getProperty("user.dir");
+		startDaemon(new MdmDaemon(60000));
+
+		// our own working directory isn't a repo at all; the daemon's is wherever the client says.
+		assertEquals(Integer.valueOf(0), run(project, "status"));
+		assertNotEquals(Integer.valueOf(0), run(elsewhere, "status"));
+		assertTrue(stderr.toString(), stderr.toString().contains("should be run from inside your git repo"));
+		assertEquals("daemon puts the working directory back", cwd, System.getProperty("user.dir"));
+	}
+
+	@Test
+	public void updatesFromALocalReleasesRepo() throws Exception {
+		Fixture remoteProject = new ProjectAlpha("projectRemote");
+		Fixture releases = new ProjectBetaReleases("projectRepo-releases");
+		startDaemon(new MdmDaemon(60000));
+
+		Integer code = run(remoteProject.getRepo().getWorkTree(), "add", releases.getRepo().getWorkTree().toString(), "--name=depname", "--lib=lib", "--version=v1.1");
+		assertEquals(stderr.toString(), Integer.valueOf(0), code);
+		Fixture project = new ProjectClone("projectRepo", remoteProject.getRepo());
+
+		code = run(project.getRepo().getWorkTree(), "update");
+		assertEquals(stderr.toString(), Integer.valueOf(0), code);
+		assertTrue(stderr.toString(), stderr.toString().contains("mdm dependencies have been updated (1 changed, 0 unaffected)"));
+		assertEquals("content of artifact is correct", "beta release 1.1", IOForge.readFileAsString(new File(project.getRepo().getWorkTree(), "lib/depname/beta")));
+
+		// the daemon keeps the repo open; a second update sees what the first did.
+		code = run(project.getRepo().getWorkTree(), "update");
+		assertEquals(stderr.toString(), Integer.valueOf(0), code);
+		assertTrue(stderr.toString(), stderr.toString().contains("(0 changed, 1 unaffected)"));
+	}
+
+	@Test
+	public void rejectsClientsWithoutTheToken() throws Exception {
+		File project = project();
+		startDaemon(new MdmDaemon(60000));
+		File state = MdmDaemonClient.stateFile();
+		String[] lines = IOForge.readFileAsString(state).split("\n");
+
+		IOForge.saveFile(lines[0]+"\n"+"0000"+"\n", state);
+		assertNull("a client with the wrong token runs the command itself", run(project, "status"));
+		assertEquals("and sees none of the daemon's output", 0, stdout.size() + stderr.size());
+
+		IOForge.saveFile(lines[0]+"\n"+lines[1]+"\n", state);
+		assertEquals(Integer.valueOf(0), run(project, "status"));
+	}
+
+	@Test
+	public void stopsWhenAsked() throws Exception {
+		startDaemon(new MdmDaemon(60000));
+
+		assertEquals(Integer.valueOf(0), run(new File(".").getCanonicalFile(), "daemon", "--stop"));
+		assertTrue(stderr.toString(), stderr.toString().contains("mdm daemon stopped."));
+		daemonThread.join(10000);
+		assertFalse("daemon ended", daemonThread.isAlive());
+		assertFalse("state file removed", MdmDaemonClient.stateFile().exists());
+		assertFalse(MdmDaemonClient.isRunning());
+	}
+
+	@Test
+	public void fallsBackWhenTheStateFileIsStale() throws Exception {
+		File project = project();
+		File state = MdmDaemonClient.stateFile();
+		state.getParentFile().mkdirs();
+
+		// nothing listening on the port any more.
+		ServerSocket gone = new ServerSocket(0, 50, InetAddress.getByName(null));
+		gone.close();
+		IOForge.saveFile(gone.getLocalPort()+"\n"+"0000"+"\n", state);
+		assertNull(run(project, "status"));
+
+		// something else got the port, and doesn't speak our protocol.
+		ServerSocket stranger = new ServerSocket(0, 50, InetAddress.getByName(null));
+		try {
+			IOForge.saveFile(stranger.getLocalPort()+"\n"+"0000"+"\n", state);
+			assertNull(run(project, "status"));
+		} finally {
+			stranger.close();
+		}
+	}
+
+	@Test
+	public void sendsClientsAwayWhileBusy() throws Exception {
+		final File project = project();
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		startDaemon(new MdmDaemon(60000) {
+			int run(DataOutputStream out, String cwd, String[] args) throws IOException {
+				if (args[0].equals("update")) {
+					started.countDown();
+					try {
+						release.await();
+					} catch (InterruptedException e) {}
+				}
+				return super.run(out, cwd, args);
+			}
+		});
+		final Integer[] first = new Integer[1];
+		Thread client = new Thread() {
+			public void run() {
+				first[0] = MdmDaemonClient.tryRun(new String[] { "update" }, project, new PrintStream(new ByteArrayOutputStream()), new PrintStream(new ByteArrayOutputStream()));
+			}
+		};
+		client.start();
+		try {
+			assertTrue(started.await(10, TimeUnit.SECONDS));
+
+			long before = System.currentTimeMillis();
+			assertNull("a second client runs its command itself", run(project, "status"));
+			assertTrue("and doesn't wait on the daemon to find that out", System.currentTimeMillis() - before < 1000);
+
+			// a client that connects and never says anything doesn't hold anyone up either.
+			Socket silent = new Socket(InetAddress.getByName(null), Integer.parseInt(IOForge.readFileAsString(MdmDaemonClient.stateFile()).split("\n")[0]));
+			try {
+				release.countDown();
+				client.join(10000);
+				assertEquals(Integer.valueOf(0), first[0]);
+				assertEquals(Integer.valueOf(0), run(project, "status"));
+			} finally {
+				silent.close();
+			}
+		} finally {
+			release.countDown();
+		}
+	}
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2012 - 2014 Eric Myhre <http://exultant.us>
+ *
+ * This file is part of mdm <https://github.com/heavenlyhash/mdm/>.
+ *
+ * mdm is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.polydawn.mdm;
+
+import static org.junit.Assert.*;
+import java.io.*;
+import java.util.*;
+import net.polydawn.mdm.fixture.*;
+import net.polydawn.mdm.test.*;
+import org.eclipse.jgit.lib.*;
+import org.junit.*;
+import org.junit.runner.*;
+
+@RunWith(OrderedJUnit4ClassRunner.class)
+public class VersionManifestCacheTest extends TestCaseUsingRepository {
+	@Test
+	public void cached_versions_are_revalidated_against_local_remote_refs() throws Exception {
+		Fixture releases = new ProjectBetaReleases("projectRepo-releases");
+		String url = releases.getRepo().getWorkTree().toString();
+		VersionManifestCache cache = new VersionManifestCache(new File("manifests").getCanonicalFile(), 300000);
+
+		assertEquals(Arrays.asList("v1.0", "v1.1", "v2.0"), cache.getVersions(releases.getRepo(), url, null));
+		assertEquals("one url cached", 1, new File("manifests").getCanonicalFile().list().length);
+
+		// a new release branch changes the remote's refs, so the cached list doesn't stand.
+		RefUpdate update = releases.getRepo().updateRef("refs/heads/mdm/release/v3.0");
+		update.setNewObjectId(releases.getRepo().resolve("refs/heads/mdm/release/v2.0"));
+		update.update();
+		assertEquals(Arrays.asList("v1.0", "v1.1", "v2.0", "v3.0"), cache.getVersions(releases.getRepo(), url, null));
+	}
+
+	@Test
+	public void offline_answers_only_from_the_cache() throws Exception {
+		Fixture releases = new ProjectBetaReleases("projectRepo-releases");
+		String url = releases.getRepo().getWorkTree().toString();
+		VersionManifestCache cache = new VersionManifestCache(new File("manifests").getCanonicalFile(), 300000);
+
+		try {
+			new VersionManifestCache(new File("manifests").getCanonicalFile(), 300000).setOffline(true).getVersions(releases.getRepo(), url, null);
+			fail("never-listed url should have no versions offline");
+		} catch (MdmExitMessage e) {}
+
+		cache.getVersions(releases.getRepo(), url, null);
+		RefUpdate update = releases.getRepo().updateRef("refs/heads/mdm/release/v3.0");
+		update.setNewObjectId(releases.getRepo().resolve("refs/heads/mdm/release/v2.0"));
+		update.update();
+		assertEquals("offline doesn't look at the remote at all", Arrays.asList("v1.0", "v1.1", "v2.0"), cache.setOffline(true).getVersions(releases.getRepo(), url, "v3.0"));
+	}
+
+	@Test
+	public void local_remotes_are_listed_by_ref_prefix() throws Exception {
+		Fixture releases = new ProjectBetaReleases("projectRepo-releases");
+		File path = releases.getRepo().getWorkTree();
+		assertEquals(releases.getRepo().getDirectory(), Plumbing.getLocalGitDir(path.toString()));
+		assertEquals(releases.getRepo().getDirectory(), Plumbing.getLocalGitDir("file://"+path));
+		assertNull(Plumbing.getLocalGitDir("https://example.com/releases.git"));
+		assertEquals(Arrays.asList("v1.0", "v1.1", "v2.0"), Plumbing.listVersions(releases.getRepo(), "file://"+path));
+	}
+}
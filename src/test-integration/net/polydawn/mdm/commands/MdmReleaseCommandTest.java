@@ -3,8 +3,11 @@ package net.polydawn.mdm.commands;
 import static org.junit.Assert.*;
 import java.io.*;
 import java.util.*;
+import java.util.zip.*;
 import net.polydawn.mdm.*;
+import net.polydawn.mdm.jgit.*;
 import net.polydawn.mdm.test.*;
+import org.eclipse.jgit.internal.storage.file.*;
 import org.eclipse.jgit.lib.*;
 import org.junit.*;
 import org.junit.rules.*;
@@ -147,4 +150,194 @@ public class MdmReleaseCommandTest extends TestCaseUsingRepository {
 		assertEquals("b", files.get(1));
 		assertEquals("d", files.get(2));
 	}
+
+	@Test
+	public void releaseZipFromStdinSameAsReleasingItsFiles() throws Exception {
+		prepareUnparentedReleaseRepo("rel-files");
+		prepareUnparentedReleaseRepo("rel-zip");
+
+		new File("dir/sub").getCanonicalFile().mkdirs();
+		IOForge.saveFile("alpha", new File("./dir/a").getCanonicalFile());
+		IOForge.saveFile("beta",  new File("./dir/sub/b").getCanonicalFile());
+		cmd = new MdmReleaseCommand(null);
+		cmd.relRepoPath = new File("rel-files").getCanonicalPath();
+		cmd.version = "v1";
+		cmd.inputPath = "dir/";
+		cmd.accumulateData = true;
+		cmd.validate();
+		assertJoy(cmd.call());
+
+		ByteArrayOutputStream zipped = new ByteArrayOutputStream();
+		ZipOutputStream zip = new ZipOutputStream(zipped);
+		zip.putNextEntry(new ZipEntry("a"));
+		zip.write("alpha".getBytes("UTF-8"));
+		zip.putNextEntry(new ZipEntry("sub/"));
+		zip.putNextEntry(new ZipEntry("sub/b"));
+		zip.write("beta".getBytes("UTF-8"));
+		zip.close();
+		cmd = new MdmReleaseCommand(null);
+		cmd.relRepoPath = new File("rel-zip").getCanonicalPath();
+		cmd.version = "v1";
+		cmd.inputPath = MdmReleaseCommand.FILES_FROM_STDIN;
+		cmd.stdin = new ByteArrayInputStream(zipped.toByteArray());
+		cmd.accumulateData = true;
+		cmd.validate();
+		assertJoy(cmd.call());
+
+		Repository filesRepo = new RepositoryBuilder().setWorkTree(new File("rel-files").getCanonicalFile()).build();
+		Repository zipRepo = new RepositoryBuilder().setWorkTree(new File("rel-zip").getCanonicalFile()).build();
+		assertEquals("release commit converges", filesRepo.resolve("refs/heads/mdm/release/v1"), zipRepo.resolve("refs/heads/mdm/release/v1"));
+		assertEquals("release file present in version dir", "beta", IOForge.readFileAsString(new File("rel-zip/v1/sub/b").getCanonicalFile()));
+	}
+
+	@Test
+	public void inMemoryReleaseFollowsSymlinksLikeCheckout() throws Exception {
+		prepareUnparentedReleaseRepo("rel-checkout");
+		prepareUnparentedReleaseRepo("rel-memory");
+
+		new File("dir/sub").getCanonicalFile().mkdirs();
+		IOForge.saveFile("alpha", new File("./dir/a").getCanonicalFile());
+		IOForge.saveFile("beta",  new File("./dir/sub/b").getCanonicalFile());
+		File dir = new File("dir").getCanonicalFile();
+		Assume.assumeTrue(symlink(dir, "a", "link-a") && symlink(dir, "sub", "link-sub"));
+
+		for (String rel : new String[] { "rel-checkout", "rel-memory" }) {
+			cmd = new MdmReleaseCommand(null);
+			cmd.relRepoPath = new File(rel).getCanonicalPath();
+			cmd.version = "v1";
+			cmd.inputPath = "dir/";
+			cmd.inMemory = rel.equals("rel-memory");
+			cmd.validate();
+			assertJoy(cmd.call());
+		}
+
+		Repository checkoutRepo = new RepositoryBuilder().setWorkTree(new File("rel-checkout").getCanonicalFile()).build();
+		Repository memoryRepo = new RepositoryBuilder().setWorkTree(new File("rel-memory").getCanonicalFile()).build();
+		assertEquals("release commit converges", checkoutRepo.resolve("refs/heads/mdm/release/v1"), memoryRepo.resolve("refs/heads/mdm/release/v1"));
+		assertEquals("linked directory released as its contents", "beta", new String(memoryRepo.open(memoryRepo.resolve("refs/heads/mdm/release/v1:link-sub/b")).getBytes(), "UTF-8"));
+	}
+
+	/** Make a symlink with `ln`, since java 6 can't.  False if that didn't work out. */
+	private static boolean symlink(File dir, String target, String name) throws InterruptedException {
+		try {
+			return new ProcessBuilder("ln", "-s", target, name).directory(dir).start().waitFor() == 0;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	@Test
+	public void repackStoresNewVersionAsDeltaAgainstPrevious() throws Exception {
+		prepareUnparentedReleaseRepo("rel");
+		Repository relRepo = new RepositoryBuilder().setWorkTree(new File("rel").getCanonicalFile()).build();
+		relRepo.getConfig().setBoolean("mdm", "release", "repack", true);
+		relRepo.getConfig().save();
+
+		// incompressible, so the only way two versions fit in less than twice the space is as a delta.
+		byte[] artifact = new byte[100000];
+		new Random(4).nextBytes(artifact);
+		new File("dir").getCanonicalFile().mkdirs();
+		for (String version : new String[] { "v1", "v2" }) {
+			OutputStream out = new FileOutputStream(new File("dir/lib.jar").getCanonicalFile(), true);
+			out.write(version.equals("v1") ? artifact : "more".getBytes("UTF-8"));
+			out.close();
+			cmd = new MdmReleaseCommand(null);
+			cmd.relRepoPath = new File("rel").getCanonicalPath();
+			cmd.version = version;
+			cmd.inputPath = "dir/";
+			cmd.validate();
+			assertJoy(cmd.call());
+		}
+
+		relRepo = new RepositoryBuilder().setWorkTree(new File("rel").getCanonicalFile()).build();
+		ObjectId v1 = relRepo.resolve("refs/heads/mdm/release/v1:lib.jar");
+		ObjectId v2 = relRepo.resolve("refs/heads/mdm/release/v2:lib.jar");
+		File[] packs = new File(relRepo.getDirectory(), "objects/pack").listFiles(new FilenameFilter() {
+			public boolean accept(File dir, String name) {
+				return name.endsWith(".pack");
+			}
+		});
+		assertEquals("the first version had nothing to delta against, so only the second was packed", 1, packs.length);
+		PackIndex index = PackIndex.open(new File(packs[0].getPath().replaceFirst("\\.pack$", ".idx")));
+		assertTrue("second version packed", index.hasObject(v2));
+		assertTrue("first version packed alongside it, as the delta's base", index.hasObject(v1));
+		assertFalse("first release's commit not packed again", index.hasObject(relRepo.resolve("refs/heads/mdm/release/v1")));
+		assertTrue("second version stored as a delta (pack is "+packs[0].length()+" bytes)", packs[0].length() < 150000);
+		assertFalse("first version's loose copy pruned", loose(relRepo, v1).exists());
+		assertFalse("second version's loose copy pruned", loose(relRepo, v2).exists());
+		assertTrue("both versions take little more space than one ("+sizeOf(new File(relRepo.getDirectory(), "objects"))+" bytes)", sizeOf(new File(relRepo.getDirectory(), "objects")) < 150000);
+		assertEquals("second version reads back whole", artifact.length + 4, relRepo.open(v2).getSize());
+		assertEquals("first version reads back whole", artifact.length, relRepo.open(v1).getSize());
+	}
+
+	@Test
+	public void repackDoesNotStoreInMemoryReleasesTwice() throws Exception {
+		prepareUnparentedReleaseRepo("rel");
+		Repository relRepo = new RepositoryBuilder().setWorkTree(new File("rel").getCanonicalFile()).build();
+		relRepo.getConfig().setBoolean("mdm", "release", "repack", true);
+		relRepo.getConfig().save();
+
+		byte[] artifact = new byte[100000];
+		new Random(4).nextBytes(artifact);
+		new File("dir").getCanonicalFile().mkdirs();
+		for (String version : new String[] { "v1", "v2" }) {
+			OutputStream out = new FileOutputStream(new File("dir/lib.jar").getCanonicalFile(), true);
+			out.write(version.equals("v1") ? artifact : "more".getBytes("UTF-8"));
+			out.close();
+			cmd = new MdmReleaseCommand(null);
+			cmd.relRepoPath = new File("rel").getCanonicalPath();
+			cmd.version = version;
+			cmd.inputPath = "dir/";
+			cmd.inMemory = true;
+			cmd.validate();
+			assertJoy(cmd.call());
+		}
+
+		relRepo = new RepositoryBuilder().setWorkTree(new File("rel").getCanonicalFile()).build();
+		ObjectId v2 = relRepo.resolve("refs/heads/mdm/release/v2:lib.jar");
+		int copies = 0;
+		for (File idx : new File(relRepo.getDirectory(), "objects/pack").listFiles())
+			if (idx.getName().endsWith(".idx") && PackIndex.open(idx).hasObject(v2))
+				copies++;
+		assertEquals("second version only in the pack it was released into", 1, copies);
+		assertTrue("two versions take no more than two copies ("+sizeOf(new File(relRepo.getDirectory(), "objects"))+" bytes)", sizeOf(new File(relRepo.getDirectory(), "objects")) < 250000);
+	}
+
+	private static File loose(Repository repo, ObjectId id) {
+		return new File(repo.getDirectory(), "objects/"+id.name().substring(0, 2)+"/"+id.name().substring(2));
+	}
+
+	private static long sizeOf(File f) {
+		if (f.isFile()) return f.length();
+		long size = 0;
+		File[] children = f.listFiles();
+		if (children != null)
+			for (File child : children)
+				size += sizeOf(child);
+		return size;
+	}
+
+	@Test
+	public void releaseKeepsPublishedVersionIndex() throws Exception {
+		prepareUnparentedReleaseRepo("rel");
+		IOForge.saveFile("alpha", new File("./a").getCanonicalFile());
+		for (String version : new String[] { "v1", "v2" }) {
+			cmd = new MdmReleaseCommand(null);
+			cmd.relRepoPath = new File("rel").getCanonicalPath();
+			cmd.version = version;
+			cmd.inputPath = "a";
+			cmd.inMemory = version.equals("v2");
+			cmd.validate();
+			assertJoy(cmd.call());
+		}
+
+		Repository relRepo = new RepositoryBuilder().setWorkTree(new File("rel").getCanonicalFile()).build();
+		assertEquals(
+			Arrays.asList(
+				new PublishedVersionIndex.Entry("v1", relRepo.resolve("refs/heads/mdm/release/v1"), 5),
+				new PublishedVersionIndex.Entry("v2", relRepo.resolve("refs/heads/mdm/release/v2"), 5)
+			),
+			PublishedVersionIndex.read(relRepo)
+		);
+	}
 }
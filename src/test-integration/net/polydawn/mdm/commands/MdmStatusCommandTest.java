@@ -0,0 +1,50 @@
+package net.polydawn.mdm.commands;
+
+import static org.junit.Assert.*;
+import java.io.*;
+import net.polydawn.mdm.*;
+import net.polydawn.mdm.fixture.*;
+import net.polydawn.mdm.test.*;
+import org.junit.*;
+import org.junit.runner.*;
+import us.exultant.ahs.iob.*;
+
+@RunWith(OrderedJUnit4ClassRunner.class)
+public class MdmStatusCommandTest extends TestCaseUsingRepository {
+	@Test
+	public void testQuickStatusNoticesChangedFiles() throws Exception {
+		Fixture remoteProject = new ProjectAlpha("projectRemote");
+		Fixture releases = new ProjectBetaReleases("projectBeta-releases");
+
+		WithCwd wd = new WithCwd(remoteProject.getRepo().getWorkTree()); {
+			MdmAddCommand cmd = new MdmAddCommand(remoteProject.getRepo());
+			cmd.url = releases.getRepo().getWorkTree().toString();
+			cmd.name = "beta";
+			cmd.pathLibs = new File("lib");
+			cmd.version = "v1.1";
+			cmd.validate();
+			assertJoy(cmd.call());
+		} wd.close();
+
+		Fixture project = new ProjectClone("projectRepo", remoteProject.getRepo());
+		assertJoy(new MdmUpdateCommand(project.getRepo()).call());
+
+		MdmStatusCommand cmd = new MdmStatusCommand(project.getRepo());
+		cmd.quick = true;
+		MdmModule module = new MdmModuleSet(project.getRepo()).getDependencyModules().get("lib/beta");
+		assertEquals("freshly updated dependency is clean", "[]", cmd.status(module).warnings.toString());
+
+		// an untracked file doesn't show up in a quick check, but does in a full one.
+		IOForge.saveFile("", new File(project.getRepo().getWorkTree(), "lib/beta/untracked"));
+		module = new MdmModuleSet(project.getRepo()).getDependencyModules().get("lib/beta");
+		assertTrue("quick check ignores untracked files", cmd.status(module).warnings.isEmpty());
+		cmd.quick = false;
+		assertEquals("full check notices untracked files", 1, cmd.status(module).warnings.size());
+
+		// a changed tracked file shows up either way.
+		cmd.quick = true;
+		IOForge.saveFile("some other content", new File(project.getRepo().getWorkTree(), "lib/beta/beta"));
+		module = new MdmModuleSet(project.getRepo()).getDependencyModules().get("lib/beta");
+		assertEquals("quick check notices changed files", 1, cmd.status(module).warnings.size());
+	}
+}
@@ -3,10 +3,12 @@ package net.polydawn.mdm.commands;
 import static org.junit.Assert.*;
 import java.io.*;
 import java.util.*;
+import net.polydawn.mdm.*;
 import net.polydawn.mdm.fixture.*;
 import net.polydawn.mdm.test.*;
 import org.eclipse.jgit.api.*;
 import org.eclipse.jgit.lib.*;
+import org.eclipse.jgit.storage.file.*;
 import org.junit.*;
 import org.junit.runner.*;
 import us.exultant.ahs.iob.*;
@@ -61,4 +63,258 @@ public class MdmUpdateCommandTest extends TestCaseUsingRepository {
 		assertEquals("exactly two files exist (.git and the artifact)", 2, depWorkTreePath.listFiles().length);
 		assertEquals("content of artifact is correct", "beta release 1.1", IOForge.readFileAsString(new File(depWorkTreePath, "beta")));
 	}
+
+	@Test
+	public void testUpdateSeveralDependenciesConcurrently() throws Exception {
+		Fixture remoteProject = new ProjectAlpha("projectRemote");
+		Fixture releasesAlpha = new ProjectAlphaReleases("projectAlpha-releases");
+		Fixture releasesBeta = new ProjectBetaReleases("projectBeta-releases");
+
+		// Add a couple things to the project.
+		WithCwd wd = new WithCwd(remoteProject.getRepo().getWorkTree()); {
+			MdmAddCommand cmd = new MdmAddCommand(remoteProject.getRepo());
+			cmd.url = releasesAlpha.getRepo().getWorkTree().toString();
+			cmd.name = "alpha";
+			cmd.pathLibs = new File("lib");
+			cmd.version = "v1";
+			cmd.validate();
+			assertJoy(cmd.call());
+
+			cmd = new MdmAddCommand(remoteProject.getRepo());
+			cmd.url = releasesBeta.getRepo().getWorkTree().toString();
+			cmd.name = "beta";
+			cmd.pathLibs = new File("lib");
+			cmd.version = "v2.0";
+			cmd.validate();
+			assertJoy(cmd.call());
+		} wd.close();
+
+		// Clone, and update with more jobs than there are dependencies.
+		Fixture project = new ProjectClone("projectRepo", remoteProject.getRepo());
+		MdmUpdateCommand cmd = new MdmUpdateCommand(project.getRepo());
+		cmd.jobs = 4;
+		cmd.validate();
+		MdmExitMessage result = cmd.call();
+		assertJoy(result);
+		assertTrue("both dependencies reported as changed", result.getMessage().startsWith("mdm dependencies have been updated (2 changed, 0 unaffected)"));
+
+		// both dependencies should be in place, and both should be registered in the parent's config despite having been initialized at the same time.
+		assertEquals("content of artifact is correct", "alpha release", IOForge.readFileAsString(new File(project.getRepo().getWorkTree(), "lib/alpha/alpha")));
+		assertEquals("content of artifact is correct", "beta release 2.0", IOForge.readFileAsString(new File(project.getRepo().getWorkTree(), "lib/beta/beta")));
+		StoredConfig config = new RepositoryBuilder().setGitDir(project.getRepo().getDirectory()).build().getConfig();
+		assertNotNull("alpha initialized in parent config", config.getString("submodule", "lib/alpha", "url"));
+		assertNotNull("beta initialized in parent config", config.getString("submodule", "lib/beta", "url"));
+
+		// a second update should find nothing to do.
+		cmd = new MdmUpdateCommand(project.getRepo());
+		cmd.jobs = 4;
+		result = cmd.call();
+		assertJoy(result);
+		assertTrue("both dependencies reported as unaffected", result.getMessage().startsWith("mdm dependencies have been updated (0 changed, 2 unaffected)"));
+	}
+
+	@Test
+	public void testUpdateReportsProgressAcrossConcurrentFetches() throws Exception {
+		Fixture remoteProject = new ProjectAlpha("projectRemote");
+		Fixture releasesAlpha = new ProjectAlphaReleases("projectAlpha-releases");
+		Fixture releasesBeta = new ProjectBetaReleases("projectBeta-releases");
+
+		WithCwd wd = new WithCwd(remoteProject.getRepo().getWorkTree()); {
+			MdmAddCommand cmd = new MdmAddCommand(remoteProject.getRepo());
+			cmd.url = releasesAlpha.getRepo().getWorkTree().toString();
+			cmd.name = "alpha";
+			cmd.pathLibs = new File("lib");
+			cmd.version = "v1";
+			cmd.validate();
+			assertJoy(cmd.call());
+
+			cmd = new MdmAddCommand(remoteProject.getRepo());
+			cmd.url = releasesBeta.getRepo().getWorkTree().toString();
+			cmd.name = "beta";
+			cmd.pathLibs = new File("lib");
+			cmd.version = "v2.0";
+			cmd.validate();
+			assertJoy(cmd.call());
+		} wd.close();
+
+		// progress goes wherever the command prints, which is stderr.
+		Fixture project = new ProjectClone("projectRepo", remoteProject.getRepo());
+		ByteArrayOutputStream captured = new ByteArrayOutputStream();
+		PrintStream stderr = System.err;
+		System.setErr(new PrintStream(captured, true, "UTF-8"));
+		try {
+			MdmUpdateCommand cmd = new MdmUpdateCommand(project.getRepo());
+			cmd.jobs = 2;
+			cmd.progressStyle = "json";
+			cmd.validate();
+			assertJoy(cmd.call());
+		} finally {
+			System.setErr(stderr);
+		}
+
+		String summary = null;
+		for (String line : captured.toString("UTF-8").split("\n"))
+			if (line.startsWith("{") && line.contains("\"finished\":true"))
+				summary = line;
+		assertNotNull("a final progress summary was printed", summary);
+		assertTrue(summary, summary.contains("\"fetching\":[],\"fetched\":2,"));
+		assertFalse(summary, summary.contains("\"objects\":0,"));
+	}
+
+	@Test
+	public void testUpdateSkipsModulesUnchangedSinceLastUpdate() throws Exception {
+		Fixture remoteProject = new ProjectAlpha("projectRemote");
+		Fixture releases = new ProjectBetaReleases("projectRepo-releases");
+
+		WithCwd wd = new WithCwd(remoteProject.getRepo().getWorkTree()); {
+			MdmAddCommand cmd = new MdmAddCommand(remoteProject.getRepo());
+			cmd.url = releases.getRepo().getWorkTree().toString();
+			cmd.name = "depname";
+			cmd.pathLibs = new File("lib");
+			cmd.version = "v1.1";
+			cmd.validate();
+			assertJoy(cmd.call());
+		} wd.close();
+
+		Fixture project = new ProjectClone("projectRepo", remoteProject.getRepo());
+		assertJoy(new MdmUpdateCommand(project.getRepo()).call());
+
+		// the update should have left a record.  anything touched in the same second as it was written can't be trusted, so nothing is skipped while that's the case.
+		File stateFile = new File(project.getRepo().getDirectory(), "mdm/update-state");
+		File artifact = new File(project.getRepo().getWorkTree(), "lib/depname/beta");
+		assertTrue("update state recorded", stateFile.isFile());
+		stateFile.setLastModified(artifact.lastModified() / 1000 * 1000 + 999);
+		assertTrue("module touched in the same second as the record is not skipped", new MdmModuleSet(project.getRepo(), MdmUpdateState.load(project.getRepo())).getSkippedHandles().isEmpty());
+
+		// once a second has gone by, another update writes a record that can be trusted.
+		Thread.sleep(1100);
+		assertJoy(new MdmUpdateCommand(project.getRepo()).call());
+		assertEquals("unchanged module is skipped", Collections.singleton("lib/depname"), new MdmModuleSet(project.getRepo(), MdmUpdateState.load(project.getRepo())).getSkippedHandles());
+
+		MdmExitMessage result = new MdmUpdateCommand(project.getRepo()).call();
+		assertJoy(result);
+		assertTrue("skipped module reported as unaffected", result.getMessage().startsWith("mdm dependencies have been updated (0 changed, 1 unaffected)"));
+
+		// a parent config that's lost the module's url means the record no longer applies, and update puts the url back.
+		StoredConfig config = project.getRepo().getConfig();
+		config.unset("submodule", "lib/depname", "url");
+		config.save();
+		assertTrue("module missing from the parent config is not skipped", new MdmModuleSet(project.getRepo(), MdmUpdateState.load(project.getRepo())).getSkippedHandles().isEmpty());
+		assertJoy(new MdmUpdateCommand(project.getRepo()).call());
+		project.getRepo().getConfig().load();
+		assertEquals("module url restored to the parent config", releases.getRepo().getWorkTree().toString(), project.getRepo().getConfig().getString("submodule", "lib/depname", "url"));
+
+		// files in the module's working tree aren't part of the record: update wouldn't check them out again if it did load the module.
+		Thread.sleep(1100);
+		assertJoy(new MdmUpdateCommand(project.getRepo()).call());
+		IOForge.saveFile("edited", artifact);
+		assertEquals("module with an edited file is still skipped", Collections.singleton("lib/depname"), new MdmModuleSet(project.getRepo(), MdmUpdateState.load(project.getRepo())).getSkippedHandles());
+		IOForge.saveFile("beta release 1.1", artifact);
+
+		// asking for a different version means the record no longer applies.
+		StoredConfig gitmodules = new FileBasedConfig(new File(project.getRepo().getWorkTree(), Constants.DOT_GIT_MODULES), project.getRepo().getFS());
+		gitmodules.load();
+		gitmodules.setString("submodule", "lib/depname", "mdm-version", "v2.0");
+		gitmodules.save();
+		assertTrue("module with new version is not skipped", new MdmModuleSet(project.getRepo(), MdmUpdateState.load(project.getRepo())).getSkippedHandles().isEmpty());
+
+		result = new MdmUpdateCommand(project.getRepo()).call();
+		assertJoy(result);
+		assertTrue("module with new version reported as changed", result.getMessage().startsWith("mdm dependencies have been updated (1 changed, 0 unaffected)"));
+		assertEquals("content of artifact is correct", "beta release 2.0", IOForge.readFileAsString(new File(project.getRepo().getWorkTree(), "lib/depname/beta")));
+	}
+
+	@Test
+	public void testUpdateRemovesUnlinkedDependencyWithGitDirInWorkTree() throws Exception {
+		Fixture project = new ProjectAlpha("projectRepo");
+
+		// the way older versions of mdm left dependencies: git data right there in the working tree.
+		File stray = new File(project.getRepo().getWorkTree(), "lib/old");
+		Repository strayRepo = new RepositoryBuilder().setWorkTree(stray).build();
+		strayRepo.create(false);
+		strayRepo.getConfig().setString("mdm", null, "mdm", MdmModuleType.DEPENDENCY.toString());
+		strayRepo.getConfig().save();
+		strayRepo.close();
+
+		assertJoy(new MdmUpdateCommand(project.getRepo()).call());
+		assertFalse("unlinked dependency removed", stray.exists());
+	}
+
+	@Test
+	public void testUpdateBorrowsObjectsFromSharedObjectStore() throws Exception {
+		Fixture remoteProject = new ProjectAlpha("projectRemote");
+		Fixture releases = new ProjectBetaReleases("projectRepo-releases");
+
+		WithCwd wd = new WithCwd(remoteProject.getRepo().getWorkTree()); {
+			MdmAddCommand cmd = new MdmAddCommand(remoteProject.getRepo());
+			cmd.url = releases.getRepo().getWorkTree().toString();
+			cmd.name = "depname";
+			cmd.pathLibs = new File("lib");
+			cmd.version = "v1.1";
+			cmd.validate();
+			assertJoy(cmd.call());
+		} wd.close();
+
+		// two checkouts of the same project, both using the same store.
+		File storeDir = new File("objectstore").getCanonicalFile();
+		Fixture[] checkouts = { new ProjectClone("projectRepo1", remoteProject.getRepo()), new ProjectClone("projectRepo2", remoteProject.getRepo()) };
+		for (Fixture project : checkouts) {
+			StoredConfig config = project.getRepo().getConfig();
+			config.setString("mdm", null, "objectstore", storeDir.toString());
+			config.save();
+			assertJoy(new MdmUpdateCommand(project.getRepo()).call());
+			assertEquals("content of artifact is correct", "beta release 1.1", IOForge.readFileAsString(new File(project.getRepo().getWorkTree(), "lib/depname/beta")));
+
+			// the module's objects should all be in the store, not its own gitdir.
+			File depObjects = new File(project.getRepo().getDirectory(), "modules/lib/depname/objects");
+			assertTrue("module gitdir borrows from the store", new File(depObjects, "info/alternates").isFile());
+			assertEquals("module gitdir has no packs of its own", 0, new File(depObjects, "pack").list().length);
+		}
+
+		String[] stores = storeDir.list();
+		assertEquals("one repo in the store for the one releases url", 1, stores.length);
+		Repository store = new RepositoryBuilder().setGitDir(new File(storeDir, stores[0])).build();
+		assertNotNull("release branch fetched into the store", store.getRef("refs/heads/mdm/release/v1.1"));
+	}
+
+	@Test
+	public void testUpdateFetchesModulesSharingAUrlTogether() throws Exception {
+		Fixture remoteProject = new ProjectAlpha("projectRemote");
+		Fixture releases = new ProjectBetaReleases("projectRepo-releases");
+
+		// two paths pinning different versions of the same library.
+		WithCwd wd = new WithCwd(remoteProject.getRepo().getWorkTree()); {
+			MdmAddCommand cmd = new MdmAddCommand(remoteProject.getRepo());
+			cmd.url = releases.getRepo().getWorkTree().toString();
+			cmd.name = "old";
+			cmd.pathLibs = new File("lib");
+			cmd.version = "v1.1";
+			cmd.validate();
+			assertJoy(cmd.call());
+
+			cmd = new MdmAddCommand(remoteProject.getRepo());
+			cmd.url = releases.getRepo().getWorkTree().toString();
+			cmd.name = "new";
+			cmd.pathLibs = new File("lib");
+			cmd.version = "v2.0";
+			cmd.validate();
+			assertJoy(cmd.call());
+		} wd.close();
+
+		Fixture project = new ProjectClone("projectRepo", remoteProject.getRepo());
+		FetchGroups groups = new FetchGroups(project.getRepo(), new MdmModuleSet(project.getRepo()).getDependencyModules().values());
+		assertTrue("modules with the same url are grouped", groups.isGrouped(Plumbing.resolveUrl(project.getRepo().getConfig(), releases.getRepo().getWorkTree().toString())));
+
+		MdmExitMessage result = new MdmUpdateCommand(project.getRepo()).call();
+		assertJoy(result);
+		assertTrue("both dependencies reported as changed", result.getMessage().startsWith("mdm dependencies have been updated (2 changed, 0 unaffected)"));
+		assertEquals("content of artifact is correct", "beta release 1.1", IOForge.readFileAsString(new File(project.getRepo().getWorkTree(), "lib/old/beta")));
+		assertEquals("content of artifact is correct", "beta release 2.0", IOForge.readFileAsString(new File(project.getRepo().getWorkTree(), "lib/new/beta")));
+
+		// each module only took its own release, and the scratch repo the group was fetched into is gone.
+		Repository old = new RepositoryBuilder().setGitDir(new File(project.getRepo().getDirectory(), "modules/lib/old")).build();
+		assertNotNull("release branch present in dependency module", old.getRef("refs/heads/mdm/release/v1.1"));
+		assertNull("other module's release branch not present in dependency module", old.getRef("refs/heads/mdm/release/v2.0"));
+		assertFalse("scratch fetch repos removed", new File(project.getRepo().getDirectory(), "mdm/fetch").exists() && new File(project.getRepo().getDirectory(), "mdm/fetch").list().length > 0);
+	}
 }
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2012 - 2014 Eric Myhre <http://exultant.us>
+ *
+ * This file is part of mdm <https://github.com/heavenlyhash/mdm/>.
+ *
+ * mdm is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.polydawn.mdm.jgit;
+
+import static org.junit.Assert.*;
+import java.io.*;
+import java.util.*;
+import net.polydawn.mdm.test.*;
+import org.eclipse.jgit.dircache.*;
+import org.eclipse.jgit.lib.*;
+import org.junit.*;
+
+public class BlobPackerTest extends TestCaseUsingRepository {
+	private Repository repo() throws IOException {
+		Repository repo = new RepositoryBuilder().setWorkTree(new File("repo").getCanonicalFile()).build();
+		repo.create(false);
+		return repo;
+	}
+
+	@Test
+	public void manyBlobsAllLandInThePack() throws Exception {
+		Repository repo = repo();
+		// far more blobs than the packer will hold at once, so handing them over has to wait on the workers.
+		BlobPacker packer = new BlobPacker(repo, 2);
+		List<DirCacheEntry> entries = new ArrayList<DirCacheEntry>();
+		for (int i = 0; i < 200; i++) {
+			DirCacheEntry entry = new DirCacheEntry("file"+i);
+			packer.insert(entry, ("content "+i).getBytes("UTF-8"));
+			entries.add(entry);
+		}
+		packer.flush();
+		packer.release();
+
+		for (int i = 0; i < entries.size(); i++) {
+			byte[] content = ("content "+i).getBytes("UTF-8");
+			assertEquals(new ObjectInserter.Formatter().idFor(Constants.OBJ_BLOB, content), entries.get(i).getObjectId());
+			assertArrayEquals(content, repo.open(entries.get(i).getObjectId()).getBytes());
+		}
+	}
+
+	@Test
+	public void streamedBlobIsReadOnceAndChecked() throws Exception {
+		Repository repo = repo();
+		BlobPacker packer = new BlobPacker(repo, 2);
+		byte[] content = new byte[100000];
+		new Random(3).nextBytes(content);
+		DirCacheEntry entry = new DirCacheEntry("big");
+		packer.insert(entry, new ByteArrayInputStream(content), content.length);
+		assertEquals("id known as soon as the stream is read", new ObjectInserter.Formatter().idFor(Constants.OBJ_BLOB, content), entry.getObjectId());
+
+		try {
+			packer.insert(new DirCacheEntry("short"), new ByteArrayInputStream(content, 0, 10), content.length);
+			fail("a stream that ends early should be refused");
+		} catch (IOException e) {}
+
+		packer.flush();
+		packer.release();
+		assertArrayEquals(content, repo.open(entry.getObjectId()).getBytes());
+	}
+}
@@ -25,6 +25,7 @@ import net.polydawn.josh.*;
 import net.polydawn.mdm.fixture.*;
 import net.polydawn.mdm.test.*;
 import net.polydawn.mdm.test.WithCwd;
+import org.eclipse.jgit.lib.*;
 import org.junit.*;
 import org.junit.runner.*;
 import us.exultant.ahs.iob.*;
@@ -102,4 +103,23 @@ public class SubrepoWalkTest extends TestCaseUsingRepository {
 		assertEquals("should find the so-called submodule path", "submodule", generator.getPathString());
 		assertEquals("should find nothing else", false, generator.next());
 	}
+
+	@Test
+	public void should_not_look_inside_gitignored_dirs() throws Exception {
+		// setup
+		Fixture project = new ProjectAlpha("projectAlpha");
+		WithCwd wd = new WithCwd(project.getRepo().getWorkTree()); {
+			IOForge.saveFile("/ignored/\n", new File("./.gitignore").getCanonicalFile());
+			new File("ignored/submodule").getCanonicalFile().mkdirs();
+			IOForge.saveFile("faking it out", new File("./ignored/submodule/.git").getCanonicalFile());
+			new File("submodule").getCanonicalFile().mkdir();
+			IOForge.saveFile("faking it out", new File("./submodule/.git").getCanonicalFile());
+		} wd.close();
+
+		// test we find only the one outside the ignored dir
+		SubrepoWalk generator = new SubrepoWalk(project.getRepo());
+		assertEquals("should find the so-called submodule path", true, generator.next());
+		assertEquals("should find the so-called submodule path", "submodule", generator.getPathString());
+		assertEquals("should find nothing else", false, generator.next());
+	}
 }
@@ -0,0 +1,92 @@
+package net.polydawn.mdm.scenarios;
+
+import static org.junit.Assert.*;
+import java.io.*;
+import net.polydawn.mdm.*;
+import net.polydawn.mdm.fixture.*;
+import net.polydawn.mdm.test.*;
+import net.polydawn.mdm.test.WithCwd;
+import org.eclipse.jgit.api.*;
+import org.eclipse.jgit.lib.*;
+import org.eclipse.jgit.revwalk.*;
+import org.junit.*;
+import org.junit.runner.*;
+import us.exultant.ahs.iob.*;
+
+@RunWith(OrderedJUnit4ClassRunner.class)
+public class ReleasingInMemoryTest extends TestCaseUsingRepository {
+	private Repository release(Fixture project, String... extraArgs) throws Exception {
+		WithCwd wd = new WithCwd(project.getRepo().getWorkTree()); {
+			assertJoy(Mdm.run(
+				"release-init",
+				"--use-defaults"
+			));
+
+			for (String version : new String[] { "v1", "v2" }) {
+				IOForge.saveFile("artifact of "+version, new File("artifacts/a").getCanonicalFile());
+				IOForge.saveFile("#!/bin/sh\necho "+version, new File("artifacts/bin/run").getCanonicalFile());
+				new File("artifacts/bin/run").getCanonicalFile().setExecutable(true);
+
+				String[] args = new String[3+extraArgs.length];
+				args[0] = "release";
+				args[1] = "--version="+version;
+				args[2] = "--files=artifacts";
+				System.arraycopy(extraArgs, 0, args, 3, extraArgs.length);
+				assertJoy(Mdm.run(args));
+			}
+		} wd.close();
+
+		return new RepositoryBuilder()
+			.setWorkTree(new File(project.getRepo().getWorkTree(), "releases").getCanonicalFile())
+			.build();
+	}
+
+	@Test
+	public void releasing_in_memory_makes_the_same_commits_as_releasing_by_checkout() throws Exception {
+		// same project name in both cases, since it's mentioned in the releases repo's readme.
+		Fixture checkoutProject;
+		WithCwd wd = new WithCwd("checkout"); {
+			checkoutProject = new ProjectAlpha("projectAlpha");
+		} wd.close();
+		Fixture inMemoryProject;
+		wd = new WithCwd("inMemory"); {
+			inMemoryProject = new ProjectAlpha("projectAlpha");
+		} wd.close();
+		Repository checkoutRepo = release(checkoutProject);
+		Repository inMemoryRepo = release(inMemoryProject, "--in-memory");
+
+		for (String version : new String[] { "v1", "v2" }) {
+			assertEquals("release commit for "+version+" converges",
+				checkoutRepo.resolve("refs/heads/mdm/release/"+version),
+				inMemoryRepo.resolve("refs/heads/mdm/release/"+version));
+			assertEquals("release tag for "+version+" matches release branch",
+				inMemoryRepo.resolve("refs/heads/mdm/release/"+version),
+				inMemoryRepo.resolve("refs/tags/release/"+version));
+			assertEquals("accumulation tree for "+version+" matches",
+				checkoutRepo.resolve("refs/tags/mdm/master/"+version+"^{tree}"),
+				inMemoryRepo.resolve("refs/tags/mdm/master/"+version+"^{tree}"));
+		}
+
+		// the accumulation commit merges the release into master.
+		RevCommit master = new RevWalk(inMemoryRepo).parseCommit(inMemoryRepo.resolve("refs/heads/master"));
+		assertEquals("master is the latest accumulation commit", inMemoryRepo.resolve("refs/tags/mdm/master/v2"), master);
+		assertEquals("accumulation commit has two parents", 2, master.getParentCount());
+		assertEquals("accumulation commit's first parent is the previous master", inMemoryRepo.resolve("refs/tags/mdm/master/v1"), master.getParent(0));
+		assertEquals("accumulation commit's second parent is the release", inMemoryRepo.resolve("refs/heads/mdm/release/v2"), master.getParent(1));
+
+		// the releases repo is left checked out on master with the new files in place, and nothing else amiss.
+		assertEquals("release file present in version dir", "artifact of v2", IOForge.readFileAsString(new File(inMemoryRepo.getWorkTree(), "v2/a")));
+		assertTrue("releases repo is clean", new Git(inMemoryRepo).status().call().isClean());
+	}
+
+	@Test
+	public void releasing_in_memory_writes_artifacts_into_a_pack() throws Exception {
+		Repository releases = release(new ProjectAlpha("projectAlpha"), "--in-memory");
+
+		ObjectId blob = releases.resolve("refs/heads/mdm/release/v2:a");
+		assertNotNull("release contains the artifact", blob);
+		String name = blob.name();
+		assertFalse("artifact isn't a loose object", new File(releases.getDirectory(), "objects/"+name.substring(0, 2)+"/"+name.substring(2)).exists());
+		assertEquals("artifact content intact", "artifact of v2", new String(releases.open(blob).getBytes(), "UTF-8"));
+	}
+}
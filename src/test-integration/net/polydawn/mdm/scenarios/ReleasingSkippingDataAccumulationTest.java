@@ -51,7 +51,8 @@ public class ReleasingSkippingDataAccumulationTest extends TestCaseUsingReposito
 		assertTrue("release branch present in release module", refNames.contains("refs/heads/mdm/release/v1"));
 		assertTrue("release tag present in release module", refNames.contains("refs/tags/release/v1"));
 		assertTrue("accumlation tag present in release module", refNames.contains("refs/tags/mdm/master/v1"));
-		assertEquals("exactly these refs present in release module", 6, refNames.size());
+		assertTrue("version index present in release module", refNames.contains("refs/mdm/index"));
+		assertEquals("exactly these refs present in release module", 7, refNames.size());
 
 		// assert on the files in the master commit
 		List<String> masterFiles = Arrays.asList(new File("projectAlpha/releases/").getCanonicalFile().list());
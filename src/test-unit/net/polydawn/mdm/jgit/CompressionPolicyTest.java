@@ -0,0 +1,57 @@
+/*
+ * Copyright 2012 - 2014 Eric Myhre <http://exultant.us>
+ *
+ * This file is part of mdm <https://github.com/heavenlyhash/mdm/>.
+ *
+ * mdm is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.polydawn.mdm.jgit;
+
+import static org.junit.Assert.*;
+import java.util.*;
+import java.util.zip.*;
+import org.eclipse.jgit.lib.*;
+import org.junit.*;
+
+public class CompressionPolicyTest {
+	private static final byte[] ZIP = { 'P', 'K', 3, 4, 20, 0, 0, 0 };
+	private static final byte[] TEXT = "just some text".getBytes();
+
+	@Test
+	public void testDefaultsStoreCompressedContent() throws Exception {
+		Config cfg = new Config();
+		cfg.setInt("core", null, "compression", 6);
+		CompressionPolicy policy = CompressionPolicy.of(cfg);
+
+		assertEquals("zip magic is stored", 0, policy.levelFor("artifact", ZIP, ZIP.length));
+		assertEquals("known extension is stored", 0, policy.levelFor("lib/thing.JAR", TEXT, TEXT.length));
+		assertEquals("plain text gets core.compression", 6, policy.levelFor("lib/readme.txt", TEXT, TEXT.length));
+		assertEquals("a dotfile isn't an extension", 6, policy.levelFor("lib/.gz", TEXT, TEXT.length));
+		assertEquals("short content can't match magic", 6, policy.levelFor("a", ZIP, 2));
+	}
+
+	@Test
+	public void testConfiguredLevelAndExtensions() throws Exception {
+		Config cfg = new Config();
+		cfg.setInt("mdm", "release", "compressedLevel", 1);
+		cfg.setStringList("mdm", "release", "compressedExtension", Arrays.asList(".iso", "dmg"));
+		CompressionPolicy policy = CompressionPolicy.of(cfg);
+
+		assertEquals("zip magic gets the configured level", 1, policy.levelFor("artifact", ZIP, ZIP.length));
+		assertEquals("configured extension", 1, policy.levelFor("disk.iso", TEXT, TEXT.length));
+		assertEquals("configured extension without a dot", 1, policy.levelFor("disk.dmg", TEXT, TEXT.length));
+		assertEquals("everything else gets core.compression", Deflater.DEFAULT_COMPRESSION, policy.levelFor("notes", TEXT, TEXT.length));
+	}
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2012 - 2014 Eric Myhre <http://exultant.us>
+ *
+ * This file is part of mdm <https://github.com/heavenlyhash/mdm/>.
+ *
+ * mdm is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.polydawn.mdm.jgit;
+
+import static org.junit.Assert.*;
+import java.io.*;
+import java.util.*;
+import org.eclipse.jgit.lib.*;
+import org.junit.*;
+
+public class PublishedVersionIndexTest {
+	private static final ObjectId A = ObjectId.fromString("0123456789abcdef0123456789abcdef01234567");
+	private static final ObjectId B = ObjectId.fromString("89abcdef0123456789abcdef0123456789abcdef");
+
+	@Test
+	public void testFormatSortsByVersionAndParsesBack() throws Exception {
+		List<PublishedVersionIndex.Entry> entries = Arrays.asList(
+			new PublishedVersionIndex.Entry("v1.10", A, 12),
+			new PublishedVersionIndex.Entry("v1.9 beta", B, 0)
+		);
+		String text = new String(PublishedVersionIndex.format(entries), "UTF-8");
+		assertEquals(B.name()+" 0 v1.9 beta\n"+A.name()+" 12 v1.10\n", text);
+		assertEquals(Arrays.asList(entries.get(1), entries.get(0)), PublishedVersionIndex.parse(text.getBytes("UTF-8")));
+	}
+
+	@Test
+	public void testParseSkipsCommentsAndRejectsGarbage() throws Exception {
+		assertEquals(
+			Arrays.asList(new PublishedVersionIndex.Entry("v1", A, 3)),
+			PublishedVersionIndex.parse(("# comment\n\n"+A.name()+" 3 v1\n").getBytes("UTF-8"))
+		);
+		try {
+			PublishedVersionIndex.parse((A.name()+" lots v1\n").getBytes("UTF-8"));
+			fail("size that isn't a number should be rejected");
+		} catch (IOException e) {}
+		try {
+			PublishedVersionIndex.parse((A.name()+" 3\n").getBytes("UTF-8"));
+			fail("entry without a version should be rejected");
+		} catch (IOException e) {}
+	}
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2012 - 2014 Eric Myhre <http://exultant.us>
+ *
+ * This file is part of mdm <https://github.com/heavenlyhash/mdm/>.
+ *
+ * mdm is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.polydawn.mdm.util;
+
+import static org.junit.Assert.*;
+import java.io.*;
+import org.junit.*;
+
+public class TarReaderTest {
+	/** Append one ustar header (and content, if any) to a tar being built. */
+	static void entry(ByteArrayOutputStream tar, String name, char type, int mode, byte[] content, String link) throws IOException {
+		byte[] header = new byte[512];
+		put(header, 0, name);
+		put(header, 100, String.format("%07o", mode));
+		put(header, 108, "0000000");
+		put(header, 116, "0000000");
+		put(header, 124, String.format("%011o", content.length));
+		put(header, 136, "00000000000");
+		header[156] = (byte)type;
+		if (link != null) put(header, 157, link);
+		put(header, 257, "ustar");
+		put(header, 263, "00");
+		for (int i = 148; i < 156; i++) header[i] = ' ';
+		long sum = 0;
+		for (byte b : header) sum += b & 0xFF;
+		put(header, 148, String.format("%06o", sum));
+		header[155] = ' ';
+		tar.write(header);
+		tar.write(content);
+		tar.write(new byte[(512 - content.length % 512) % 512]);
+	}
+
+	private static void put(byte[] header, int offset, String value) throws UnsupportedEncodingException {
+		byte[] bytes = value.getBytes("UTF-8");
+		System.arraycopy(bytes, 0, header, offset, bytes.length);
+	}
+
+	static String read(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buf = new byte[7];	// small on purpose, so reads don't line up with anything.
+		for (int r; (r = in.read(buf)) > 0;) out.write(buf, 0, r);
+		return out.toString("UTF-8");
+	}
+
+	@Test
+	public void testEntriesAndContent() throws Exception {
+		ByteArrayOutputStream tar = new ByteArrayOutputStream();
+		entry(tar, "dir/", '5', 0755, new byte[0], null);
+		entry(tar, "dir/a", '0', 0644, "alpha".getBytes("UTF-8"), null);
+		entry(tar, "dir/run", '0', 0755, new byte[1000], null);
+		entry(tar, "dir/link", '2', 0777, new byte[0], "a");
+		tar.write(new byte[1024]);
+
+		TarReader reader = new TarReader(new ByteArrayInputStream(tar.toByteArray()));
+		TarReader.Entry e = reader.next();
+		assertEquals("dir/", e.path);
+		assertTrue(e.isDirectory());
+
+		e = reader.next();
+		assertEquals("dir/a", e.path);
+		assertTrue(e.isFile());
+		assertFalse(e.isExecutable());
+		assertEquals("alpha", read(reader.getEntryStream()));
+
+		// don't read this one at all; next() should skip it.
+		e = reader.next();
+		assertEquals("dir/run", e.path);
+		assertEquals(1000, e.size);
+		assertTrue(e.isExecutable());
+
+		e = reader.next();
+		assertEquals("dir/link", e.path);
+		assertTrue(e.isSymlink());
+		assertEquals("a", e.linkTarget);
+
+		assertNull(reader.next());
+	}
+
+	@Test
+	public void testPaxAndGnuLongNames() throws Exception {
+		String longName = "deep/";
+		while (longName.length() < 150) longName += "directory/";
+		longName += "file";
+
+		ByteArrayOutputStream tar = new ByteArrayOutputStream();
+		entry(tar, "././@LongLink", 'L', 0, (longName+"\0").getBytes("UTF-8"), null);
+		entry(tar, "truncated", '0', 0644, "gnu".getBytes("UTF-8"), null);
+		String record = " path="+longName+"\n";
+		record = (record.length() + 3) + record;	// length prefix counts itself; three digits here.
+		entry(tar, "PaxHeader", 'x', 0, record.getBytes("UTF-8"), null);
+		entry(tar, "truncated", '0', 0644, "pax".getBytes("UTF-8"), null);
+
+		TarReader reader = new TarReader(new ByteArrayInputStream(tar.toByteArray()));
+		TarReader.Entry e = reader.next();
+		assertEquals(longName, e.path);
+		assertEquals("gnu", read(reader.getEntryStream()));
+		e = reader.next();
+		assertEquals(longName, e.path);
+		assertEquals("pax", read(reader.getEntryStream()));
+		assertNull(reader.next());
+	}
+
+	@Test
+	public void testSkipsUnreadContentOnStreamsThatCantSkip() throws Exception {
+		ByteArrayOutputStream tar = new ByteArrayOutputStream();
+		entry(tar, "a", '0', 0644, new byte[1000], null);
+		entry(tar, "b", '0', 0644, "beta".getBytes("UTF-8"), null);
+		tar.write(new byte[1024]);
+
+		// like a pipe behind an empty buffer: FileInputStream.skip there throws "Illegal seek".
+		InputStream pipe = new FilterInputStream(new ByteArrayInputStream(tar.toByteArray())) {
+			public long skip(long n) throws IOException {
+				throw new IOException("Illegal seek");
+			}
+		};
+		TarReader reader = new TarReader(pipe);
+		assertEquals("a", reader.next().path);
+		reader.getEntryStream().read();	// leave most of it unread.
+		assertEquals("b", reader.next().path);
+		assertEquals("beta", read(reader.getEntryStream()));
+		assertNull(reader.next());
+	}
+
+	@Test(expected = IOException.class)
+	public void testRejectsNonTar() throws Exception {
+		byte[] junk = new byte[512];
+		for (int i = 0; i < junk.length; i++) junk[i] = (byte)i;
+		new TarReader(new ByteArrayInputStream(junk)).next();
+	}
+
+	@Test(expected = EOFException.class)
+	public void testRejectsTruncatedEntry() throws Exception {
+		ByteArrayOutputStream tar = new ByteArrayOutputStream();
+		entry(tar, "a", '0', 0644, new byte[2000], null);
+		byte[] truncated = new byte[1024];
+		System.arraycopy(tar.toByteArray(), 0, truncated, 0, truncated.length);
+
+		TarReader reader = new TarReader(new ByteArrayInputStream(truncated));
+		reader.next();
+		read(reader.getEntryStream());
+	}
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2012 - 2014 Eric Myhre <http://exultant.us>
+ *
+ * This file is part of mdm <https://github.com/heavenlyhash/mdm/>.
+ *
+ * mdm is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package net.polydawn.mdm.util;
+
+import static org.junit.Assert.*;
+import java.io.*;
+import java.util.*;
+import org.junit.*;
+
+public class TraceTest {
+	@Test
+	public void testNothingRecordedUntilStarted() throws Exception {
+		assertFalse(Trace.isRecording());
+		Trace.Span span = Trace.begin("test", "idle");
+		assertSame("spans are free when nobody's recording", span, Trace.begin("test", "other"));
+		span.arg("key", "value").end();
+		Trace.finish();
+	}
+
+	@Test
+	public void testWritesFinishedSpans() throws Exception {
+		File out = File.createTempFile("trace", ".json");
+		try {
+			Trace.start(out);
+			assertTrue(Trace.isRecording());
+			Trace.begin("fetch", "fetch").arg("module", "lib/\"quoted\"").arg("bytes", 42).end();
+			Trace.begin("fetch", "never finished");
+			Trace.finish();
+			assertFalse(Trace.isRecording());
+
+			String json = read(out);
+			assertTrue(json, json.startsWith("{\"traceEvents\":["));
+			assertTrue(json, json.contains("\"name\":\"thread_name\",\"ph\":\"M\""));
+			assertTrue(json, json.contains("\"name\":\"fetch\",\"cat\":\"fetch\",\"ph\":\"X\""));
+			assertTrue(json, json.contains("\"args\":{\"module\":\"lib/\\\"quoted\\\"\",\"bytes\":42}"));
+			assertFalse("open spans are dropped", json.contains("never finished"));
+		} finally {
+			out.delete();
+		}
+	}
+
+	@Test
+	public void testListenerHearsSpans() throws Exception {
+		final List<String> heard = new ArrayList<String>();
+		Trace.setListener(new Trace.Listener() {
+			public Object begin(String category, String name) {
+				return name.equals("ignored") ? null : category+"/"+name;
+			}
+
+			public void end(Object handle, Map<String,Object> args) {
+				heard.add(handle+" "+args);
+			}
+		});
+		try {
+			assertTrue(Trace.isRecording());
+			Trace.Span span = Trace.begin("fetch", "fetch").arg("bytes", 42);
+			span.end();
+			span.end();
+			Trace.begin("fetch", "ignored").end();
+			assertEquals(Arrays.asList("fetch/fetch {bytes=42}"), heard);
+		} finally {
+			Trace.setListener(null);
+		}
+		assertFalse(Trace.isRecording());
+	}
+
+	private static String read(File file) throws IOException {
+		Reader r = new InputStreamReader(new FileInputStream(file), "UTF-8");
+		try {
+			StringBuilder b = new StringBuilder();
+			char[] buf = new char[4096];
+			for (int n; (n = r.read(buf)) > 0;)
+				b.append(buf, 0, n);
+			return b.toString();
+		} finally {
+			r.close();
+		}
+	}
+}
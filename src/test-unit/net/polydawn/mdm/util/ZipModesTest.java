@@ -0,0 +1,96 @@
+/*
+ * Copyright 2012 - 2014 Eric Myhre <http://exultant.us>
+ *
+ * This file is part of mdm <https://github.com/heavenlyhash/mdm/>.
+ *
+ * mdm is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package net.polydawn.mdm.util;
+
+import static org.junit.Assert.*;
+import java.io.*;
+import java.util.*;
+import java.util.zip.*;
+import org.junit.*;
+
+public class ZipModesTest {
+	/** A zip of these entries (name, then content), with each central directory record claiming to be from unix with the given mode. */
+	static byte[] zip(String[] entries, int[] modes) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ZipOutputStream zip = new ZipOutputStream(bytes);
+		for (int i = 0; i < entries.length; i += 2) {
+			zip.putNextEntry(new ZipEntry(entries[i]));
+			zip.write(entries[i+1].getBytes("UTF-8"));
+		}
+		zip.close();
+		// java can't write unix modes, so patch them into the central directory records after the fact.
+		byte[] b = bytes.toByteArray();
+		int record = 0;
+		for (int i = 0; i + 4 <= b.length; i++) {
+			if (b[i] != 'P' || b[i+1] != 'K' || b[i+2] != 1 || b[i+3] != 2) continue;
+			b[i+5] = 3;
+			int attributes = modes[record++] << 16;
+			for (int j = 0; j < 4; j++)
+				b[i+38+j] = (byte) (attributes >>> (8*j));
+		}
+		assertEquals(modes.length, record);
+		return b;
+	}
+
+	static Map<String,Integer> readThrough(byte[] zip) throws IOException {
+		ZipModes modes = new ZipModes(new ByteArrayInputStream(zip));
+		ZipInputStream in = new ZipInputStream(modes);
+		byte[] buf = new byte[3];	// small on purpose, so reads don't line up with anything.
+		while (in.getNextEntry() != null)
+			while (in.read(buf) > 0);
+		return modes.readModes();
+	}
+
+	@Test
+	public void testModesReadFromCentralDirectory() throws Exception {
+		Map<String,Integer> modes = readThrough(zip(
+			new String[] { "a", "alpha", "bin/run", "#!/bin/sh", "link", "a" },
+			new int[] { 0100644, 0100755, 0120777 }
+		));
+		assertEquals(Integer.valueOf(0100644), modes.get("a"));
+		assertEquals(Integer.valueOf(0100755), modes.get("bin/run"));
+		assertEquals(Integer.valueOf(0120777), modes.get("link"));
+	}
+
+	@Test
+	public void testModesFoundPastALargeEntry() throws Exception {
+		// far more than the window, so the central directory has to be found from what's kept of the end.
+		char[] big = new char[200000];
+		Random random = new Random(5);
+		for (int i = 0; i < big.length; i++)
+			big[i] = (char) ('a' + random.nextInt(26));
+		Map<String,Integer> modes = readThrough(zip(
+			new String[] { "big", new String(big), "small", "y" },
+			new int[] { 0100644, 0100755 }
+		));
+		assertEquals(Integer.valueOf(0100755), modes.get("small"));
+	}
+
+	@Test
+	public void testNoModesFromNonUnixZip() throws Exception {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ZipOutputStream zip = new ZipOutputStream(bytes);
+		zip.putNextEntry(new ZipEntry("a"));
+		zip.write(1);
+		zip.close();
+		assertTrue(readThrough(bytes.toByteArray()).isEmpty());
+	}
+}